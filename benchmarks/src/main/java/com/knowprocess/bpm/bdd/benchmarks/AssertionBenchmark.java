@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.flowable.engine.runtime.ProcessInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.assertions.BpmAssert;
+
+/**
+ * Cost of the assertions made against history and the task list.
+ *
+ * @author Tim Stephenson
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AssertionBenchmark {
+
+    private static final String ASSIGNEE = "benchmarker";
+
+    /**
+     * One completed and one waiting process instance, the assertions do not
+     * change them so they are shared by all invocations and threads. Sharing
+     * also keeps a single task claimed by {@link #ASSIGNEE}, however many
+     * threads run.
+     */
+    @State(Scope.Benchmark)
+    public static class Processes {
+        public BpmSpec completed;
+
+        public ProcessInstance waiting;
+
+        @SuppressWarnings("unchecked")
+        @Setup
+        public void setUp(EngineState engine) {
+            completed = engine.startProcess("completed").thenUserTask(
+                    EngineState.TASK_KEY, BpmSpec.buildSet(),
+                    BpmSpec.buildMap());
+            waiting = engine.startProcess("waiting").getProcessInstance();
+            // claim so that asserting the task exists leaves it unchanged
+            String taskId = engine.processEngine.getTaskService()
+                    .createTaskQuery().processInstanceId(waiting.getId())
+                    .singleResult().getId();
+            engine.processEngine.getTaskService().claim(taskId, ASSIGNEE);
+        }
+    }
+
+    @Benchmark
+    public void assertProcessEnded(EngineState engine, Processes processes) {
+        BpmAssert.assertProcessEnded(engine.processEngine,
+                processes.completed.getProcessInstance());
+    }
+
+    @Benchmark
+    public BpmSpec thenProcessIsComplete(Processes processes) {
+        return processes.completed.thenProcessIsComplete();
+    }
+
+    @Benchmark
+    public String assertTaskExists(EngineState engine, Processes processes) {
+        return engine.rule.assertAssignedTaskExists("Do something", ASSIGNEE);
+    }
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.benchmarks;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of the diagnostic dumps of a process instance, with their output
+ * discarded.
+ *
+ * @author Tim Stephenson
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AuditDumpBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Processes {
+        public String completedId;
+
+        public String waitingId;
+
+        private PrintStream out;
+
+        @Setup
+        public void setUp(EngineState engine) {
+            completedId = engine.completeProcess("dumped-completed");
+            waitingId = engine.startProcess("dumped-waiting")
+                    .getProcessInstance().getId();
+            out = System.out;
+            System.setOut(EngineState.NULL_OUT);
+        }
+
+        @TearDown
+        public void tearDown() {
+            System.setOut(out);
+        }
+    }
+
+    @Benchmark
+    public void dumpAuditTrail(EngineState engine, Processes processes) {
+        engine.rule.dumpAuditTrail(processes.completedId);
+    }
+
+    @Benchmark
+    public void dumpProcessStateCompleted(EngineState engine,
+            Processes processes) {
+        engine.rule.dumpProcessState(processes.completedId);
+    }
+
+    @Benchmark
+    public void dumpProcessStateWaiting(EngineState engine,
+            Processes processes) {
+        engine.rule.dumpProcessState(processes.waitingId);
+    }
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.benchmarks;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flowable.engine.RuntimeService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+
+/**
+ * Cost of the fluent steps most scenarios are made of.
+ *
+ * @author Tim Stephenson
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BpmSpecBenchmark {
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    /**
+     * A process instance waiting at its user task, replaced before each
+     * invocation since the task benchmark completes it.
+     */
+    @State(Scope.Thread)
+    public static class WaitingProcess {
+        public BpmSpec spec;
+
+        @Setup(Level.Invocation)
+        public void setUp(EngineState engine) {
+            spec = engine.startProcess("waiting-" + counter.incrementAndGet());
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown(EngineState engine) {
+            String id = spec.getProcessInstance().getId();
+            RuntimeService runtimeService = engine.processEngine
+                    .getRuntimeService();
+            if (runtimeService.createProcessInstanceQuery()
+                    .processInstanceId(id).count() > 0) {
+                runtimeService.deleteProcessInstance(id, "benchmark");
+            }
+            engine.processEngine.getHistoryService()
+                    .deleteHistoricProcessInstance(id);
+        }
+    }
+
+    /**
+     * Process instances started by the benchmark, deleted after each
+     * iteration so the runtime and history tables do not grow while
+     * measuring.
+     */
+    @State(Scope.Benchmark)
+    public static class StartedProcesses {
+        public final Queue<String> ids = new ConcurrentLinkedQueue<String>();
+
+        @TearDown(Level.Iteration)
+        public void tearDown(EngineState engine) {
+            String id;
+            while ((id = ids.poll()) != null) {
+                engine.processEngine.getRuntimeService()
+                        .deleteProcessInstance(id, "benchmark");
+                engine.processEngine.getHistoryService()
+                        .deleteHistoricProcessInstance(id);
+            }
+        }
+    }
+
+    @Benchmark
+    public BpmSpec whenEventOccurs(EngineState engine,
+            StartedProcesses started) {
+        BpmSpec spec = engine.startProcess("start-"
+                + counter.incrementAndGet());
+        started.ids.add(spec.getProcessInstance().getId());
+        return spec;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Benchmark
+    public BpmSpec thenUserTask(WaitingProcess process) {
+        return process.spec.thenUserTask(EngineState.TASK_KEY,
+                BpmSpec.buildSet(), BpmSpec.buildMap());
+    }
+
+    /**
+     * The value collected is reported through the specification's silent
+     * reporter, so nothing is printed while measuring.
+     */
+    @Benchmark
+    public Object collectVar(WaitingProcess process) {
+        return process.spec.collectVar(EngineState.VAR_NAME).getVar(
+                EngineState.VAR_NAME);
+    }
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.ProcessEngineConfiguration;
+import org.flowable.engine.TaskService;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.report.BddPhrase;
+import com.knowprocess.bpm.bdd.report.BddReporter;
+import com.knowprocess.bpm.bdd.test.flowable.DeploymentCache;
+import com.knowprocess.bpm.bdd.test.flowable.ExtendedRule;
+
+/**
+ * In-memory engine with the benchmark process deployed, shared by all
+ * benchmarks of a fork.
+ *
+ * @author Tim Stephenson
+ */
+@State(Scope.Benchmark)
+public class EngineState {
+
+    public static final String CONFIG = "benchmark-flowable.cfg.xml";
+
+    public static final String PROCESS_KEY = "Benchmark";
+
+    public static final String PROCESS_RESOURCE = "processes/Benchmark.bpmn";
+
+    public static final String TASK_KEY = "doSomething";
+
+    public static final String VAR_NAME = "orderId";
+
+    /**
+     * BDD phrases would otherwise dominate the measurements.
+     */
+    public static final BddReporter SILENT = new BddReporter() {
+        public boolean isEnabled() {
+            return false;
+        }
+
+        public void report(BddPhrase phrase) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    };
+
+    /**
+     * Sink for the audit dumps.
+     */
+    public static final PrintStream NULL_OUT = new PrintStream(
+            new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+
+    public ProcessEngine processEngine;
+
+    public ExtendedRule rule;
+
+    @Setup
+    public void setUp() {
+        processEngine = ProcessEngineConfiguration
+                .createProcessEngineConfigurationFromResource(CONFIG)
+                .buildProcessEngine();
+        rule = new ExtendedRule(processEngine);
+        DeploymentCache.getInstance().deploy(processEngine, null,
+                PROCESS_RESOURCE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        processEngine.close();
+    }
+
+    /**
+     * @return A new specification that writes nothing.
+     */
+    public BpmSpec newSpec(String name) {
+        return new BpmSpec(rule, name, SILENT);
+    }
+
+    /**
+     * @return Specification whose process instance is waiting at the user
+     *         task.
+     */
+    @SuppressWarnings("unchecked")
+    public BpmSpec startProcess(String name) {
+        Map<String, Object> vars = BpmSpec
+                .buildMap(new ImmutablePair<String, Object>(VAR_NAME, "PO-"
+                        + name));
+        return newSpec(name).whenEventOccurs("Benchmark process started",
+                PROCESS_KEY, BpmSpec.buildSet(), vars, null);
+    }
+
+    /**
+     * @return Id of a process instance that has run to completion.
+     */
+    public String completeProcess(String name) {
+        String id = startProcess(name).getProcessInstance().getId();
+        TaskService taskService = processEngine.getTaskService();
+        taskService.complete(taskService.createTaskQuery()
+                .processInstanceId(id).singleResult().getId());
+        return id;
+    }
+}
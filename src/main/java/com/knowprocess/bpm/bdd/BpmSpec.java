@@ -21,26 +21,30 @@ import static com.knowprocess.bpm.bdd.assertions.BpmAssert.assertProcessEnded;
 import static com.knowprocess.bpm.bdd.assertions.BpmAssert.assertProcessEndedAndInEndEvents;
 import static com.knowprocess.bpm.bdd.assertions.BpmAssert.assertProcessEndedAndInExclusiveEndEvent;
 import static com.knowprocess.bpm.bdd.assertions.BpmAssert.assertProcessVariableLatestValueEquals;
-import static com.knowprocess.bpm.bdd.assertions.BpmAssert.processEngine;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.TaskService;
 import org.flowable.engine.common.api.FlowableObjectNotFoundException;
+import org.flowable.engine.common.impl.interceptor.Command;
+import org.flowable.engine.common.impl.interceptor.CommandContext;
 import org.flowable.engine.history.HistoricActivityInstance;
 import org.flowable.engine.history.HistoricProcessInstance;
 import org.flowable.engine.impl.test.JobTestHelper;
@@ -49,20 +53,58 @@ import org.flowable.engine.test.FlowableRule;
 import org.flowable.idm.api.User;
 import org.flowable.job.api.Job;
 import org.flowable.task.api.Task;
+import org.flowable.variable.api.history.HistoricVariableInstance;
+import org.flowable.variable.service.impl.persistence.entity.HistoricVariableInstanceEntityImpl;
+
+import com.knowprocess.bpm.bdd.assertions.BpmAssert;
+import com.knowprocess.bpm.bdd.history.InMemoryHistory;
+import com.knowprocess.bpm.bdd.metrics.EngineCallCounter;
+import com.knowprocess.bpm.bdd.metrics.SqlStatementCounter;
+import com.knowprocess.bpm.bdd.metrics.StepMetrics;
+import com.knowprocess.bpm.bdd.metrics.StepTimeline;
+import com.knowprocess.bpm.bdd.report.AsyncBddReporter;
+import com.knowprocess.bpm.bdd.report.BddPhrase;
+import com.knowprocess.bpm.bdd.report.BddReporter;
+import com.knowprocess.bpm.bdd.report.ConsoleWriter;
+import com.knowprocess.bpm.bdd.test.flowable.DeploymentCache;
+import com.knowprocess.bpm.bdd.test.flowable.ExtendedRule;
+import com.knowprocess.bpm.bdd.test.flowable.InlineJobExecutor;
+import com.knowprocess.bpm.bdd.test.flowable.JobCompletionWaiter;
+import com.knowprocess.bpm.bdd.test.mailserver.TestMailServer;
 
 /**
  * Builds and runs process acceptance test cases using a fluent API.
  *
+ * <p>
+ * Each specification carries its own process engine so that scenarios may be
+ * run in parallel, each against its own engine or sharing one.
+ *
  * @author Tim Stephenson
  */
 public class BpmSpec {
 
     private static final Set<String> emptySet = new HashSet<String>();
 
+    private static BddReporter defaultReporter;
+
+    private static boolean reporterShutdownHook;
+
+    private static final Map<Class<?>, Boolean> phraseHookOverridden = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    private static final AtomicLong specCount = new AtomicLong();
+
     private FlowableRule flowableRule;
 
+    private ProcessEngine processEngine;
+
     private String specName;
 
+    /**
+     * Tells the phrases of this specification from those of others with the
+     * same name.
+     */
+    private final long specId = specCount.incrementAndGet();
+
     private ProcessInstance processInstance;
 
     private String messageName;
@@ -71,15 +113,113 @@ public class BpmSpec {
 
     private String processDefinitionKey;
 
+    private HistorySnapshot history;
+
+    private ProcessInstanceTree processTree;
+
+    private boolean eventDrivenJobs;
+
+    private InlineJobExecutor inlineJobExecutor;
+
+    private BddReporter reporter;
+
+    private StepTimeline stepTimeline;
+
+    private SqlStatementCounter sqlCounter;
+
+    private Map<String, Long> sqlMark;
+
+    private Map<String, Long> previousStepStatements;
+
     public BpmSpec(FlowableRule flowableRule, String name) {
+        this(flowableRule, name, getDefaultReporter());
+    }
+
+    /**
+     * @param flowableRule
+     * @param name
+     *            Name of the scenario.
+     * @param reporter
+     *            Destination for the BDD phrases of this specification.
+     */
+    public BpmSpec(FlowableRule flowableRule, String name,
+            BddReporter reporter) {
         this.flowableRule = flowableRule;
         this.specName = name;
+        this.reporter = reporter;
 
         this.collectVars = new HashMap<String, Object>();
-		processEngine = flowableRule.getProcessEngine();
+        this.processEngine = flowableRule.getProcessEngine();
+        // bind for any static assertions made by this thread
+        BpmAssert.setProcessEngine(processEngine);
+        if (flowableRule instanceof ExtendedRule) {
+            ((ExtendedRule) flowableRule).addSpecification(this);
+        }
         writeBddPhrase("Instantiated specification for scenario %1$s", specName);
     }
 
+    /**
+     * Wait for jobs to complete by listening for job events rather than
+     * polling the job table, see {@link JobCompletionWaiter}.
+     *
+     * <p>
+     * Affects {@link #whenExecuteAllJobs(int)} and
+     * {@link #whenExecuteJobsForTime(int)}, which will then return as soon as
+     * no executable jobs remain.
+     *
+     * @return The updated specification.
+     */
+    public BpmSpec withEventDrivenJobs() {
+        this.eventDrivenJobs = true;
+        return this;
+    }
+
+    /**
+     * Run jobs on the test thread instead of the async executor.
+     *
+     * <p>
+     * The async executor is shut down and, after each step that moves the
+     * process on, every executable job and due timer is run inline in due
+     * date order, see {@link InlineJobExecutor}. Scenarios are then free of
+     * job acquisition latency and run the same way every time.
+     *
+     * <p>
+     * The async executor is restarted by {@link #finished()}, which
+     * {@link ExtendedRule} calls when the test finishes.
+     *
+     * @return The updated specification.
+     */
+    public BpmSpec withInlineJobExecution() {
+        inlineJobExecutor = new InlineJobExecutor(processEngine);
+        inlineJobExecutor.disableAsyncExecutor();
+        return this;
+    }
+
+    /**
+     * Record the wall time of each following step and the number of engine
+     * service calls and commands it made, see {@link #getStepTimeline()}.
+     *
+     * @return The updated specification.
+     */
+    public BpmSpec withStepMetrics() {
+        stepTimeline = new StepTimeline(
+                EngineCallCounter.install(processEngine));
+        return this;
+    }
+
+    /**
+     * Count the SQL statements issued by each following step, enabling
+     * {@link #thenQueryCountAtMost(int)}.
+     *
+     * @return The updated specification.
+     */
+    public BpmSpec withQueryCounting() {
+        sqlCounter = SqlStatementCounter.install(processEngine);
+        sqlMark = sqlCounter.getCounts();
+        previousStepStatements = Collections.emptyMap();
+        return this;
+    }
+
     /**
      * @param preCondition
      *            Natural language definition of scenario pre-conditions.
@@ -91,30 +231,232 @@ public class BpmSpec {
         return this;
     }
 
+    /**
+     * Ensure the process resources are deployed, re-using any existing
+     * deployment of identical content.
+     *
+     * @param resources
+     *            Classpath resources to deploy, e.g. BPMN files.
+     * @return The updated specification.
+     */
+    public BpmSpec givenDeployed(String... resources) {
+        DeploymentCache.getInstance().deploy(processEngine, null, resources);
+        writeBddPhrase("%1$sGIVEN: Deployed %2$s",
+                System.getProperty("line.separator"),
+                Arrays.toString(resources));
+        return this;
+    }
+
+    /**
+     * @return The reporter used by specifications that do not name one,
+     *         unless changed this writes to System.out from a background
+     *         thread.
+     */
+    public static synchronized BddReporter getDefaultReporter() {
+        if (defaultReporter == null) {
+            setDefaultReporter(new AsyncBddReporter(new ConsoleWriter()));
+        }
+        return defaultReporter;
+    }
+
+    /**
+     * Change the reporter used by specifications created from now on, for
+     * example to add JSON or JUnit XML output. Any previous default reporter
+     * is closed and the current one is closed when the JVM exits.
+     *
+     * <p>
+     * Specifications already holding the previous reporter should have
+     * finished, since it discards their later phrases.
+     *
+     * @param reporter
+     */
+    public static synchronized void setDefaultReporter(BddReporter reporter) {
+        BddReporter previous = defaultReporter;
+        defaultReporter = reporter;
+        if (previous != null && previous != reporter) {
+            previous.close();
+        }
+        if (!reporterShutdownHook) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    closeDefaultReporter();
+                }
+            }, "bdd-reporter-shutdown"));
+            reporterShutdownHook = true;
+        }
+    }
+
+    private static synchronized void closeDefaultReporter() {
+        if (defaultReporter != null) {
+            defaultReporter.close();
+        }
+    }
+
+    /**
+     * @return Destination for the BDD phrases of this specification.
+     */
+    public BddReporter getReporter() {
+        return reporter;
+    }
+
     /**
      * Write a BDD phrase (Given, When or Then ...).
      * 
      * <p>
-     * Default implementation writes to System.out.
+     * Default implementation passes the phrase to this specification's
+     * {@link BddReporter}. Overriding it changes only where phrases are
+     * written, steps are still measured by
+     * {@link #writeBddPhrase(String, Object...)}.
      * 
      * @param phrase
      */
     protected void writeBddPhrase(String phrase) {
-        System.out.println(phrase);
+        if (reporter.isEnabled()) {
+            reporter.report(new BddPhrase(specId, specName, phrase,
+                    (Object[]) null));
+        }
     }
 
     /**
-     * Write a BDD phrase (Given, When or Then ...).
+     * Write a BDD phrase (Given, When or Then ...), marking the end of a step
+     * for {@link #withStepMetrics()} and {@link #withQueryCounting()}.
      * 
      * <p>
-     * Default implementation writes to System.out.
+     * If a subclass overrides {@link #writeBddPhrase(String)} the phrase is
+     * formatted and passed to that. Otherwise it goes straight to this
+     * specification's {@link BddReporter}.
      * 
      * @param phrase
      * @param args
      *            Substitution arguments for phrase.
      */
     protected void writeBddPhrase(String format, Object... args) {
-        writeBddPhrase(String.format(format, args));
+        boolean overridden = isPhraseHookOverridden();
+        if (stepTimeline == null && sqlCounter == null && !overridden
+                && !reporter.isEnabled()) {
+            return;
+        }
+        BddPhrase phrase = new BddPhrase(specId, specName, format, args);
+        stepCompleted(phrase);
+        if (overridden) {
+            writeBddPhrase(phrase.getText());
+        } else if (reporter.isEnabled()) {
+            reporter.report(phrase);
+        }
+    }
+
+    private boolean isPhraseHookOverridden() {
+        Boolean overridden = phraseHookOverridden.get(getClass());
+        if (overridden == null) {
+            overridden = Boolean.FALSE;
+            for (Class<?> c = getClass(); c != BpmSpec.class; c = c
+                    .getSuperclass()) {
+                try {
+                    c.getDeclaredMethod("writeBddPhrase", String.class);
+                    overridden = Boolean.TRUE;
+                    break;
+                } catch (NoSuchMethodException e) {
+                    // try the superclass
+                }
+            }
+            phraseHookOverridden.put(getClass(), overridden);
+        }
+        return overridden;
+    }
+
+    /**
+     * Release what the specification holds once the scenario is over,
+     * restarting the async executor if {@link #withInlineJobExecution()}
+     * stopped it, and unbinding its engine from {@link BpmAssert}. Lets the
+     * reporter know no more phrases will follow. Called by
+     * {@link ExtendedRule} when the test finishes, other tests and runners
+     * creating many specifications should call it themselves.
+     */
+    public void finished() {
+        if (inlineJobExecutor != null) {
+            inlineJobExecutor.restoreAsyncExecutor();
+        }
+        BpmAssert.clearProcessEngine(processEngine);
+        if (flowableRule instanceof ExtendedRule) {
+            ((ExtendedRule) flowableRule).removeSpecification(this);
+        }
+        if (reporter.isEnabled()) {
+            reporter.report(BddPhrase.newFinished(specId, specName));
+        }
+    }
+
+    /**
+     * Report that the scenario failed and wait for the reporter to write it,
+     * so the phrases leading up to the failure appear before JUnit reports
+     * it. Called by {@link ExtendedRule} for the specifications of a failed
+     * test.
+     *
+     * @param failure
+     *            Cause of the failure.
+     */
+    public void reportFailure(Throwable failure) {
+        if (reporter.isEnabled()) {
+            reporter.report(new BddPhrase(specId, specName, BddPhrase.FAILED
+                    + ": %1$s", failure));
+            reporter.flush();
+        }
+    }
+
+    /**
+     * Measure the step ended by the phrase, if asked to.
+     */
+    private void stepCompleted(BddPhrase phrase) {
+        if (stepTimeline != null) {
+            stepTimeline.stepCompleted(phrase);
+        }
+        if (sqlCounter != null) {
+            Map<String, Long> counts = sqlCounter.getCounts();
+            previousStepStatements = SqlStatementCounter.difference(sqlMark,
+                    counts);
+            sqlMark = counts;
+        }
+    }
+
+    /**
+     * @return Measurements of each step since {@link #withStepMetrics()} in
+     *         the order they ran, empty if metrics are not being recorded.
+     */
+    public List<StepMetrics> getStepTimeline() {
+        if (stepTimeline == null) {
+            return Collections.emptyList();
+        }
+        return stepTimeline.getSteps();
+    }
+
+    /**
+     * @return Sum of the measurements of all steps, null if metrics are not
+     *         being recorded.
+     */
+    public StepMetrics getStepTotals() {
+        return stepTimeline == null ? null : stepTimeline.getTotals();
+    }
+
+    /**
+     * Write a table of the step metrics, typically at the end of the
+     * scenario. Does nothing unless {@link #withStepMetrics()} was called.
+     *
+     * @return The updated specification.
+     */
+    public BpmSpec reportStepMetrics() {
+        if (stepTimeline != null && reporter.isEnabled()) {
+            for (String line : stepTimeline.toTable()) {
+                reporter.report(BddPhrase.newMetrics(specId, specName, line));
+            }
+        }
+        return this;
+    }
+
+
+    /**
+     * @return The process engine this specification runs against.
+     */
+    public ProcessEngine getProcessEngine() {
+        return processEngine;
     }
 
     public Object getVar(String varName) {
@@ -140,6 +482,7 @@ public class BpmSpec {
                 .startProcessInstanceByKey(processDefinitionKey, vars);
         assertNotNull(processInstance);
         assertNotNull(processInstance.getId());
+        engineAdvanced();
 
         writeBddPhrase("WHEN: %1$s", eventDescription);
         return this;
@@ -174,6 +517,7 @@ public class BpmSpec {
                         vars, tenantId);
         assertNotNull(processInstance);
         assertNotNull(processInstance.getId());
+        engineAdvanced();
 
         writeBddPhrase("WHEN: %1$s", eventDescription);
         return this;
@@ -189,27 +533,18 @@ public class BpmSpec {
      *            to start.
      * @param messageResource
      *            Classpath resource to load and inject as process variable or
-     *            the variable itself as a string.
+     *            the variable itself as a string. Resources are cached, see
+     *            {@link MessageResources}, use
+     *            {@link #whenMsgPayloadReceived(String, String, String, String)}
+     *            when supplying the message directly.
      * @param tenantId
      *            Process tenant, may be null.
      * @return The updated specification.
      */
     public BpmSpec whenMsgReceived(String eventDescription,
             String msgName, String messageResource, String tenantId) {
-        this.messageName = msgName;
-
-        HashMap<String, Object> vars = new HashMap<String, Object>();
-        vars.put("messageName", adapt(msgName));
-        vars.put(adapt(messageName), getJson(messageResource));
-
-        processInstance = flowableRule.getRuntimeService()
-                .startProcessInstanceByMessageAndTenantId(msgName, vars,
-                        tenantId);
-        assertNotNull(processInstance);
-        assertNotNull(processInstance.getId());
-
-        writeBddPhrase("WHEN: %1$s", eventDescription);
-        return this;
+        return startByMessage(eventDescription, msgName,
+                getJson(messageResource), tenantId);
     }
 
     /**
@@ -237,34 +572,79 @@ public class BpmSpec {
         vars.put(adapt(messageName), getJson(messageResource));
 
 //        flowableRule.getRuntimeService().signal(processInstance.getId(), vars);
+        engineAdvanced();
 
         writeBddPhrase("WHEN: %1$s", eventDescription);
         return this;
     }
 
+    /**
+     * Define the message start event for the business process, the message
+     * being supplied directly rather than loaded from a resource.
+     * 
+     * @param eventDescription
+     *            'When' phase of scenario.
+     * @param msgName
+     *            Specifies the message name identifying the Process Definition
+     *            to start.
+     * @param payload
+     *            Message to inject as process variable.
+     * @param tenantId
+     *            Process tenant, may be null.
+     * @return The updated specification.
+     */
+    public BpmSpec whenMsgPayloadReceived(String eventDescription,
+            String msgName, String payload, String tenantId) {
+        return startByMessage(eventDescription, msgName, payload, tenantId);
+    }
+
+    private BpmSpec startByMessage(String eventDescription, String msgName,
+            String json, String tenantId) {
+        this.messageName = msgName;
+
+        HashMap<String, Object> vars = new HashMap<String, Object>();
+        vars.put("messageName", adapt(msgName));
+        vars.put(adapt(messageName), json);
+
+        processInstance = flowableRule.getRuntimeService()
+                .startProcessInstanceByMessageAndTenantId(msgName, vars,
+                        tenantId);
+        assertNotNull(processInstance);
+        assertNotNull(processInstance.getId());
+        engineAdvanced();
+
+        writeBddPhrase("WHEN: %1$s", eventDescription);
+        return this;
+    }
+
+    /**
+     * @param messageResource
+     *            Classpath resource or, if no such resource exists, the
+     *            message itself.
+     * @return The message.
+     */
     protected String getJson(String messageResource) {
-        InputStream is = null;
-        Reader source = null;
-        Scanner scanner = null;
-        String json = null;
-        try {
-            is = getClass().getResourceAsStream(messageResource);
-            // assertNotNull("Unable to load test resource: " + messageResource,
-            // is);
-            source = new InputStreamReader(is);
-            scanner = new Scanner(source);
-            json = scanner.useDelimiter("\\A").next();
-        } catch (NullPointerException e) {
-            // assume message supplied directly
-            json = messageResource;
-        } finally {
-            try {
-                scanner.close();
-            } catch (Exception e) {
-                ;
+        if (isInlinePayload(messageResource)) {
+            return messageResource;
+        }
+        String json = MessageResources.getInstance().getResource(getClass(),
+                messageResource);
+        // assume message supplied directly
+        return json == null ? messageResource : json;
+    }
+
+    /**
+     * @return true if the message is evidently JSON or XML and so cannot be a
+     *         resource name.
+     */
+    private boolean isInlinePayload(String messageResource) {
+        for (int i = 0; i < messageResource.length(); i++) {
+            char c = messageResource.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '{' || c == '[' || c == '<';
             }
         }
-        return json;
+        return true;
     }
 
     /**
@@ -304,16 +684,12 @@ public class BpmSpec {
      */
     public BpmSpec thenServiceTask(String taskDefinitionKey,
             Set<String> collectVars) {
-        List<HistoricActivityInstance> tasks = flowableRule.getHistoryService()
-                .createHistoricActivityInstanceQuery()
-                .activityId(taskDefinitionKey).list();
+        List<HistoricActivityInstance> tasks = findActivities(taskDefinitionKey);
 
         assertTrue("Did not find the expected task with id "
                 + taskDefinitionKey, tasks.size() != 0);
 
-        for (String varName : collectVars) {
-            collectVar(varName);
-        }
+        collectVars(collectVars);
 
         writeBddPhrase("THEN: Task '%1$s' was created and completed",
                 taskDefinitionKey);
@@ -329,7 +705,9 @@ public class BpmSpec {
      * 
      * <p>
      * Task will be asserted to exist, variables collected and/or updated and
-     * then completed.
+     * then completed. Only tasks of this scenario's process instance, or of
+     * sub-processes it called, are considered so other scenarios may share
+     * the engine.
      * 
      * @param taskDefinitionKey
      *            Key (BPMN id) for user task.
@@ -341,15 +719,14 @@ public class BpmSpec {
      */
     public BpmSpec thenUserTask(String taskDefinitionKey,
             Set<String> collectVars, Map<String, Object> putVars) {
-        Task task = flowableRule.getTaskService().createTaskQuery()
-                .singleResult();
-        assertNotNull("Did not find the expected task with key "
-                + taskDefinitionKey, task);
-        assertEquals(taskDefinitionKey, task.getTaskDefinitionKey());
+        List<Task> tasks = findUserTasks(taskDefinitionKey);
+        assertTrue("Did not find the expected task with key "
+                + taskDefinitionKey, tasks.size() > 0);
+        assertEquals("Found more than one task with key "
+                + taskDefinitionKey, 1, tasks.size());
+        Task task = tasks.get(0);
 
-        for (String varName : collectVars) {
-            collectVar(varName);
-        }
+        collectVars(collectVars);
 
         HashMap<String, Object> vars = new HashMap<String, Object>();
         for (Entry<String, Object> entry : putVars.entrySet()) {
@@ -357,8 +734,9 @@ public class BpmSpec {
         }
 
         flowableRule.getTaskService().complete(task.getId(), vars, false);
+        engineAdvanced();
         for (Entry<String, Object> entry : putVars.entrySet()) {
-            assertProcessVariableLatestValueEquals(
+            assertProcessVariableLatestValueEquals(processEngine,
                     processInstance, entry.getKey(), entry.getValue());
         }
         writeBddPhrase("THEN: User Task '%1$s' is created and completed",
@@ -366,6 +744,82 @@ public class BpmSpec {
         return this;
     }
 
+    /**
+     * Complete many user tasks of the same kind in one step, e.g. those
+     * created by a multi-instance activity.
+     * 
+     * <p>
+     * The tasks are found with one query across this scenario's process
+     * instance and its sub-processes, then all completed in a single
+     * transaction.
+     * 
+     * @param taskDefinitionKey
+     *            Key (BPMN id) for user task.
+     * @param expectedCount
+     *            Number of tasks expected to be waiting.
+     * @param collectVars
+     *            Variable names to collect in the scenario.
+     * @param putVars
+     *            Variables to be injected into the process context when
+     *            completing each task.
+     * @return The updated specification.
+     */
+    public BpmSpec thenUserTasks(String taskDefinitionKey, int expectedCount,
+            Set<String> collectVars, Map<String, Object> putVars) {
+        final List<Task> tasks = findUserTasks(taskDefinitionKey);
+        assertEquals("Unexpected no. of tasks with key " + taskDefinitionKey,
+                expectedCount, tasks.size());
+
+        collectVars(collectVars);
+
+        final HashMap<String, Object> vars = new HashMap<String, Object>(
+                putVars);
+        final TaskService taskService = flowableRule.getTaskService();
+        processEngine.getManagementService().executeCommand(
+                new Command<Void>() {
+                    public Void execute(CommandContext commandContext) {
+                        // nested calls join this command's transaction
+                        for (Task task : tasks) {
+                            taskService.complete(task.getId(), vars, false);
+                        }
+                        return null;
+                    }
+                });
+        engineAdvanced();
+        for (Entry<String, Object> entry : putVars.entrySet()) {
+            assertProcessVariableLatestValueEquals(processEngine,
+                    processInstance, entry.getKey(), entry.getValue());
+        }
+        writeBddPhrase("THEN: %1$d User Tasks '%2$s' are created and completed",
+                tasks.size(), taskDefinitionKey);
+        return this;
+    }
+
+    /**
+     * @return Open tasks of the key belonging to this scenario's process
+     *         instance or, failing that, to the sub-processes it called.
+     */
+    private List<Task> findUserTasks(String taskDefinitionKey) {
+        TaskService taskService = flowableRule.getTaskService();
+        List<Task> tasks = taskService.createTaskQuery()
+                .processInstanceId(processInstance.getId())
+                .taskDefinitionKey(taskDefinitionKey).list();
+        if (!tasks.isEmpty()) {
+            return tasks;
+        }
+        tasks = new ArrayList<Task>();
+        List<String> ids = getProcessTree().getProcessInstanceIds();
+        ids = ids.subList(1, ids.size());
+        for (int from = 0; from < ids.size(); from += ProcessInstanceTree.BATCH_SIZE) {
+            List<String> batch = ids.subList(from, Math.min(from
+                    + ProcessInstanceTree.BATCH_SIZE, ids.size()));
+            tasks.addAll(taskService.createTaskQuery()
+                    .processInstanceIdIn(batch)
+                    .taskDefinitionKey(taskDefinitionKey).list());
+        }
+        return tasks;
+    }
+
     /**
      * Execute an extension action for the scenario.
      * 
@@ -379,6 +833,7 @@ public class BpmSpec {
      */
     public BpmSpec thenExtension(ExternalAction action) throws Exception {
         action.execute(this);
+        engineAdvanced();
         writeBddPhrase("THEN: extension '%1$s' is run", action.getClass()
                 .getName());
         return this;
@@ -393,7 +848,15 @@ public class BpmSpec {
      * @return The updated specification.
      */
     public BpmSpec whenExecuteJobsForTime(int maxMillisToWait) {
-        JobTestHelper.executeJobExecutorForTime(flowableRule, maxMillisToWait, 1);
+        // when running jobs inline there is nothing to wait for
+        if (inlineJobExecutor == null && eventDrivenJobs) {
+            new JobCompletionWaiter(processEngine).waitForJobs(
+                    maxMillisToWait, true);
+        } else if (inlineJobExecutor == null) {
+            JobTestHelper.executeJobExecutorForTime(flowableRule,
+                    maxMillisToWait, 1);
+        }
+        engineAdvanced();
 
         List<Job> jobs = flowableRule.getManagementService().createJobQuery()
                 .list();
@@ -412,10 +875,16 @@ public class BpmSpec {
      * @return The updated specification.
      */
     public BpmSpec whenExecuteAllJobs(int timeout) {
-        JobTestHelper.waitForJobExecutorToProcessAllJobs(flowableRule
-                .getProcessEngine().getProcessEngineConfiguration(),
-                flowableRule.getManagementService(), timeout, 1);
-        writeBddPhrase("WHEN: executed all jobs");
+        // when running jobs inline there is nothing to wait for
+        if (inlineJobExecutor == null && eventDrivenJobs) {
+            new JobCompletionWaiter(processEngine).waitForAllJobs(timeout);
+        } else if (inlineJobExecutor == null) {
+            JobTestHelper.waitForJobExecutorToProcessAllJobs(flowableRule
+                    .getProcessEngine().getProcessEngineConfiguration(),
+                    flowableRule.getManagementService(), timeout, 1);
+        }
+        engineAdvanced();
+        writeBddPhrase("WHEN: executed all jobs", (Object[]) null);
         return this;
     }
 
@@ -438,6 +907,40 @@ public class BpmSpec {
         Date time = cal.getTime();
         writeBddPhrase("WHEN: process time advanced to : %1$s", time.toString());
         flowableRule.setCurrentTime(time);
+        engineAdvanced();
+        return this;
+    }
+
+    /**
+     * Travels forward in process time, firing each timer as its due date is
+     * reached and running the jobs that follow before moving on.
+     * 
+     * <p>
+     * Unlike {@link #whenProcessTimePassed(int, int)} there is no need to then
+     * wait for the job executor, the step returns once the target time is
+     * reached and all due work is done.
+     * 
+     * <p>
+     * The engine's clock moves for every scenario using it, so do not travel
+     * in time on a pooled engine or one shared with tests running in
+     * parallel, see {@link InlineJobExecutor#travelTo(Date)}.
+     * 
+     * @param field
+     *            One of the field constants in java.util.Calendar.
+     * @param amount
+     *            Amount to change field by.
+     * @return The updated specification.
+     */
+    public BpmSpec whenProcessTimeTravelled(int field, int amount) {
+        Calendar cal = processEngine.getProcessEngineConfiguration()
+                .getClock().getCurrentCalendar();
+        cal.add(field, amount);
+        Date time = cal.getTime();
+        int jobs = new InlineJobExecutor(processEngine).travelTo(time,
+                getJobScope());
+        engineAdvanced();
+        writeBddPhrase("WHEN: process time travelled to : %1$s, %2$d jobs run",
+                time.toString(), jobs);
         return this;
     }
 
@@ -455,29 +958,88 @@ public class BpmSpec {
             throw new IllegalArgumentException("Parameter subProcId must not be null");
         }
 
-        boolean found = searchForSubProc(subProcDefKey, processInstance.getId());
+        boolean found = !getProcessTree().findCalls(subProcDefKey).isEmpty();
         
         assertTrue(String.format("No call made to %1$s", subProcDefKey), found);
         writeBddPhrase("THEN: The sub-process %1$s is called", subProcDefKey);
         return this;
     }
 
-    private boolean searchForSubProc(String subProcDefKey, String procId) {
-        List<HistoricProcessInstance> childProcessInstances = flowableRule
-                .getHistoryService().createHistoricProcessInstanceQuery()
-                .superProcessInstanceId(procId).list();
+    /**
+     * Assert that the specified sub-process has been invoked an exact number
+     * of times, for example by a multi-instance callActivity.
+     * 
+     * @param subProcDefKey
+     *            Key (id without vsn info) of the sub-process that should have
+     *            been invoked.
+     * @param expectedCalls
+     *            Number of instances of the sub-process expected anywhere
+     *            beneath this scenario's process instance.
+     * @return The updated specification.
+     */
+    public BpmSpec thenSubProcessCalled(String subProcDefKey, int expectedCalls) {
+        if (subProcDefKey == null) {
+            throw new IllegalArgumentException("Parameter subProcId must not be null");
+        }
+
+        assertEquals(String.format("Unexpected no. of calls made to %1$s",
+                subProcDefKey), expectedCalls,
+                getProcessTree().findCalls(subProcDefKey).size());
+        writeBddPhrase("THEN: The sub-process %1$s is called %2$d times",
+                subProcDefKey, expectedCalls);
+        return this;
+    }
 
-        for (HistoricProcessInstance hpi : childProcessInstances) {
-            if (hpi.getProcessDefinitionId().startsWith(subProcDefKey)) {
-                return true;
-            }
+    /**
+     * Assert that the specified sub-process was called at a particular depth
+     * of the process instance tree.
+     * 
+     * @param subProcDefKey
+     *            Key (id without vsn info) of the sub-process that should have
+     *            been invoked.
+     * @param depth
+     *            1 if called directly by this scenario's process instance, 2
+     *            if called by one of its sub-processes and so on.
+     * @return The updated specification.
+     */
+    public BpmSpec thenSubProcessCalledAtDepth(String subProcDefKey, int depth) {
+        if (subProcDefKey == null) {
+            throw new IllegalArgumentException("Parameter subProcId must not be null");
         }
-        for (HistoricProcessInstance hpi : childProcessInstances) {
-            if (searchForSubProc(subProcDefKey, hpi.getId())) {
-                return true;
-            }
+
+        assertEquals(String.format("No call made to %1$s at depth %2$d",
+                subProcDefKey, depth), depth,
+                getProcessTree().getDepth(subProcDefKey));
+        writeBddPhrase("THEN: The sub-process %1$s is called at depth %2$d",
+                subProcDefKey, depth);
+        return this;
+    }
+
+    /**
+     * Assert the number of SQL statements the engine issued on this thread
+     * during the previous step, e.g. to catch N+1 query patterns in
+     * delegates. Requires {@link #withQueryCounting()}.
+     * 
+     * @param maxStatements
+     *            Most statements the step may issue.
+     * @return The updated specification.
+     */
+    public BpmSpec thenQueryCountAtMost(int maxStatements) {
+        if (sqlCounter == null) {
+            throw new IllegalStateException(
+                    "SQL statements are not being counted, call withQueryCounting() first");
         }
-        return false;
+        Map<String, Long> statements = previousStepStatements;
+        long total = SqlStatementCounter.total(statements);
+        assertTrue(String.format(
+                "Expected at most %1$d SQL statements but the previous step issued %2$d:%n%3$s",
+                maxStatements, total,
+                SqlStatementCounter.breakdown(statements)),
+                total <= maxStatements);
+        writeBddPhrase(
+                "THEN: The previous step issued %1$d SQL statements, at most %2$d allowed",
+                total, maxStatements);
+        return this;
     }
 
     /**
@@ -486,8 +1048,8 @@ public class BpmSpec {
      * @return The updated specification.
      */
     public BpmSpec thenProcessIsComplete() {
-        assertProcessEnded(processInstance);
-        writeBddPhrase("THEN: The process is complete");
+        assertProcessEnded(processEngine, processInstance);
+        writeBddPhrase("THEN: The process is complete", (Object[]) null);
         return this;
     }
 
@@ -499,7 +1061,7 @@ public class BpmSpec {
      * @return The updated specification.
      */
     public BpmSpec thenProcessEndedAndInEndEvents(String... endEventIds) {
-        assertProcessEndedAndInEndEvents(processInstance,
+        assertProcessEndedAndInEndEvents(processEngine, processInstance,
                 endEventIds);
         writeBddPhrase(
                 "THEN: The process is complete and finished in these events %1$s",
@@ -518,15 +1080,13 @@ public class BpmSpec {
         // ProcessInstance processInstance2 = flowableRule.getProcessEngine()
         // .getRuntimeService().createProcessInstanceQuery()
         // .processInstanceId(processInstance.getId()).singleResult();
-        HistoricProcessInstance processInstance2 = flowableRule
-                .getProcessEngine().getHistoryService()
-                .createHistoricProcessInstanceQuery()
-                .processInstanceId(processInstance.getId()).singleResult();
+        HistoricProcessInstance processInstance2 = InMemoryHistory
+                .findProcessInstance(processEngine, processInstance.getId());
         assertNotNull(processInstance2);
         assertNotNull(processInstance2.getEndTime());
 
-        assertProcessEndedAndInExclusiveEndEvent(processInstance,
-                endEventId);
+        assertProcessEndedAndInExclusiveEndEvent(processEngine,
+                processInstance, endEventId);
         writeBddPhrase(
                 "THEN: The process is complete and in the end event %1$s",
                 endEventId);
@@ -535,14 +1095,276 @@ public class BpmSpec {
 
 
     public BpmSpec thenTimerExpired(String timerEventId) {
-        List<HistoricActivityInstance> flowablees = flowableRule
-                .getHistoryService().createHistoricActivityInstanceQuery()
-                .activityId(timerEventId).list();
-        assertEquals(1, flowablees.size());
+        List<HistoricActivityInstance> timers = findActivities(timerEventId);
+        assertEquals(1, timers.size());
         writeBddPhrase("THEN: The timer %1$s expired", timerEventId);
         return this;
     }
 
+    /**
+     * Assert the process instance has ended and took no longer than the
+     * threshold, measured by the engine's clock.
+     * 
+     * @param maxMillis
+     *            Longest acceptable duration in milli-seconds.
+     * @return The updated specification.
+     */
+    public BpmSpec thenProcessCompletedWithin(long maxMillis) {
+        HistoricProcessInstance hpi = InMemoryHistory.findProcessInstance(
+                processEngine, processInstance.getId());
+        assertNotNull("No history found for process instance "
+                + processInstance.getId(), hpi);
+        assertNotNull("Process instance " + processInstance.getId()
+                + " has not completed", hpi.getEndTime());
+        assertTrue(String.format(
+                "Process took %1$d ms, expected at most %2$d ms",
+                hpi.getDurationInMillis(), maxMillis),
+                hpi.getDurationInMillis() <= maxMillis);
+        writeBddPhrase("THEN: The process completed within %1$d ms (took %2$d ms)",
+                maxMillis, hpi.getDurationInMillis());
+        return this;
+    }
+
+    /**
+     * Wait for the process to send mail, returning as soon as it arrives
+     * rather than after a fixed sleep.
+     * 
+     * @param mailServer
+     *            Server receiving the mail, configured as described in
+     *            {@link TestMailServer#configure(ProcessEngine)}.
+     * @param count
+     *            Number of messages expected from this process instance.
+     * @param timeoutMillis
+     *            Longest time to wait in milli-seconds.
+     * @return The updated specification.
+     */
+    public BpmSpec thenMailSent(TestMailServer mailServer, int count,
+            long timeoutMillis) throws Exception {
+        long start = System.currentTimeMillis();
+        mailServer.awaitMessages(count,
+                TestMailServer.sentBy(processInstance.getId()), timeoutMillis);
+        writeBddPhrase("THEN: %1$d message(s) sent within %2$d ms (took %3$d ms)",
+                count, timeoutMillis, System.currentTimeMillis() - start);
+        return this;
+    }
+
+    /**
+     * Assert every instance of the activity, in this process or any
+     * sub-process, has completed and took no longer than the threshold.
+     * 
+     * @param activityId
+     *            BPMN id of the activity.
+     * @param maxMillis
+     *            Longest acceptable duration in milli-seconds.
+     * @return The updated specification.
+     */
+    public BpmSpec thenActivityCompletedWithin(String activityId,
+            long maxMillis) {
+        List<HistoricActivityInstance> activities = findActivities(activityId);
+        assertTrue("Activity " + activityId + " was not reached",
+                activities.size() > 0);
+        long longest = 0;
+        for (HistoricActivityInstance hai : activities) {
+            assertNotNull("Activity " + activityId + " has not completed",
+                    hai.getEndTime());
+            longest = Math.max(longest, hai.getDurationInMillis());
+        }
+        assertTrue(String.format(
+                "Activity %1$s took %2$d ms, expected at most %3$d ms",
+                activityId, longest, maxMillis), longest <= maxMillis);
+        writeBddPhrase("THEN: Activity '%1$s' completed within %2$d ms (took %3$d ms)",
+                activityId, maxMillis, longest);
+        return this;
+    }
+
+    /**
+     * Assert a percentile of the durations of all finished instances of this
+     * scenario's process definition.
+     * 
+     * @param percentile
+     *            Between 0 and 100, e.g. 95.
+     * @param maxMillis
+     *            Longest acceptable duration in milli-seconds.
+     * @return The updated specification.
+     * @see HistoryDurations
+     */
+    public BpmSpec thenProcessDurationPercentileWithin(double percentile,
+            long maxMillis) {
+        return thenProcessDurationPercentileWithin(getProcessDefinitionKey(),
+                percentile, maxMillis);
+    }
+
+    /**
+     * Assert a percentile of the durations of all finished instances of a
+     * process definition.
+     * 
+     * @param procDefKey
+     *            Key of the process definition.
+     * @param percentile
+     *            Between 0 and 100, e.g. 95.
+     * @param maxMillis
+     *            Longest acceptable duration in milli-seconds.
+     * @return The updated specification.
+     * @see HistoryDurations
+     */
+    public BpmSpec thenProcessDurationPercentileWithin(String procDefKey,
+            double percentile, long maxMillis) {
+        Long duration = new HistoryDurations(processEngine)
+                .getProcessDurationPercentile(procDefKey, percentile);
+        assertNotNull("No instance of " + procDefKey + " has completed",
+                duration);
+        assertTrue(String.format(
+                "p%1$s of %2$s durations is %3$d ms, expected at most %4$d ms",
+                formatPercentile(percentile), procDefKey, duration,
+                maxMillis), duration <= maxMillis);
+        writeBddPhrase("THEN: p%1$s of process '%2$s' durations is within %3$d ms (%4$d ms)",
+                formatPercentile(percentile), procDefKey, maxMillis, duration);
+        return this;
+    }
+
+    /**
+     * Assert a percentile of the durations of an activity across all
+     * finished instances of it in this scenario's process definition.
+     * 
+     * @param activityId
+     *            BPMN id of the activity, e.g. of a user task to check how
+     *            long it waits.
+     * @param percentile
+     *            Between 0 and 100, e.g. 95.
+     * @param maxMillis
+     *            Longest acceptable duration in milli-seconds.
+     * @return The updated specification.
+     * @see HistoryDurations
+     */
+    public BpmSpec thenActivityDurationPercentileWithin(String activityId,
+            double percentile, long maxMillis) {
+        return thenActivityDurationPercentileWithin(getProcessDefinitionKey(),
+                activityId, percentile, maxMillis);
+    }
+
+    /**
+     * @return Key of the process this scenario started or, when it was
+     *         started by a message, of the process definition of its
+     *         instance.
+     * @throws IllegalStateException
+     *             If the scenario has no process instance.
+     */
+    private String getProcessDefinitionKey() {
+        if (processDefinitionKey != null) {
+            return processDefinitionKey;
+        }
+        if (processInstance == null) {
+            throw new IllegalStateException(
+                    "No process has been started, call a 'when' step first or pass the process definition key");
+        }
+        return processEngine.getRepositoryService()
+                .getProcessDefinition(processInstance.getProcessDefinitionId())
+                .getKey();
+    }
+
+    /**
+     * Assert a percentile of the durations of an activity across all
+     * finished instances of it in a process definition.
+     * 
+     * @param procDefKey
+     *            Key of the process definition containing the activity.
+     * @param activityId
+     *            BPMN id of the activity.
+     * @param percentile
+     *            Between 0 and 100, e.g. 95.
+     * @param maxMillis
+     *            Longest acceptable duration in milli-seconds.
+     * @return The updated specification.
+     * @see HistoryDurations
+     */
+    public BpmSpec thenActivityDurationPercentileWithin(String procDefKey,
+            String activityId, double percentile, long maxMillis) {
+        Long duration = new HistoryDurations(processEngine)
+                .getActivityDurationPercentile(procDefKey, activityId,
+                        percentile);
+        assertNotNull("No instance of " + activityId + " in " + procDefKey
+                + " has completed", duration);
+        assertTrue(String.format(
+                "p%1$s of %2$s durations is %3$d ms, expected at most %4$d ms",
+                formatPercentile(percentile), activityId, duration,
+                maxMillis), duration <= maxMillis);
+        writeBddPhrase("THEN: p%1$s of activity '%2$s' durations is within %3$d ms (%4$d ms)",
+                formatPercentile(percentile), activityId, maxMillis, duration);
+        return this;
+    }
+
+    private static String formatPercentile(double percentile) {
+        if (percentile == Math.rint(percentile)) {
+            return String.valueOf((long) percentile);
+        }
+        return String.valueOf(percentile);
+    }
+
+    /**
+     * @return The activity history of this scenario's process instance.
+     */
+    public HistorySnapshot getHistory() {
+        if (history == null
+                || !history.getProcessInstanceId().equals(
+                        processInstance.getId())) {
+            history = new HistorySnapshot(processEngine,
+                    processInstance.getId());
+        }
+        return history;
+    }
+
+    /**
+     * @return The tree of sub-process instances called by this scenario's
+     *         process instance.
+     */
+    public ProcessInstanceTree getProcessTree() {
+        if (processTree == null
+                || !processTree.getRootId().equals(processInstance.getId())) {
+            processTree = new ProcessInstanceTree(processEngine,
+                    processInstance.getId());
+        }
+        return processTree;
+    }
+
+    /**
+     * Find the activity within this scenario's process instance or, failing
+     * that, any sub-process it called.
+     */
+    private List<HistoricActivityInstance> findActivities(String activityId) {
+        List<HistoricActivityInstance> activities = getHistory()
+                .getByActivityId(activityId);
+        if (activities.isEmpty()) {
+            activities = getProcessTree().findSubProcessActivities(activityId);
+        }
+        return activities;
+    }
+
+    /**
+     * @return This scenario's process instances, whose jobs alone are run
+     *         inline, or null before a process is started to leave jobs
+     *         unrestricted.
+     */
+    private ProcessInstanceTree getJobScope() {
+        return processInstance == null ? null : getProcessTree();
+    }
+
+    /**
+     * Called after any step that may have moved the process on so that due
+     * jobs are run, if running inline, and state cached by the specification
+     * is reloaded when next needed.
+     */
+    protected void engineAdvanced() {
+        if (inlineJobExecutor != null && processInstance != null) {
+            inlineJobExecutor.executeDueJobs(getProcessTree());
+        }
+        if (history != null) {
+            history.invalidate();
+        }
+        if (processTree != null) {
+            processTree.invalidate();
+        }
+    }
+
     public BpmSpec thenUserExists(String userId, String... groupIds) {
         User user = flowableRule.getIdentityService().createUserQuery()
                 .userId(userId).singleResult();
@@ -567,23 +1389,102 @@ public class BpmSpec {
      * @return The updated specification.
      */
     public BpmSpec collectVar(String varName) {
-        Object var = null;
+        return collectVars(Collections.singleton(varName));
+    }
+
+    /**
+     * Collect many variables at once, asserting each has a value.
+     * 
+     * <p>
+     * All the variables are fetched in one call while the process instance
+     * is running. Once it has ended they are read from history with a single
+     * query, or from memory if {@link InMemoryHistory} is installed.
+     * 
+     * @param varNames
+     *            Names of the variables to collect.
+     * @return The updated specification.
+     */
+    public BpmSpec collectVars(Set<String> varNames) {
+        if (varNames.isEmpty()) {
+            return this;
+        }
+        Map<String, Object> vars;
         try {
-            var = flowableRule.getRuntimeService().getVariable(
-                processInstance.getId(), varName);
+            vars = flowableRule.getRuntimeService().getVariables(
+                    processInstance.getId(), varNames);
         } catch (FlowableObjectNotFoundException e) {
             // assume process ended, try history
-            var = flowableRule.getHistoryService()
-                    .createHistoricVariableInstanceQuery()
-                    .processInstanceId(processInstance.getId())
-                    .variableName(varName).singleResult().getValue();
+            vars = getHistoricVariables(varNames);
+        }
+        for (String varName : varNames) {
+            Object var = vars.get(varName);
+            // through the reporter to keep it in order with the phrases
+            if (reporter.isEnabled()) {
+                reporter.report(BddPhrase.newVariable(specId, specName,
+                        varName, var));
+            }
+            if (var == null) {
+                reporter.flush();
+            }
+            assertNotNull("No value for variable " + varName, var);
+            collectVars.put(varName, var);
         }
-        System.out.println(String.format("%1$s: %2$s", varName, var));
-        assertNotNull(var);
-        collectVars.put(varName, var);
         return this;
     }
 
+    /**
+     * @return Final value of each of the named variables of this scenario's
+     *         ended process instance, preferring process variables to any
+     *         execution or task local variable of the same name.
+     */
+    private Map<String, Object> getHistoricVariables(Set<String> varNames) {
+        Map<String, Object> vars = new HashMap<String, Object>();
+        InMemoryHistory memory = InMemoryHistory.get(processEngine);
+        if (memory != null) {
+            vars.putAll(memory.getVariables(processInstance.getId()));
+            vars.keySet().retainAll(varNames);
+            return vars;
+        }
+        List<HistoricVariableInstance> list = flowableRule.getHistoryService()
+                .createHistoricVariableInstanceQuery()
+                .processInstanceId(processInstance.getId()).list();
+        Map<String, Object> locals = new HashMap<String, Object>();
+        for (HistoricVariableInstance hvi : list) {
+            if (!varNames.contains(hvi.getVariableName())) {
+                continue;
+            }
+            if (isProcessVariable(hvi)) {
+                vars.put(hvi.getVariableName(), hvi.getValue());
+            } else {
+                locals.put(hvi.getVariableName(), hvi.getValue());
+            }
+        }
+        for (Map.Entry<String, Object> local : locals.entrySet()) {
+            if (!vars.containsKey(local.getKey())) {
+                vars.put(local.getKey(), local.getValue());
+            }
+        }
+        return vars;
+    }
+
+    /**
+     * @return true unless the variable is local to a task or to an execution
+     *         other than the process instance itself.
+     */
+    private boolean isProcessVariable(HistoricVariableInstance hvi) {
+        if (hvi.getTaskId() != null) {
+            return false;
+        }
+        // the execution is only exposed by the entity, not the API
+        if (hvi instanceof HistoricVariableInstanceEntityImpl) {
+            String executionId = ((HistoricVariableInstanceEntityImpl) hvi)
+                    .getExecutionId();
+            return executionId == null
+                    || executionId.equals(processInstance.getId());
+        }
+        return true;
+    }
+
     private String adapt(String msgName) {
         return msgName.replace('.', '_');
     }
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd;
+
+import java.util.List;
+
+import org.flowable.engine.HistoryService;
+import org.flowable.engine.ManagementService;
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.history.HistoricActivityInstance;
+import org.flowable.engine.history.HistoricProcessInstance;
+import org.flowable.engine.history.HistoricProcessInstanceQuery;
+import org.flowable.engine.history.NativeHistoricActivityInstanceQuery;
+import org.flowable.engine.repository.ProcessDefinition;
+
+import com.knowprocess.bpm.bdd.metrics.Percentiles;
+
+/**
+ * Percentiles of the durations recorded in history across every finished
+ * instance of a process definition, all versions included.
+ *
+ * <p>
+ * Each percentile is found by counting the finished instances and then
+ * fetching the single instance at the required rank in duration order, so
+ * the cost does not grow with the number of instances held in memory.
+ * Durations are measured by the engine's clock.
+ *
+ * @author Tim Stephenson
+ */
+public class HistoryDurations {
+
+    private final ProcessEngine processEngine;
+
+    public HistoryDurations(ProcessEngine processEngine) {
+        this.processEngine = processEngine;
+    }
+
+    /**
+     * @param processDefinitionKey
+     * @param percentile
+     *            Between 0 and 100.
+     * @return Nearest rank percentile of process durations in milli-seconds,
+     *         null if no instance has finished.
+     */
+    public Long getProcessDurationPercentile(String processDefinitionKey,
+            double percentile) {
+        long count = newProcessQuery(processDefinitionKey).count();
+        if (count == 0) {
+            return null;
+        }
+        List<HistoricProcessInstance> list = newProcessQuery(
+                processDefinitionKey).orderByProcessInstanceDuration().asc()
+                .listPage(Percentiles.rank(percentile, count) - 1, 1);
+        return list.isEmpty() ? null : list.get(0).getDurationInMillis();
+    }
+
+    /**
+     * @param processDefinitionKey
+     * @param activityId
+     *            BPMN id of the activity.
+     * @param percentile
+     *            Between 0 and 100.
+     * @return Nearest rank percentile of activity durations in milli-seconds,
+     *         null if no instance of the activity has finished.
+     */
+    public Long getActivityDurationPercentile(String processDefinitionKey,
+            String activityId, double percentile) {
+        long count = newActivityQuery("SELECT COUNT(*)", processDefinitionKey,
+                activityId, "").count();
+        if (count == 0) {
+            return null;
+        }
+        List<HistoricActivityInstance> list = newActivityQuery("SELECT RES.*",
+                processDefinitionKey, activityId, " ORDER BY RES.DURATION_")
+                .listPage(Percentiles.rank(percentile, count) - 1, 1);
+        return list.isEmpty() ? null : list.get(0).getDurationInMillis();
+    }
+
+    private HistoricProcessInstanceQuery newProcessQuery(
+            String processDefinitionKey) {
+        return getHistoryService().createHistoricProcessInstanceQuery()
+                .processDefinitionKey(processDefinitionKey).finished();
+    }
+
+    private NativeHistoricActivityInstanceQuery newActivityQuery(
+            String select, String processDefinitionKey, String activityId,
+            String orderBy) {
+        ManagementService managementService = processEngine
+                .getManagementService();
+        return getHistoryService()
+                .createNativeHistoricActivityInstanceQuery()
+                .sql(String.format(
+                        "%1$s FROM %2$s RES INNER JOIN %3$s DEF ON RES.PROC_DEF_ID_ = DEF.ID_"
+                                + " WHERE DEF.KEY_ = #{key} AND RES.ACT_ID_ = #{activityId}"
+                                + " AND RES.END_TIME_ IS NOT NULL%4$s",
+                        select,
+                        managementService
+                                .getTableName(HistoricActivityInstance.class),
+                        managementService.getTableName(ProcessDefinition.class),
+                        orderBy))
+                .parameter("key", processDefinitionKey)
+                .parameter("activityId", activityId);
+    }
+
+    private HistoryService getHistoryService() {
+        return processEngine.getHistoryService();
+    }
+}
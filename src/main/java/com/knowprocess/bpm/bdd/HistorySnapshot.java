@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.history.HistoricActivityInstance;
+
+import com.knowprocess.bpm.bdd.history.InMemoryHistory;
+
+/**
+ * Activity history of a single process instance, loaded in one query and
+ * indexed by activity id and type.
+ *
+ * <p>
+ * The snapshot is only reloaded once it has been invalidated, i.e. when the
+ * specification has caused the engine to advance. Since jobs may also be
+ * executed in the background a lookup that finds nothing reloads once before
+ * giving up.
+ *
+ * <p>
+ * When the engine's history is recorded by {@link InMemoryHistory} the
+ * activities are read from memory instead.
+ *
+ * @author Tim Stephenson
+ */
+public class HistorySnapshot {
+
+    private final ProcessEngine processEngine;
+
+    private final String processInstanceId;
+
+    private Map<String, List<HistoricActivityInstance>> byActivityId;
+
+    private Map<String, List<HistoricActivityInstance>> byActivityType;
+
+    private List<HistoricActivityInstance> activities;
+
+    private boolean stale = true;
+
+    public HistorySnapshot(ProcessEngine processEngine,
+            String processInstanceId) {
+        this.processEngine = processEngine;
+        this.processInstanceId = processInstanceId;
+    }
+
+    public String getProcessInstanceId() {
+        return processInstanceId;
+    }
+
+    /**
+     * Mark the snapshot out of date, it will be reloaded on next use.
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * @return All activities of the process instance in the order they
+     *         started.
+     */
+    public List<HistoricActivityInstance> getActivities() {
+        if (stale) {
+            load();
+        }
+        return activities;
+    }
+
+    /**
+     * @param activityId
+     *            BPMN id of the activity.
+     * @return Every instance of the activity, empty if it has not been reached.
+     */
+    public List<HistoricActivityInstance> getByActivityId(String activityId) {
+        return lookup(true, activityId);
+    }
+
+    /**
+     * @param activityType
+     *            For example 'userTask' or 'callActivity'.
+     * @return Every activity instance of the type, empty if there are none.
+     */
+    public List<HistoricActivityInstance> getByActivityType(
+            String activityType) {
+        return lookup(false, activityType);
+    }
+
+    private List<HistoricActivityInstance> lookup(boolean byId, String key) {
+        boolean loaded = false;
+        if (stale) {
+            load();
+            loaded = true;
+        }
+        List<HistoricActivityInstance> list = (byId ? byActivityId
+                : byActivityType).get(key);
+        if (list == null && !loaded) {
+            load();
+            list = (byId ? byActivityId : byActivityType).get(key);
+        }
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return list;
+    }
+
+    protected void load() {
+        InMemoryHistory memory = InMemoryHistory.get(processEngine);
+        if (memory == null) {
+            activities = processEngine.getHistoryService()
+                    .createHistoricActivityInstanceQuery()
+                    .processInstanceId(processInstanceId)
+                    .orderByHistoricActivityInstanceStartTime().asc().list();
+        } else {
+            activities = memory.getActivities(processInstanceId);
+        }
+        byActivityId = new HashMap<String, List<HistoricActivityInstance>>();
+        byActivityType = new HashMap<String, List<HistoricActivityInstance>>();
+        for (HistoricActivityInstance hai : activities) {
+            index(byActivityId, hai.getActivityId(), hai);
+            index(byActivityType, hai.getActivityType(), hai);
+        }
+        stale = false;
+    }
+
+    private void index(Map<String, List<HistoricActivityInstance>> map,
+            String key, HistoricActivityInstance hai) {
+        List<HistoricActivityInstance> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<HistoricActivityInstance>();
+            map.put(key, list);
+        }
+        list.add(hai);
+    }
+}
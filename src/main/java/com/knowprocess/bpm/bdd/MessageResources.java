@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.flowable.engine.common.api.FlowableException;
+
+/**
+ * Loads message payloads from the classpath, keeping recently used ones in
+ * memory.
+ *
+ * <p>
+ * Each resource is decoded (as UTF-8) once and held as a single string until
+ * evicted. The cache is bounded by the total number of characters held, the
+ * least recently used payloads are evicted first and payloads larger than the
+ * whole cache are never held.
+ *
+ * @author Tim Stephenson
+ */
+public class MessageResources {
+
+    /**
+     * System property that overrides {@link #DEFAULT_MAX_CHARS} for the shared
+     * instance.
+     */
+    public static final String MAX_CHARS_PROPERTY = "bpm-bdd.message-cache.max-chars";
+
+    public static final long DEFAULT_MAX_CHARS = 32 * 1024 * 1024;
+
+    private static final MessageResources instance = new MessageResources(
+            Long.getLong(MAX_CHARS_PROPERTY, DEFAULT_MAX_CHARS));
+
+    private final long maxChars;
+
+    private final LinkedHashMap<String, String> cache = new LinkedHashMap<String, String>(
+            16, 0.75f, true);
+
+    private long chars;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * @return The cache shared by all specifications in this JVM.
+     */
+    public static MessageResources getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param maxChars
+     *            Limit on the total size of payloads held.
+     */
+    public MessageResources(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * @param base
+     *            Class that relative resource names are resolved against, as
+     *            for {@link Class#getResourceAsStream(String)}.
+     * @param resource
+     *            Resource name.
+     * @return true if the resource exists.
+     */
+    public boolean exists(Class<?> base, String resource) {
+        String name = resolve(base, resource);
+        synchronized (this) {
+            if (cache.containsKey(name)) {
+                return true;
+            }
+        }
+        return getClassLoader(base).getResource(name) != null;
+    }
+
+    /**
+     * @param base
+     *            Class that relative resource names are resolved against, as
+     *            for {@link Class#getResourceAsStream(String)}.
+     * @param resource
+     *            Resource name.
+     * @return Content of the resource or null if there is no such resource.
+     */
+    public String getResource(Class<?> base, String resource) {
+        String name = resolve(base, resource);
+        synchronized (this) {
+            String content = cache.get(name);
+            if (content != null) {
+                hits++;
+                return content;
+            }
+            misses++;
+        }
+
+        InputStream is = getClassLoader(base).getResourceAsStream(name);
+        if (is == null) {
+            return null;
+        }
+        String content = read(name, is);
+        put(name, content);
+        return content;
+    }
+
+    /**
+     * Forget all payloads.
+     */
+    public synchronized void clear() {
+        cache.clear();
+        chars = 0;
+    }
+
+    /**
+     * @return Total characters currently held.
+     */
+    public synchronized long getChars() {
+        return chars;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private synchronized void put(String name, String content) {
+        if (content.length() > maxChars) {
+            return;
+        }
+        String previous = cache.put(name, content);
+        if (previous != null) {
+            chars -= previous.length();
+        }
+        chars += content.length();
+        Iterator<Map.Entry<String, String>> it = cache.entrySet().iterator();
+        while (chars > maxChars && it.hasNext()) {
+            Map.Entry<String, String> eldest = it.next();
+            chars -= eldest.getValue().length();
+            it.remove();
+        }
+    }
+
+    private String read(String name, InputStream is) {
+        Reader reader = null;
+        try {
+            int available = is.available();
+            StringBuilder sb = new StringBuilder(available > 0 ? available
+                    : 8192);
+            reader = new InputStreamReader(is, "UTF-8");
+            char[] buf = new char[8192];
+            int read;
+            while ((read = reader.read(buf)) != -1) {
+                sb.append(buf, 0, read);
+            }
+            return sb.toString();
+        } catch (IOException e) {
+            throw new FlowableException("Unable to read resource '" + name
+                    + "'", e);
+        } finally {
+            try {
+                if (reader == null) {
+                    is.close();
+                } else {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                ;
+            }
+        }
+    }
+
+    /**
+     * @return Absolute name without leading slash, as would be passed to
+     *         {@link ClassLoader#getResource(String)}.
+     */
+    private String resolve(Class<?> base, String resource) {
+        if (resource.startsWith("/")) {
+            return resource.substring(1);
+        }
+        String className = base.getName();
+        int idx = className.lastIndexOf('.');
+        if (idx == -1) {
+            return resource;
+        }
+        return className.substring(0, idx).replace('.', '/') + '/' + resource;
+    }
+
+    private ClassLoader getClassLoader(Class<?> base) {
+        ClassLoader cl = base.getClassLoader();
+        return cl == null ? ClassLoader.getSystemClassLoader() : cl;
+    }
+}
@@ -0,0 +1,272 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.flowable.engine.HistoryService;
+import org.flowable.engine.ManagementService;
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.query.NativeQuery;
+import org.flowable.engine.history.HistoricActivityInstance;
+import org.flowable.engine.history.HistoricProcessInstance;
+import org.flowable.engine.history.NativeHistoricActivityInstanceQuery;
+import org.flowable.engine.history.NativeHistoricProcessInstanceQuery;
+
+import com.knowprocess.bpm.bdd.history.InMemoryHistory;
+
+/**
+ * The tree of process instances started, directly or indirectly, by call
+ * activities of a root process instance.
+ *
+ * <p>
+ * The tree is loaded breadth first, one level at a time, with each level
+ * fetched by a small number of queries listing the children of many parents
+ * at once. Once loaded it is held in memory until invalidated. When the
+ * engine's history is recorded by {@link InMemoryHistory} no queries are made.
+ *
+ * @author Tim Stephenson
+ */
+public class ProcessInstanceTree {
+
+    /**
+     * Maximum number of ids to put in a single SQL IN clause.
+     */
+    public static final int BATCH_SIZE = 500;
+
+    private final ProcessEngine processEngine;
+
+    private final String rootId;
+
+    private List<List<HistoricProcessInstance>> levels;
+
+    private String processInstanceTable;
+
+    private String activityInstanceTable;
+
+    private boolean stale = true;
+
+    public ProcessInstanceTree(ProcessEngine processEngine, String rootId) {
+        this.processEngine = processEngine;
+        this.rootId = rootId;
+    }
+
+    public String getRootId() {
+        return rootId;
+    }
+
+    /**
+     * Mark the tree out of date, it will be reloaded on next use.
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * @return Descendants of the root grouped by depth, the first list holds
+     *         the instances called directly by the root.
+     */
+    public List<List<HistoricProcessInstance>> getLevels() {
+        if (stale) {
+            load();
+        }
+        return levels;
+    }
+
+    /**
+     * @return Ids of the root and all its descendants.
+     */
+    public List<String> getProcessInstanceIds() {
+        List<String> ids = new ArrayList<String>();
+        ids.add(rootId);
+        for (List<HistoricProcessInstance> level : getLevels()) {
+            for (HistoricProcessInstance hpi : level) {
+                ids.add(hpi.getId());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param subProcDefKey
+     *            Key (id without vsn info) of the sub-process.
+     * @return Every instance of the sub-process in the tree.
+     */
+    public List<HistoricProcessInstance> findCalls(String subProcDefKey) {
+        List<HistoricProcessInstance> calls = new ArrayList<HistoricProcessInstance>();
+        for (List<HistoricProcessInstance> level : getLevels()) {
+            for (HistoricProcessInstance hpi : level) {
+                if (isInstanceOf(hpi, subProcDefKey)) {
+                    calls.add(hpi);
+                }
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * @param subProcDefKey
+     *            Key (id without vsn info) of the sub-process.
+     * @return Depth at which the sub-process was first called, 1 meaning
+     *         called by the root, or -1 if it was not called.
+     */
+    public int getDepth(String subProcDefKey) {
+        List<List<HistoricProcessInstance>> levels = getLevels();
+        for (int i = 0; i < levels.size(); i++) {
+            for (HistoricProcessInstance hpi : levels.get(i)) {
+                if (isInstanceOf(hpi, subProcDefKey)) {
+                    return i + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Depth of the deepest call, 0 if the root called no sub-process.
+     */
+    public int getMaxDepth() {
+        return getLevels().size();
+    }
+
+    /**
+     * @param activityId
+     *            BPMN id of the activity.
+     * @return Every instance of the activity in the sub-processes of the tree,
+     *         the root itself is not included.
+     */
+    public List<HistoricActivityInstance> findSubProcessActivities(
+            String activityId) {
+        List<String> ids = getProcessInstanceIds();
+        ids = ids.subList(1, ids.size());
+        List<HistoricActivityInstance> activities = new ArrayList<HistoricActivityInstance>();
+        InMemoryHistory memory = InMemoryHistory.get(processEngine);
+        if (memory != null) {
+            for (String id : ids) {
+                for (HistoricActivityInstance hai : memory.getActivities(id)) {
+                    if (activityId.equals(hai.getActivityId())) {
+                        activities.add(hai);
+                    }
+                }
+            }
+            return activities;
+        }
+        for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+            List<String> batch = ids.subList(from,
+                    Math.min(from + BATCH_SIZE, ids.size()));
+            NativeHistoricActivityInstanceQuery query = getHistoryService()
+                    .createNativeHistoricActivityInstanceQuery();
+            query.sql(String.format(
+                    "SELECT * FROM %1$s WHERE ACT_ID_ = #{activityId} AND PROC_INST_ID_ IN (%2$s)",
+                    getActivityInstanceTable(), bindIds(query, batch)))
+                    .parameter("activityId", activityId);
+            activities.addAll(query.list());
+        }
+        return activities;
+    }
+
+    protected void load() {
+        List<List<HistoricProcessInstance>> levels = new ArrayList<List<HistoricProcessInstance>>();
+        List<String> parentIds = Collections.singletonList(rootId);
+        while (!parentIds.isEmpty()) {
+            List<HistoricProcessInstance> level = loadChildren(parentIds);
+            if (level.isEmpty()) {
+                break;
+            }
+            levels.add(level);
+            parentIds = new ArrayList<String>(level.size());
+            for (HistoricProcessInstance hpi : level) {
+                parentIds.add(hpi.getId());
+            }
+        }
+        this.levels = levels;
+        stale = false;
+    }
+
+    private List<HistoricProcessInstance> loadChildren(List<String> parentIds) {
+        InMemoryHistory memory = InMemoryHistory.get(processEngine);
+        if (memory != null) {
+            return memory.getSubProcessInstances(parentIds);
+        }
+        List<HistoricProcessInstance> children = new ArrayList<HistoricProcessInstance>();
+        for (int from = 0; from < parentIds.size(); from += BATCH_SIZE) {
+            List<String> batch = parentIds.subList(from,
+                    Math.min(from + BATCH_SIZE, parentIds.size()));
+            NativeHistoricProcessInstanceQuery query = getHistoryService()
+                    .createNativeHistoricProcessInstanceQuery();
+            query.sql(String.format(
+                    "SELECT * FROM %1$s WHERE SUPER_PROCESS_INSTANCE_ID_ IN (%2$s) ORDER BY START_TIME_",
+                    getProcessInstanceTable(), bindIds(query, batch)));
+            children.addAll(query.list());
+        }
+        return children;
+    }
+
+    /**
+     * Add each id as a parameter of the query.
+     *
+     * @return Comma separated parameter references for use in an IN clause.
+     */
+    protected static String bindIds(NativeQuery<?, ?> query, List<String> ids) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("#{id").append(i).append('}');
+            query.parameter("id" + i, ids.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Process definition ids take the form <code>key:version:id</code>, so
+     * matching the key and its separator avoids matching other keys it is a
+     * prefix of, e.g. <code>Example2Child</code> for <code>Example2</code>.
+     */
+    private boolean isInstanceOf(HistoricProcessInstance hpi,
+            String subProcDefKey) {
+        return hpi.getProcessDefinitionId().startsWith(subProcDefKey + ":");
+    }
+
+    private HistoryService getHistoryService() {
+        return processEngine.getHistoryService();
+    }
+
+    private String getProcessInstanceTable() {
+        if (processInstanceTable == null) {
+            processInstanceTable = getManagementService().getTableName(
+                    HistoricProcessInstance.class);
+        }
+        return processInstanceTable;
+    }
+
+    private String getActivityInstanceTable() {
+        if (activityInstanceTable == null) {
+            activityInstanceTable = getManagementService().getTableName(
+                    HistoricActivityInstance.class);
+        }
+        return activityInstanceTable;
+    }
+
+    private ManagementService getManagementService() {
+        return processEngine.getManagementService();
+    }
+}
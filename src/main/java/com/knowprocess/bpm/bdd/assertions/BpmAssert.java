@@ -6,42 +6,131 @@ import static org.junit.Assert.assertNotNull;
 import org.flowable.engine.ProcessEngine;
 import org.flowable.engine.runtime.ProcessInstance;
 
+import com.knowprocess.bpm.bdd.history.InMemoryHistory;
+
+/**
+ * Process assertions.
+ *
+ * <p>
+ * Each assertion is available in two forms: one taking the process engine
+ * explicitly and one using the engine bound to the calling thread. The latter
+ * allows scenarios on different threads to run against different engines
+ * without interfering with each other. When no engine is bound to the calling
+ * thread the assertions fall back to {@link #processEngine}.
+ *
+ * <p>
+ * Assertions on history read from {@link InMemoryHistory} when it is installed
+ * on the engine.
+ *
+ * @author Tim Stephenson
+ */
 public class BpmAssert {
 
+    /**
+     * Engine used by threads that have none bound.
+     *
+     * @deprecated Shared by every thread, so scenarios running concurrently
+     *             against different engines will interfere; use
+     *             {@link #setProcessEngine(ProcessEngine)} instead.
+     */
+    @Deprecated
     public static ProcessEngine processEngine;
 
+    private static final ThreadLocal<ProcessEngine> boundEngine = new ThreadLocal<ProcessEngine>();
+
+    /**
+     * Bind the process engine that assertions made on the current thread will
+     * use.
+     *
+     * @param engine
+     *            The engine to bind, null to unbind.
+     */
+    public static void setProcessEngine(ProcessEngine engine) {
+        if (engine == null) {
+            boundEngine.remove();
+        } else {
+            boundEngine.set(engine);
+        }
+    }
+
+    /**
+     * Release the process engine bound to the current thread.
+     */
+    public static void clearProcessEngine() {
+        boundEngine.remove();
+    }
+
+    /**
+     * Release the process engine bound to the current thread if it is the one
+     * given, leaving a binding made by someone else in place.
+     *
+     * @param engine
+     *            The engine to unbind.
+     */
+    public static void clearProcessEngine(ProcessEngine engine) {
+        if (boundEngine.get() == engine) {
+            boundEngine.remove();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
     protected static ProcessEngine getProcessEngine() {
-        if (processEngine == null) {
+        ProcessEngine engine = boundEngine.get();
+        if (engine == null) {
+            engine = processEngine;
+        }
+        if (engine == null) {
             throw new IllegalStateException(
                     "You must set the process engine before invoking assertions");
         }
-        return processEngine;
+        return engine;
     }
 
     public static void assertProcessEndedAndInExclusiveEndEvent(
             ProcessInstance processInstance, String endEventId) {
+        assertProcessEndedAndInExclusiveEndEvent(getProcessEngine(),
+                processInstance, endEventId);
+    }
+
+    public static void assertProcessEndedAndInExclusiveEndEvent(
+            ProcessEngine engine, ProcessInstance processInstance,
+            String endEventId) {
         assertEquals(endEventId,
-                getProcessEngine().getHistoryService()
-                        .createHistoricProcessInstanceQuery()
-                        .processInstanceId(processInstance.getId())
-                        .singleResult().getEndActivityId());
+                InMemoryHistory.findProcessInstance(engine,
+                        processInstance.getId()).getEndActivityId());
     }
 
     public static void assertProcessVariableLatestValueEquals(
             ProcessInstance processInstance, String key, Object value) {
-        assertEquals(value, getProcessEngine().getRuntimeService()
+        assertProcessVariableLatestValueEquals(getProcessEngine(),
+                processInstance, key, value);
+    }
+
+    public static void assertProcessVariableLatestValueEquals(
+            ProcessEngine engine, ProcessInstance processInstance, String key,
+            Object value) {
+        assertEquals(value, engine.getRuntimeService()
                 .getVariableInstance(processInstance.getId(), key));
     }
 
     public static void assertProcessEnded(ProcessInstance processInstance) {
-        assertNotNull(getProcessEngine().getHistoryService()
-                .createHistoricProcessInstanceQuery()
-                .processInstanceId(processInstance.getId()).singleResult()
-                .getEndTime());
+        assertProcessEnded(getProcessEngine(), processInstance);
+    }
+
+    public static void assertProcessEnded(ProcessEngine engine,
+            ProcessInstance processInstance) {
+        assertNotNull(InMemoryHistory.findProcessInstance(engine,
+                processInstance.getId()).getEndTime());
     }
 
     public static void assertProcessEndedAndInEndEvents(
             ProcessInstance processInstance, String[] endEventIds) {
+        assertProcessEndedAndInEndEvents(getProcessEngine(), processInstance,
+                endEventIds);
+    }
+
+    public static void assertProcessEndedAndInEndEvents(ProcessEngine engine,
+            ProcessInstance processInstance, String[] endEventIds) {
         // TODO Auto-generated method stub
 
     }
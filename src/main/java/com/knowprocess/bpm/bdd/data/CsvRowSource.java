@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads rows from comma separated values, the first record naming the
+ * variables.
+ *
+ * <p>
+ * Fields may be quoted with double quotes, in which case they may contain
+ * commas, line breaks and doubled quotes. Values are read as strings, empty
+ * fields become null.
+ *
+ * @author Tim Stephenson
+ */
+public class CsvRowSource implements RowSource {
+
+    private final BufferedReader reader;
+
+    private final char separator;
+
+    private List<String> header;
+
+    private int recordNumber;
+
+    public CsvRowSource(File file) throws IOException {
+        this(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    }
+
+    public CsvRowSource(Reader reader) {
+        this(reader, ',');
+    }
+
+    public CsvRowSource(Reader reader, char separator) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader
+                : new BufferedReader(reader);
+        this.separator = separator;
+    }
+
+    public Map<String, Object> next() throws IOException {
+        if (header == null) {
+            header = readRecord();
+            if (header == null) {
+                return null;
+            }
+        }
+        List<String> fields;
+        do {
+            fields = readRecord();
+            if (fields == null) {
+                return null;
+            }
+        } while (fields.size() == 1 && fields.get(0) == null);
+        if (fields.size() > header.size()) {
+            throw new IOException(String.format(
+                    "Record %1$d has %2$d fields but the header names only %3$d",
+                    recordNumber, fields.size(), header.size()));
+        }
+        Map<String, Object> row = new HashMap<String, Object>();
+        for (int i = 0; i < header.size(); i++) {
+            row.put(header.get(i), i < fields.size() ? fields.get(i) : null);
+        }
+        return row;
+    }
+
+    /**
+     * @return Fields of the next record, null at end of input.
+     */
+    private List<String> readRecord() throws IOException {
+        int c = reader.read();
+        if (c == -1) {
+            return null;
+        }
+        recordNumber++;
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quote in record "
+                            + recordNumber);
+                } else if (c == '"') {
+                    reader.mark(1);
+                    int next = reader.read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        reader.reset();
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+                wasQuoted = true;
+            } else if (c == separator) {
+                fields.add(toValue(field, wasQuoted));
+                field.setLength(0);
+                wasQuoted = false;
+            } else if (c == '\n' || c == '\r' || c == -1) {
+                if (c == '\r') {
+                    reader.mark(1);
+                    if (reader.read() != '\n') {
+                        reader.reset();
+                    }
+                }
+                fields.add(toValue(field, wasQuoted));
+                return fields;
+            } else {
+                field.append((char) c);
+            }
+            c = reader.read();
+        }
+    }
+
+    private String toValue(StringBuilder field, boolean wasQuoted) {
+        if (field.length() == 0 && !wasQuoted) {
+            return null;
+        }
+        return field.toString();
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.data;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Outcome of running a scenario over every row of a {@link RowSource}.
+ *
+ * @author Tim Stephenson
+ */
+public class DataDrivenResult {
+
+    private final String name;
+
+    private final long rows;
+
+    private final long failed;
+
+    private final List<RowFailure> failures;
+
+    private final long elapsedNanos;
+
+    public DataDrivenResult(String name, long rows, long failed,
+            List<RowFailure> failures, long elapsedNanos) {
+        this.name = name;
+        this.rows = rows;
+        this.failed = failed;
+        this.failures = Collections.unmodifiableList(failures);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Number of rows run.
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return Number of rows that failed.
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return The first failures, up to
+     *         {@link DataDrivenRunner#MAX_RECORDED_FAILURES}, in the order
+     *         they happened.
+     */
+    public List<RowFailure> getFailures() {
+        return failures;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return Rows run per second.
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.ENGLISH,
+                "DATA: %1$s, %2$d rows (%3$d failed) in %4$.1f ms, %5$.1f rows/s",
+                name, rows, failed, elapsedNanos / 1e6, getThroughput()));
+        for (RowFailure failure : failures) {
+            sb.append(System.getProperty("line.separator")).append("  ")
+                    .append(failure);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A row whose scenario threw an exception.
+     */
+    public static class RowFailure {
+
+        private final long rowNumber;
+
+        private final Throwable cause;
+
+        public RowFailure(long rowNumber, Throwable cause) {
+            this.rowNumber = rowNumber;
+            this.cause = cause;
+        }
+
+        /**
+         * @return Position of the row in the source, from 1.
+         */
+        public long getRowNumber() {
+            return rowNumber;
+        }
+
+        public Throwable getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            return "row " + rowNumber + ": " + cause;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.test.FlowableRule;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.report.BddReporter;
+
+/**
+ * Runs a scenario once for every row of a {@link RowSource}, in parallel.
+ *
+ * <pre>
+ * DataDrivenResult result = new DataDrivenRunner(flowableRule, "orders")
+ *         .withThreads(8)
+ *         .run(new CsvRowSource(file), (spec, row) -&gt; spec
+ *                 .whenEventOccurs("Order received", "Order", buildSet(), row, null)
+ *                 .thenProcessIsComplete());
+ * </pre>
+ *
+ * <p>
+ * Rows are read on the calling thread only as fast as they are run, at most
+ * {@link #withMaxInFlight(int)} rows being held at once, so the source may be
+ * far larger than memory. All rows share the rule's engine and deployments.
+ *
+ * @author Tim Stephenson
+ */
+public class DataDrivenRunner {
+
+    /**
+     * Number of failures whose details are kept, later failures are only
+     * counted.
+     */
+    public static final int MAX_RECORDED_FAILURES = 100;
+
+    private final FlowableRule flowableRule;
+
+    private final String name;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int maxInFlight;
+
+    private ExecutorService executor;
+
+    private BddReporter reporter;
+
+    public DataDrivenRunner(FlowableRule flowableRule, String name) {
+        this.flowableRule = flowableRule;
+        this.name = name;
+    }
+
+    /**
+     * @param threads
+     *            Size of the worker pool, ignored if an executor is supplied.
+     * @return The updated runner.
+     */
+    public DataDrivenRunner withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param maxInFlight
+     *            Most rows read but not yet finished, by default twice the
+     *            number of threads.
+     * @return The updated runner.
+     */
+    public DataDrivenRunner withMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * @param executor
+     *            Runs the rows, it is not shut down by the runner.
+     * @return The updated runner.
+     */
+    public DataDrivenRunner withExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @param reporter
+     *            Destination for the BDD phrases of every row, by default
+     *            {@link BpmSpec#getDefaultReporter()}.
+     * @return The updated runner.
+     */
+    public DataDrivenRunner withReporter(BddReporter reporter) {
+        this.reporter = reporter;
+        return this;
+    }
+
+    /**
+     * Run the scenario for every row, waiting for all to finish. The source
+     * is closed afterwards.
+     *
+     * @param source
+     * @param scenario
+     * @return Number of rows run and details of any that failed.
+     */
+    public DataDrivenResult run(RowSource source, final RowScenario scenario) {
+        ExecutorService executor = this.executor;
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+        int permits = maxInFlight > 0 ? maxInFlight : threads * 2;
+        final Semaphore inFlight = new Semaphore(permits);
+        final AtomicLong failed = new AtomicLong();
+        final List<DataDrivenResult.RowFailure> failures = new ArrayList<DataDrivenResult.RowFailure>();
+        final BddReporter rowReporter = reporter == null ? BpmSpec
+                .getDefaultReporter() : reporter;
+        long rows = 0;
+        long start = System.nanoTime();
+        try {
+            Map<String, Object> row;
+            while ((row = source.next()) != null) {
+                final Map<String, Object> currentRow = row;
+                final long rowNumber = ++rows;
+                inFlight.acquire();
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            BpmSpec spec = null;
+                            try {
+                                spec = new BpmSpec(flowableRule, name + "#"
+                                        + rowNumber, rowReporter);
+                                scenario.run(spec, currentRow);
+                            } catch (Throwable t) {
+                                failed.incrementAndGet();
+                                synchronized (failures) {
+                                    if (failures.size() < MAX_RECORDED_FAILURES) {
+                                        failures.add(new DataDrivenResult.RowFailure(
+                                                rowNumber, t));
+                                    }
+                                }
+                            } finally {
+                                if (spec != null) {
+                                    spec.finished();
+                                }
+                                inFlight.release();
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+            // all permits back means every row has finished
+            inFlight.acquire(permits);
+            inFlight.release(permits);
+        } catch (IOException e) {
+            throw new FlowableException("Unable to read row " + (rows + 1)
+                    + " of " + name, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FlowableException("Interrupted running " + name, e);
+        } finally {
+            if (this.executor == null) {
+                executor.shutdownNow();
+            }
+            try {
+                source.close();
+            } catch (IOException e) {
+                ;
+            }
+        }
+        synchronized (failures) {
+            return new DataDrivenResult(name, rows, failed.get(),
+                    new ArrayList<DataDrivenResult.RowFailure>(failures),
+                    System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Reads rows from newline delimited JSON, one object per line. Blank lines
+ * are skipped.
+ *
+ * @author Tim Stephenson
+ */
+public class NdjsonRowSource implements RowSource {
+
+    private static final ObjectReader READER = new ObjectMapper()
+            .readerFor(Map.class);
+
+    private final BufferedReader reader;
+
+    private int lineNumber;
+
+    public NdjsonRowSource(File file) throws IOException {
+        this(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    }
+
+    public NdjsonRowSource(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader
+                : new BufferedReader(reader);
+    }
+
+    public Map<String, Object> next() throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null) {
+                return null;
+            }
+            lineNumber++;
+        } while (line.trim().length() == 0);
+        try {
+            return READER.readValue(line);
+        } catch (IOException e) {
+            throw new IOException("Malformed JSON at line " + lineNumber
+                    + ": " + e.getMessage(), e);
+        }
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+}
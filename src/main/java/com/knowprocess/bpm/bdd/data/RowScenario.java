@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.data;
+
+import java.util.Map;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+
+/**
+ * A scenario run once for each row of a {@link RowSource}, typically passing
+ * the row to <code>whenEventOccurs</code> as the variables to put.
+ *
+ * @author Tim Stephenson
+ */
+public interface RowScenario {
+
+    /**
+     * @param spec
+     *            A fresh specification for this row.
+     * @param row
+     *            The input row, the scenario is free to change it.
+     * @throws Exception
+     *             To fail this row, the remaining rows are still run.
+     */
+    void run(BpmSpec spec, Map<String, Object> row) throws Exception;
+}
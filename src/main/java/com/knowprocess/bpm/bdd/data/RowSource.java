@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Supplies the input rows of a data-driven scenario one at a time, so that
+ * no more than one row need be held in memory.
+ *
+ * @author Tim Stephenson
+ */
+public interface RowSource extends Closeable {
+
+    /**
+     * @return The next row as variable name to value, null once all rows
+     *         have been read.
+     * @throws IOException
+     *             If the source cannot be read or is malformed.
+     */
+    Map<String, Object> next() throws IOException;
+}
@@ -0,0 +1,339 @@
+package com.knowprocess.bpm.bdd.ext;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.query.NativeQuery;
+import org.flowable.engine.history.HistoricActivityInstance;
+import org.flowable.engine.history.HistoricDetail;
+import org.flowable.engine.history.HistoricFormProperty;
+import org.flowable.engine.history.HistoricVariableUpdate;
+import org.flowable.engine.history.NativeHistoricActivityInstanceQuery;
+import org.flowable.engine.history.NativeHistoricDetailQuery;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.knowprocess.bpm.bdd.history.InMemoryHistory;
+
+/**
+ * Writes the audit trail of a process instance, and of any process instances
+ * it calls, as newline delimited JSON.
+ *
+ * <p>
+ * History is read a page at a time and each row written as soon as it is
+ * read, so memory use depends on the page size rather than the size of the
+ * history. Every line is an object whose <code>type</code> is one of
+ * <code>activity</code>, <code>variableUpdate</code> or
+ * <code>formProperty</code>, or <code>variable</code> for the final values
+ * recorded by {@link InMemoryHistory} when that is installed.
+ *
+ * <p>
+ * Pages are ordered by time and then by the unique id of the row, so no row
+ * is skipped or repeated when several share a time. Other readers of the
+ * audit trail page through it the same way with
+ * {@link #forEachActivity(String, PageHandler)} and
+ * {@link #forEachDetail(String, PageHandler)}.
+ *
+ * @author Tim Stephenson
+ */
+public class AuditTrailExporter {
+
+    /**
+     * Receives the audit trail a page at a time.
+     *
+     * @param <T>
+     *            Type of history row.
+     * @param <E>
+     *            Exception the handler may throw.
+     */
+    public interface PageHandler<T, E extends Exception> {
+        void handle(List<T> page) throws E;
+    }
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private final ProcessEngine processEngine;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    public AuditTrailExporter(ProcessEngine processEngine) {
+        this.processEngine = processEngine;
+    }
+
+    /**
+     * @param pageSize
+     *            Number of history rows to read per query.
+     * @return This exporter.
+     */
+    public AuditTrailExporter withPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Export to a gzip compressed file.
+     *
+     * @param processInstanceId
+     *            Process instance whose history to export.
+     * @param file
+     *            File to write, replacing any existing content.
+     * @return Number of records written.
+     */
+    public long export(String processInstanceId, File file) throws IOException {
+        OutputStream out = new GZIPOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            return export(processInstanceId, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Export to a stream, which is left open.
+     *
+     * @param processInstanceId
+     *            Process instance whose history to export.
+     * @param out
+     *            Stream to write UTF-8 encoded records to.
+     * @return Number of records written.
+     */
+    public long export(String processInstanceId, OutputStream out)
+            throws IOException {
+        JsonGenerator generator = new JsonFactory().createGenerator(out,
+                JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.setRootValueSeparator(null);
+        long count = 0;
+        Deque<String> pending = new ArrayDeque<String>();
+        pending.add(processInstanceId);
+        while (!pending.isEmpty()) {
+            String piid = pending.poll();
+            count += exportActivities(generator, piid, pending);
+            count += exportData(generator, piid);
+        }
+        generator.close();
+        return count;
+    }
+
+    private long exportActivities(final JsonGenerator generator,
+            String piid, final Deque<String> calledInstances)
+            throws IOException {
+        return forEachActivity(piid,
+                new PageHandler<HistoricActivityInstance, IOException>() {
+                    public void handle(List<HistoricActivityInstance> page)
+                            throws IOException {
+                        for (HistoricActivityInstance ai : page) {
+                            writeActivity(generator, ai, calledInstances);
+                        }
+                    }
+                });
+    }
+
+    private long exportData(final JsonGenerator generator, String piid)
+            throws IOException {
+        long count = 0;
+        InMemoryHistory memory = InMemoryHistory.get(processEngine);
+        if (memory != null) {
+            for (Map.Entry<String, Object> entry : memory.getVariables(piid)
+                    .entrySet()) {
+                generator.writeStartObject();
+                generator.writeStringField("type", "variable");
+                generator.writeStringField("processInstanceId", piid);
+                generator.writeStringField("variableName", entry.getKey());
+                writeValue(generator, "value", entry.getValue());
+                endRecord(generator);
+                count++;
+            }
+            return count;
+        }
+        return forEachDetail(piid,
+                new PageHandler<HistoricDetail, IOException>() {
+                    public void handle(List<HistoricDetail> page)
+                            throws IOException {
+                        for (HistoricDetail detail : page) {
+                            writeDetail(generator, detail);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Pass the activity instances of a process instance to the handler a page
+     * at a time, in start time order. When {@link InMemoryHistory} is
+     * installed they are passed as a single page.
+     *
+     * @param processInstanceId
+     *            Process instance whose activities to read.
+     * @param handler
+     *            Receives each page.
+     * @return Number of activity instances read.
+     */
+    public <E extends Exception> long forEachActivity(
+            String processInstanceId,
+            PageHandler<HistoricActivityInstance, E> handler) throws E {
+        InMemoryHistory memory = InMemoryHistory.get(processEngine);
+        if (memory != null) {
+            List<HistoricActivityInstance> activities = memory
+                    .getActivities(processInstanceId);
+            handler.handle(activities);
+            return activities.size();
+        }
+        NativeHistoricActivityInstanceQuery query = processEngine
+                .getHistoryService()
+                .createNativeHistoricActivityInstanceQuery();
+        query.sql(String.format(
+                "SELECT * FROM %1$s WHERE PROC_INST_ID_ = #{processInstanceId} ORDER BY START_TIME_, ID_",
+                getTableName(HistoricActivityInstance.class))).parameter(
+                "processInstanceId", processInstanceId);
+        return forEachPage(query, handler);
+    }
+
+    /**
+     * Pass the variable updates and form properties of a process instance to
+     * the handler a page at a time, in time order. Nothing is read when
+     * {@link InMemoryHistory} is installed since it records only the final
+     * value of each variable.
+     *
+     * @param processInstanceId
+     *            Process instance whose details to read.
+     * @param handler
+     *            Receives each page.
+     * @return Number of details read.
+     */
+    public <E extends Exception> long forEachDetail(String processInstanceId,
+            PageHandler<HistoricDetail, E> handler) throws E {
+        if (InMemoryHistory.get(processEngine) != null) {
+            return 0;
+        }
+        NativeHistoricDetailQuery query = processEngine.getHistoryService()
+                .createNativeHistoricDetailQuery();
+        query.sql(String.format(
+                "SELECT * FROM %1$s WHERE PROC_INST_ID_ = #{processInstanceId} ORDER BY TIME_, ID_",
+                getTableName(HistoricDetail.class))).parameter(
+                "processInstanceId", processInstanceId);
+        return forEachPage(query, handler);
+    }
+
+    private <T, E extends Exception> long forEachPage(
+            NativeQuery<?, T> query, PageHandler<T, E> handler) throws E {
+        long count = 0;
+        List<T> page;
+        do {
+            page = query.listPage((int) count, pageSize);
+            if (!page.isEmpty()) {
+                handler.handle(page);
+            }
+            count += page.size();
+        } while (page.size() == pageSize);
+        return count;
+    }
+
+    private void writeActivity(JsonGenerator generator,
+            HistoricActivityInstance ai, Deque<String> calledInstances)
+            throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("type", "activity");
+        generator.writeStringField("id", ai.getId());
+        generator.writeStringField("processInstanceId",
+                ai.getProcessInstanceId());
+        generator.writeStringField("executionId", ai.getExecutionId());
+        generator.writeStringField("activityId", ai.getActivityId());
+        generator.writeStringField("activityName", ai.getActivityName());
+        generator.writeStringField("activityType", ai.getActivityType());
+        generator.writeStringField("assignee", ai.getAssignee());
+        generator.writeStringField("taskId", ai.getTaskId());
+        generator.writeStringField("calledProcessInstanceId",
+                ai.getCalledProcessInstanceId());
+        writeValue(generator, "startTime", ai.getStartTime());
+        writeValue(generator, "endTime", ai.getEndTime());
+        writeValue(generator, "durationInMillis", ai.getDurationInMillis());
+        endRecord(generator);
+        if (ai.getCalledProcessInstanceId() != null) {
+            calledInstances.add(ai.getCalledProcessInstanceId());
+        }
+    }
+
+    private void writeDetail(JsonGenerator generator, HistoricDetail detail)
+            throws IOException {
+        generator.writeStartObject();
+        if (detail instanceof HistoricVariableUpdate) {
+            HistoricVariableUpdate update = (HistoricVariableUpdate) detail;
+            generator.writeStringField("type", "variableUpdate");
+            generator.writeStringField("variableName",
+                    update.getVariableName());
+            generator.writeStringField("variableType",
+                    update.getVariableTypeName());
+            generator.writeNumberField("revision", update.getRevision());
+            writeValue(generator, "value", update.getValue());
+        } else if (detail instanceof HistoricFormProperty) {
+            HistoricFormProperty property = (HistoricFormProperty) detail;
+            generator.writeStringField("type", "formProperty");
+            generator.writeStringField("propertyId", property.getPropertyId());
+            generator.writeStringField("value", property.getPropertyValue());
+        } else {
+            generator.writeStringField("type", detail.getClass()
+                    .getSimpleName());
+        }
+        generator.writeStringField("id", detail.getId());
+        generator.writeStringField("processInstanceId",
+                detail.getProcessInstanceId());
+        generator.writeStringField("executionId", detail.getExecutionId());
+        generator.writeStringField("activityInstanceId",
+                detail.getActivityInstanceId());
+        generator.writeStringField("taskId", detail.getTaskId());
+        writeValue(generator, "time", detail.getTime());
+        endRecord(generator);
+    }
+
+    /**
+     * Write JSON numbers and booleans as such, dates as milli-seconds since
+     * the epoch and anything else as its string form.
+     */
+    private static void writeValue(JsonGenerator generator, String field,
+            Object value) throws IOException {
+        if (value == null) {
+            generator.writeNullField(field);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short) {
+            generator.writeNumberField(field, ((Number) value).longValue());
+        } else if (value instanceof BigDecimal) {
+            generator.writeNumberField(field, (BigDecimal) value);
+        } else if (value instanceof Number) {
+            generator.writeNumberField(field, ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            generator.writeBooleanField(field, (Boolean) value);
+        } else if (value instanceof Date) {
+            generator.writeNumberField(field, ((Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            generator.writeStringField(field, String.format("(%1$d bytes)",
+                    ((byte[]) value).length));
+        } else {
+            generator.writeStringField(field, value.toString());
+        }
+    }
+
+    private static void endRecord(JsonGenerator generator) throws IOException {
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
+
+    private String getTableName(Class<?> entityClass) {
+        return processEngine.getManagementService().getTableName(entityClass);
+    }
+}
@@ -1,9 +1,12 @@
 package com.knowprocess.bpm.bdd.ext;
 
 import java.util.List;
+import java.util.Map;
 
 import com.knowprocess.bpm.bdd.BpmSpec;
 import com.knowprocess.bpm.bdd.ExternalAction;
+import com.knowprocess.bpm.bdd.ext.AuditTrailExporter.PageHandler;
+import com.knowprocess.bpm.bdd.history.InMemoryHistory;
 import org.flowable.engine.history.HistoricActivityInstance;
 import org.flowable.engine.history.HistoricDetail;
 import org.flowable.engine.test.FlowableRule;
@@ -21,22 +24,40 @@ public class DumpAuditTrail implements ExternalAction {
 
     public void execute(BpmSpec spec) throws Exception {
         System.out.println("Audit trail: ");
-
-        List<HistoricActivityInstance> activities = flowableRule
-                .getHistoryService().createHistoricActivityInstanceQuery()
-                .processInstanceId(spec.getProcessInstance().getId()).list();
-
-        for (HistoricActivityInstance hist : activities) {
-            System.out.println(String.format("  : %1$s", hist));
-        }
+        String piid = spec.getProcessInstance().getId();
+        InMemoryHistory memory = InMemoryHistory.get(flowableRule
+                .getProcessEngine());
+
+        AuditTrailExporter reader = new AuditTrailExporter(
+                flowableRule.getProcessEngine());
+        // page through so that long histories need not fit in memory
+        reader.forEachActivity(piid,
+                new PageHandler<HistoricActivityInstance, RuntimeException>() {
+                    public void handle(List<HistoricActivityInstance> page) {
+                        for (HistoricActivityInstance hist : page) {
+                            System.out.println(String.format("  : %1$s",
+                                    hist));
+                        }
+                    }
+                });
 
         System.out.println("Final data: ");
-        List<HistoricDetail> details = flowableRule
-                .getHistoryService().createHistoricDetailQuery()
-                .processInstanceId(spec.getProcessInstance().getId()).list();
-
-        for (HistoricDetail hist : details) {
-            System.out.println(String.format("  : %1$s", hist));
+        if (memory != null) {
+            for (Map.Entry<String, Object> entry : memory.getVariables(
+                    spec.getProcessInstance().getId()).entrySet()) {
+                System.out.println(String.format("  : %1$s=%2$s",
+                        entry.getKey(), entry.getValue()));
+            }
+            return;
         }
+        reader.forEachDetail(piid,
+                new PageHandler<HistoricDetail, RuntimeException>() {
+                    public void handle(List<HistoricDetail> page) {
+                        for (HistoricDetail hist : page) {
+                            System.out.println(String.format("  : %1$s",
+                                    hist));
+                        }
+                    }
+                });
     }
 }
@@ -0,0 +1,38 @@
+package com.knowprocess.bpm.bdd.ext;
+
+import java.io.File;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.ExternalAction;
+import org.flowable.engine.test.FlowableRule;
+
+/**
+ * Exports the audit trail of the specification's process instance to a gzip
+ * compressed newline delimited JSON file.
+ *
+ * @see AuditTrailExporter
+ * @author Tim Stephenson
+ */
+public class ExportAuditTrail implements ExternalAction {
+
+    private final FlowableRule flowableRule;
+
+    private final File file;
+
+    /**
+     * @param flowableRule
+     * @param file
+     *            File to write, conventionally named <code>*.ndjson.gz</code>.
+     */
+    public ExportAuditTrail(FlowableRule flowableRule, File file) {
+        this.flowableRule = flowableRule;
+        this.file = file;
+    }
+
+    public void execute(BpmSpec spec) throws Exception {
+        long count = new AuditTrailExporter(flowableRule.getProcessEngine())
+                .export(spec.getProcessInstance().getId(), file);
+        System.out.println(String.format(
+                "Audit trail: %1$d records exported to %2$s", count, file));
+    }
+}
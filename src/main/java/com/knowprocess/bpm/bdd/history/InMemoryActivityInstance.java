@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.history;
+
+import java.util.Date;
+
+import org.flowable.engine.history.HistoricActivityInstance;
+
+/**
+ * An activity instance recorded by {@link InMemoryHistory}.
+ *
+ * <p>
+ * The end time, assignee and links to tasks or called process instances are
+ * filled in as the engine reports them so these fields may change after the
+ * record is first seen.
+ *
+ * @author Tim Stephenson
+ */
+public class InMemoryActivityInstance implements HistoricActivityInstance {
+
+    private final String id;
+
+    private final String activityId;
+
+    private final String activityName;
+
+    private final String activityType;
+
+    private final String processDefinitionId;
+
+    private final String processInstanceId;
+
+    private final String executionId;
+
+    private final String tenantId;
+
+    private final Date startTime;
+
+    private volatile Date endTime;
+
+    private volatile String deleteReason;
+
+    private volatile String taskId;
+
+    private volatile String assignee;
+
+    private volatile String calledProcessInstanceId;
+
+    InMemoryActivityInstance(String id, String activityId,
+            String activityName, String activityType,
+            String processDefinitionId, String processInstanceId,
+            String executionId, String tenantId, Date startTime) {
+        this.id = id;
+        this.activityId = activityId;
+        this.activityName = activityName;
+        this.activityType = activityType;
+        this.processDefinitionId = processDefinitionId;
+        this.processInstanceId = processInstanceId;
+        this.executionId = executionId;
+        this.tenantId = tenantId;
+        this.startTime = startTime;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getActivityId() {
+        return activityId;
+    }
+
+    public String getActivityName() {
+        return activityName;
+    }
+
+    public String getActivityType() {
+        return activityType;
+    }
+
+    public String getProcessDefinitionId() {
+        return processDefinitionId;
+    }
+
+    public String getProcessInstanceId() {
+        return processInstanceId;
+    }
+
+    public String getExecutionId() {
+        return executionId;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    void setTaskId(String taskId) {
+        this.taskId = taskId;
+    }
+
+    public String getCalledProcessInstanceId() {
+        return calledProcessInstanceId;
+    }
+
+    void setCalledProcessInstanceId(String calledProcessInstanceId) {
+        this.calledProcessInstanceId = calledProcessInstanceId;
+    }
+
+    public String getAssignee() {
+        return assignee;
+    }
+
+    void setAssignee(String assignee) {
+        this.assignee = assignee;
+    }
+
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
+
+    void setEndTime(Date endTime) {
+        this.endTime = endTime;
+    }
+
+    public Long getDurationInMillis() {
+        Date end = endTime;
+        return end == null ? null : end.getTime() - startTime.getTime();
+    }
+
+    public String getDeleteReason() {
+        return deleteReason;
+    }
+
+    void setDeleteReason(String deleteReason) {
+        this.deleteReason = deleteReason;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public Date getTime() {
+        return startTime;
+    }
+
+    /**
+     * @return true if the activity has not yet ended.
+     */
+    public boolean isOpen() {
+        return endTime == null;
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryActivityInstance[activityId=" + activityId
+                + ", activityType=" + activityType + ", executionId="
+                + executionId + ", processInstanceId=" + processInstanceId
+                + "]";
+    }
+}
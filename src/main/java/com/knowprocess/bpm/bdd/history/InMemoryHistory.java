@@ -0,0 +1,619 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.history;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.delegate.event.FlowableEngineEvent;
+import org.flowable.engine.common.api.delegate.event.FlowableEngineEventType;
+import org.flowable.engine.common.api.delegate.event.FlowableEntityEvent;
+import org.flowable.engine.common.api.delegate.event.FlowableEvent;
+import org.flowable.engine.common.api.delegate.event.FlowableEventListener;
+import org.flowable.engine.common.impl.context.Context;
+import org.flowable.engine.common.impl.interceptor.CommandContext;
+import org.flowable.engine.common.impl.interceptor.CommandContextCloseListener;
+import org.flowable.engine.delegate.event.FlowableActivityCancelledEvent;
+import org.flowable.engine.delegate.event.FlowableActivityEvent;
+import org.flowable.engine.delegate.event.FlowableCancelledEvent;
+import org.flowable.engine.history.HistoricActivityInstance;
+import org.flowable.engine.history.HistoricProcessInstance;
+import org.flowable.engine.impl.persistence.entity.ExecutionEntity;
+import org.flowable.engine.impl.util.ProcessDefinitionUtil;
+import org.flowable.engine.repository.ProcessDefinition;
+import org.flowable.task.api.Task;
+import org.flowable.variable.api.event.FlowableVariableEvent;
+
+/**
+ * Keeps the history of process instances in memory, built from engine events,
+ * as a fast stand-in for the history tables.
+ *
+ * <p>
+ * Once installed on an engine the history based assertions of the library
+ * read from here instead of the database. This allows assertion-only runs to
+ * configure the engine with history level 'none' or 'activity' and skip most
+ * of the history inserts and queries, while specifications continue to check
+ * the path taken through the process.
+ *
+ * <p>
+ * Events are collected for each transaction and only applied once it has
+ * committed, so work that is rolled back leaves no trace, as for the history
+ * tables. Timestamps are taken from the engine's clock.
+ *
+ * <p>
+ * Only what the library needs is recorded: process and activity instances,
+ * the tasks and sub-process instances they created and the latest value of
+ * each process variable.
+ *
+ * @author Tim Stephenson
+ */
+public class InMemoryHistory implements FlowableEventListener {
+
+    private static final ConcurrentMap<ProcessEngine, InMemoryHistory> installed = new ConcurrentHashMap<ProcessEngine, InMemoryHistory>();
+
+    private static final String PENDING_ATTRIBUTE = InMemoryHistory.class
+            .getName() + ".pending";
+
+    private static final Comparator<HistoricProcessInstance> START_TIME_ORDER = new Comparator<HistoricProcessInstance>() {
+        public int compare(HistoricProcessInstance hpi1,
+                HistoricProcessInstance hpi2) {
+            return hpi1.getStartTime().compareTo(hpi2.getStartTime());
+        }
+    };
+
+    private final ProcessEngine processEngine;
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    /**
+     * Number of installs not yet undone, guarded by the class lock.
+     */
+    private int installs;
+
+    private final ConcurrentMap<String, InMemoryProcessInstance> processInstances = new ConcurrentHashMap<String, InMemoryProcessInstance>();
+
+    private final ConcurrentMap<String, List<InMemoryActivityInstance>> activities = new ConcurrentHashMap<String, List<InMemoryActivityInstance>>();
+
+    private final ConcurrentMap<String, List<String>> subProcessInstances = new ConcurrentHashMap<String, List<String>>();
+
+    private final ConcurrentMap<String, Map<String, Object>> variables = new ConcurrentHashMap<String, Map<String, Object>>();
+
+    private final ConcurrentMap<String, Map<String, Object>> localVariables = new ConcurrentHashMap<String, Map<String, Object>>();
+
+    protected InMemoryHistory(ProcessEngine processEngine) {
+        this.processEngine = processEngine;
+    }
+
+    /**
+     * Start recording the history of the engine, if not already doing so.
+     *
+     * <p>
+     * Installs are counted so that tests sharing an engine may each install
+     * and uninstall; recording continues until every install has been
+     * matched by an {@link #uninstall(ProcessEngine)}.
+     *
+     * @param processEngine
+     *            The engine to record.
+     * @return The history of the engine.
+     */
+    public static synchronized InMemoryHistory install(
+            ProcessEngine processEngine) {
+        InMemoryHistory existing = installed.get(processEngine);
+        if (existing != null) {
+            existing.installs++;
+            return existing;
+        }
+        InMemoryHistory history = new InMemoryHistory(processEngine);
+        history.installs = 1;
+        installed.put(processEngine, history);
+        processEngine.getRuntimeService().addEventListener(history,
+                FlowableEngineEventType.PROCESS_CREATED,
+                FlowableEngineEventType.PROCESS_COMPLETED,
+                FlowableEngineEventType.PROCESS_COMPLETED_WITH_TERMINATE_END_EVENT,
+                FlowableEngineEventType.PROCESS_COMPLETED_WITH_ERROR_END_EVENT,
+                FlowableEngineEventType.PROCESS_CANCELLED,
+                FlowableEngineEventType.ACTIVITY_STARTED,
+                FlowableEngineEventType.ACTIVITY_COMPLETED,
+                FlowableEngineEventType.ACTIVITY_CANCELLED,
+                FlowableEngineEventType.TASK_CREATED,
+                FlowableEngineEventType.TASK_ASSIGNED,
+                FlowableEngineEventType.VARIABLE_CREATED,
+                FlowableEngineEventType.VARIABLE_UPDATED);
+        return history;
+    }
+
+    /**
+     * Undo an install, once the last has been undone stop recording the
+     * history of the engine and discard what has been recorded.
+     *
+     * @param processEngine
+     *            The engine recorded.
+     */
+    public static synchronized void uninstall(ProcessEngine processEngine) {
+        InMemoryHistory history = installed.get(processEngine);
+        if (history != null && --history.installs == 0) {
+            installed.remove(processEngine);
+            processEngine.getRuntimeService().removeEventListener(history);
+            history.clear();
+        }
+    }
+
+    /**
+     * Stop recording the history of the engine and discard what has been
+     * recorded, however many installs remain outstanding. For example when
+     * the engine is returned to a pool.
+     *
+     * @param processEngine
+     *            The engine recorded.
+     */
+    public static synchronized void discard(ProcessEngine processEngine) {
+        InMemoryHistory history = installed.remove(processEngine);
+        if (history != null) {
+            processEngine.getRuntimeService().removeEventListener(history);
+            history.clear();
+        }
+    }
+
+    /**
+     * @param processEngine
+     *            The engine recorded.
+     * @return The history of the engine or null if it is not being recorded
+     *         in memory.
+     */
+    public static InMemoryHistory get(ProcessEngine processEngine) {
+        return installed.get(processEngine);
+    }
+
+    /**
+     * Look up a process instance in memory if the engine's history is held
+     * there, otherwise in the history tables.
+     *
+     * @param processEngine
+     *            The engine that ran the process instance.
+     * @param processInstanceId
+     *            Id of the process instance.
+     * @return The process instance or null if it is not found.
+     */
+    public static HistoricProcessInstance findProcessInstance(
+            ProcessEngine processEngine, String processInstanceId) {
+        InMemoryHistory history = get(processEngine);
+        if (history != null) {
+            return history.getProcessInstance(processInstanceId);
+        }
+        return processEngine.getHistoryService()
+                .createHistoricProcessInstanceQuery()
+                .processInstanceId(processInstanceId).singleResult();
+    }
+
+    /**
+     * Look up the activities of a process instance in memory if the engine's
+     * history is held there, otherwise in the history tables.
+     *
+     * @param processEngine
+     *            The engine that ran the process instance.
+     * @param processInstanceId
+     *            Id of the process instance.
+     * @return Activities of the process instance in the order they started.
+     */
+    public static List<HistoricActivityInstance> findActivities(
+            ProcessEngine processEngine, String processInstanceId) {
+        InMemoryHistory history = get(processEngine);
+        if (history != null) {
+            return history.getActivities(processInstanceId);
+        }
+        return processEngine.getHistoryService()
+                .createHistoricActivityInstanceQuery()
+                .processInstanceId(processInstanceId)
+                .orderByHistoricActivityInstanceStartTime().asc().list();
+    }
+
+    /**
+     * @param processInstanceId
+     *            Id of the process instance.
+     * @return The process instance or null if none has been recorded.
+     */
+    public HistoricProcessInstance getProcessInstance(String processInstanceId) {
+        return processInstances.get(processInstanceId);
+    }
+
+    /**
+     * @param processInstanceId
+     *            Id of the process instance.
+     * @return Activities of the process instance in the order they started.
+     */
+    public List<HistoricActivityInstance> getActivities(
+            String processInstanceId) {
+        List<InMemoryActivityInstance> list = activities
+                .get(processInstanceId);
+        if (list == null) {
+            return new ArrayList<HistoricActivityInstance>();
+        }
+        synchronized (list) {
+            return new ArrayList<HistoricActivityInstance>(list);
+        }
+    }
+
+    /**
+     * @param superProcessInstanceIds
+     *            Ids of the calling process instances.
+     * @return Process instances started by call activities of any of the
+     *         callers, in the order they started.
+     */
+    public List<HistoricProcessInstance> getSubProcessInstances(
+            List<String> superProcessInstanceIds) {
+        List<HistoricProcessInstance> children = new ArrayList<HistoricProcessInstance>();
+        for (String superId : superProcessInstanceIds) {
+            List<String> ids = subProcessInstances.get(superId);
+            if (ids == null) {
+                continue;
+            }
+            synchronized (ids) {
+                for (String id : ids) {
+                    children.add(processInstances.get(id));
+                }
+            }
+        }
+        Collections.sort(children, START_TIME_ORDER);
+        return children;
+    }
+
+    /**
+     * @param processInstanceId
+     *            Id of the process instance.
+     * @return Latest value of each variable set in the process instance,
+     *         including any since deleted. Where a process variable and a
+     *         variable local to an execution or task share a name the process
+     *         variable is returned.
+     */
+    public Map<String, Object> getVariables(String processInstanceId) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        copy(localVariables.get(processInstanceId), result);
+        copy(variables.get(processInstanceId), result);
+        return result;
+    }
+
+    private static void copy(Map<String, Object> vars,
+            Map<String, Object> result) {
+        if (vars != null) {
+            synchronized (vars) {
+                result.putAll(vars);
+            }
+        }
+    }
+
+    /**
+     * @return Number of process instances recorded.
+     */
+    public int getProcessInstanceCount() {
+        return processInstances.size();
+    }
+
+    /**
+     * Discard everything recorded so far.
+     */
+    public void clear() {
+        processInstances.clear();
+        activities.clear();
+        subProcessInstances.clear();
+        variables.clear();
+        localVariables.clear();
+    }
+
+    public void onEvent(FlowableEvent event) {
+        Runnable change = toChange(event);
+        if (change == null) {
+            return;
+        }
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext == null) {
+            change.run();
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        List<Runnable> pending = (List<Runnable>) commandContext
+                .getAttribute(PENDING_ATTRIBUTE);
+        if (pending == null) {
+            pending = new ArrayList<Runnable>();
+            commandContext.addAttribute(PENDING_ATTRIBUTE, pending);
+            commandContext.addCloseListener(new CommitListener(pending));
+        }
+        pending.add(change);
+    }
+
+    public boolean isFailOnException() {
+        return false;
+    }
+
+    /**
+     * Capture what is needed from the event while still inside the
+     * transaction that raised it.
+     *
+     * @return The change to make once the transaction commits, null if the
+     *         event is of no interest.
+     */
+    protected Runnable toChange(FlowableEvent event) {
+        final Date now = processEngine.getProcessEngineConfiguration()
+                .getClock().getCurrentTime();
+        FlowableEngineEventType type = (FlowableEngineEventType) event
+                .getType();
+        switch (type) {
+        case PROCESS_CREATED:
+            return processCreated(
+                    (ExecutionEntity) ((FlowableEntityEvent) event)
+                            .getEntity(), now);
+        case PROCESS_COMPLETED:
+        case PROCESS_COMPLETED_WITH_TERMINATE_END_EVENT:
+        case PROCESS_COMPLETED_WITH_ERROR_END_EVENT:
+            return processEnded(
+                    ((FlowableEngineEvent) event).getProcessInstanceId(),
+                    null, now);
+        case PROCESS_CANCELLED:
+            FlowableCancelledEvent cancelled = (FlowableCancelledEvent) event;
+            return processEnded(cancelled.getProcessInstanceId(),
+                    String.valueOf(cancelled.getCause()), now);
+        case ACTIVITY_STARTED:
+            return activityStarted((FlowableActivityEvent) event, now);
+        case ACTIVITY_COMPLETED:
+            return activityEnded((FlowableActivityEvent) event, null, now);
+        case ACTIVITY_CANCELLED:
+            FlowableActivityCancelledEvent activityCancelled = (FlowableActivityCancelledEvent) event;
+            return activityEnded(activityCancelled,
+                    String.valueOf(activityCancelled.getCause()), now);
+        case TASK_CREATED:
+        case TASK_ASSIGNED:
+            return taskChanged((Task) ((FlowableEntityEvent) event)
+                    .getEntity());
+        case VARIABLE_CREATED:
+        case VARIABLE_UPDATED:
+            return variableSet((FlowableVariableEvent) event);
+        default:
+            return null;
+        }
+    }
+
+    private Runnable processCreated(ExecutionEntity execution, final Date now) {
+        if (!execution.getId().equals(execution.getProcessInstanceId())) {
+            return null;
+        }
+        ExecutionEntity superExecution = execution.getSuperExecution();
+        final String superExecutionId = superExecution == null ? null
+                : superExecution.getId();
+        final String superProcessInstanceId = superExecution == null ? null
+                : superExecution.getProcessInstanceId();
+        ProcessDefinition definition = ProcessDefinitionUtil
+                .getProcessDefinition(execution.getProcessDefinitionId());
+        final InMemoryProcessInstance pi = new InMemoryProcessInstance(
+                execution.getId(), execution.getBusinessKey(),
+                execution.getProcessDefinitionId(), definition.getKey(),
+                definition.getName(), definition.getVersion(),
+                definition.getDeploymentId(), superProcessInstanceId,
+                execution.getStartUserId(), execution.getTenantId(),
+                execution.getName(), now);
+        return new Runnable() {
+            public void run() {
+                processInstances.put(pi.getId(), pi);
+                if (superProcessInstanceId == null) {
+                    return;
+                }
+                listFor(subProcessInstances, superProcessInstanceId).add(
+                        pi.getId());
+                InMemoryActivityInstance caller = findOpen(
+                        superProcessInstanceId, superExecutionId, null);
+                if (caller != null) {
+                    caller.setCalledProcessInstanceId(pi.getId());
+                }
+            }
+        };
+    }
+
+    private Runnable processEnded(final String processInstanceId,
+            final String deleteReason, final Date now) {
+        return new Runnable() {
+            public void run() {
+                InMemoryProcessInstance pi = processInstances
+                        .get(processInstanceId);
+                if (pi == null || pi.getEndTime() != null) {
+                    return;
+                }
+                List<InMemoryActivityInstance> list = listFor(activities,
+                        processInstanceId);
+                synchronized (list) {
+                    for (InMemoryActivityInstance ai : list) {
+                        if (ai.isOpen()) {
+                            ai.setDeleteReason(deleteReason);
+                            ai.setEndTime(now);
+                        } else if ("endEvent".equals(ai.getActivityType())) {
+                            pi.setEndActivityId(ai.getActivityId());
+                        }
+                    }
+                }
+                pi.setDeleteReason(deleteReason);
+                pi.setEndTime(now);
+            }
+        };
+    }
+
+    private Runnable activityStarted(FlowableActivityEvent event,
+            final Date now) {
+        final InMemoryActivityInstance ai = new InMemoryActivityInstance("mem-"
+                + nextId.incrementAndGet(), event.getActivityId(),
+                event.getActivityName(), event.getActivityType(),
+                event.getProcessDefinitionId(), event.getProcessInstanceId(),
+                event.getExecutionId(), null, now);
+        return new Runnable() {
+            public void run() {
+                listFor(activities, ai.getProcessInstanceId()).add(ai);
+                InMemoryProcessInstance pi = processInstances.get(ai
+                        .getProcessInstanceId());
+                if (pi != null && pi.getStartActivityId() == null
+                        && "startEvent".equals(ai.getActivityType())) {
+                    pi.setStartActivityId(ai.getActivityId());
+                }
+            }
+        };
+    }
+
+    private Runnable activityEnded(final FlowableActivityEvent event,
+            final String deleteReason, final Date now) {
+        return new Runnable() {
+            public void run() {
+                InMemoryActivityInstance ai = findOpen(
+                        event.getProcessInstanceId(), event.getExecutionId(),
+                        event.getActivityId());
+                if (ai == null) {
+                    // start was not seen, e.g. recording began mid-way
+                    ai = new InMemoryActivityInstance("mem-"
+                            + nextId.incrementAndGet(), event.getActivityId(),
+                            event.getActivityName(), event.getActivityType(),
+                            event.getProcessDefinitionId(),
+                            event.getProcessInstanceId(),
+                            event.getExecutionId(), null, now);
+                    listFor(activities, ai.getProcessInstanceId()).add(ai);
+                }
+                ai.setDeleteReason(deleteReason);
+                ai.setEndTime(now);
+            }
+        };
+    }
+
+    private Runnable taskChanged(Task task) {
+        final String processInstanceId = task.getProcessInstanceId();
+        if (processInstanceId == null) {
+            return null;
+        }
+        final String taskId = task.getId();
+        final String executionId = task.getExecutionId();
+        final String activityId = task.getTaskDefinitionKey();
+        final String assignee = task.getAssignee();
+        return new Runnable() {
+            public void run() {
+                InMemoryActivityInstance ai = findOpen(processInstanceId,
+                        executionId, activityId);
+                if (ai != null) {
+                    ai.setTaskId(taskId);
+                    ai.setAssignee(assignee);
+                }
+            }
+        };
+    }
+
+    private Runnable variableSet(FlowableVariableEvent event) {
+        final String processInstanceId = event.getProcessInstanceId();
+        if (processInstanceId == null) {
+            return null;
+        }
+        final String name = event.getVariableName();
+        final Object value = event.getVariableValue();
+        // as the history tables, keep locals apart from process variables
+        final ConcurrentMap<String, Map<String, Object>> scope = event
+                .getTaskId() == null
+                && processInstanceId.equals(event.getExecutionId()) ? variables
+                : localVariables;
+        return new Runnable() {
+            public void run() {
+                Map<String, Object> vars = scope.get(processInstanceId);
+                if (vars == null) {
+                    vars = new HashMap<String, Object>();
+                    Map<String, Object> existing = scope.putIfAbsent(
+                            processInstanceId, vars);
+                    if (existing != null) {
+                        vars = existing;
+                    }
+                }
+                synchronized (vars) {
+                    vars.put(name, value);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param activityId
+     *            Activity to match or null to match any.
+     * @return The most recently started activity of the execution that has
+     *         not ended.
+     */
+    private InMemoryActivityInstance findOpen(String processInstanceId,
+            String executionId, String activityId) {
+        List<InMemoryActivityInstance> list = listFor(activities,
+                processInstanceId);
+        synchronized (list) {
+            for (int i = list.size() - 1; i >= 0; i--) {
+                InMemoryActivityInstance ai = list.get(i);
+                if (ai.isOpen() && ai.getExecutionId().equals(executionId)
+                        && (activityId == null || activityId.equals(ai
+                                .getActivityId()))) {
+                    return ai;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static <T> List<T> listFor(ConcurrentMap<String, List<T>> map,
+            String key) {
+        List<T> list = map.get(key);
+        if (list == null) {
+            list = Collections.synchronizedList(new ArrayList<T>());
+            List<T> existing = map.putIfAbsent(key, list);
+            if (existing != null) {
+                list = existing;
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Applies the changes collected during a transaction once it has
+     * committed, discarding them if it failed.
+     */
+    private static class CommitListener implements CommandContextCloseListener {
+
+        private final List<Runnable> pending;
+
+        CommitListener(List<Runnable> pending) {
+            this.pending = pending;
+        }
+
+        public void closing(CommandContext commandContext) {
+        }
+
+        public void afterSessionsFlush(CommandContext commandContext) {
+        }
+
+        public void closed(CommandContext commandContext) {
+            for (Runnable change : pending) {
+                change.run();
+            }
+            pending.clear();
+        }
+
+        public void closeFailure(CommandContext commandContext) {
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.history;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import org.flowable.engine.history.HistoricProcessInstance;
+
+/**
+ * A process instance recorded by {@link InMemoryHistory}.
+ *
+ * <p>
+ * Process variables are held by the history itself rather than each record,
+ * see {@link InMemoryHistory#getVariables(String)}.
+ *
+ * @author Tim Stephenson
+ */
+public class InMemoryProcessInstance implements HistoricProcessInstance {
+
+    private final String id;
+
+    private final String businessKey;
+
+    private final String processDefinitionId;
+
+    private final String processDefinitionKey;
+
+    private final String processDefinitionName;
+
+    private final Integer processDefinitionVersion;
+
+    private final String deploymentId;
+
+    private final String superProcessInstanceId;
+
+    private final String startUserId;
+
+    private final String tenantId;
+
+    private final String name;
+
+    private final Date startTime;
+
+    private volatile String startActivityId;
+
+    private volatile Date endTime;
+
+    private volatile String endActivityId;
+
+    private volatile String deleteReason;
+
+    InMemoryProcessInstance(String id, String businessKey,
+            String processDefinitionId, String processDefinitionKey,
+            String processDefinitionName, Integer processDefinitionVersion,
+            String deploymentId, String superProcessInstanceId,
+            String startUserId, String tenantId, String name, Date startTime) {
+        this.id = id;
+        this.businessKey = businessKey;
+        this.processDefinitionId = processDefinitionId;
+        this.processDefinitionKey = processDefinitionKey;
+        this.processDefinitionName = processDefinitionName;
+        this.processDefinitionVersion = processDefinitionVersion;
+        this.deploymentId = deploymentId;
+        this.superProcessInstanceId = superProcessInstanceId;
+        this.startUserId = startUserId;
+        this.tenantId = tenantId;
+        this.name = name;
+        this.startTime = startTime;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getBusinessKey() {
+        return businessKey;
+    }
+
+    public String getProcessDefinitionId() {
+        return processDefinitionId;
+    }
+
+    public String getProcessDefinitionName() {
+        return processDefinitionName;
+    }
+
+    public String getProcessDefinitionKey() {
+        return processDefinitionKey;
+    }
+
+    public Integer getProcessDefinitionVersion() {
+        return processDefinitionVersion;
+    }
+
+    public String getDeploymentId() {
+        return deploymentId;
+    }
+
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
+
+    void setEndTime(Date endTime) {
+        this.endTime = endTime;
+    }
+
+    public Long getDurationInMillis() {
+        Date end = endTime;
+        return end == null ? null : end.getTime() - startTime.getTime();
+    }
+
+    public String getEndActivityId() {
+        return endActivityId;
+    }
+
+    void setEndActivityId(String endActivityId) {
+        this.endActivityId = endActivityId;
+    }
+
+    public String getStartUserId() {
+        return startUserId;
+    }
+
+    public String getStartActivityId() {
+        return startActivityId;
+    }
+
+    void setStartActivityId(String startActivityId) {
+        this.startActivityId = startActivityId;
+    }
+
+    public String getDeleteReason() {
+        return deleteReason;
+    }
+
+    void setDeleteReason(String deleteReason) {
+        this.deleteReason = deleteReason;
+    }
+
+    public String getSuperProcessInstanceId() {
+        return superProcessInstanceId;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return null;
+    }
+
+    public String getCallbackId() {
+        return null;
+    }
+
+    public String getCallbackType() {
+        return null;
+    }
+
+    public Map<String, Object> getProcessVariables() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryProcessInstance[id=" + id + ", processDefinitionId="
+                + processDefinitionId + "]";
+    }
+}
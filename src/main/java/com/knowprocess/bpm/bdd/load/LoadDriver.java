@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.test.FlowableRule;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.metrics.Percentiles;
+
+/**
+ * Runs a {@link Scenario} many times concurrently to measure how a process
+ * behaves under load.
+ *
+ * <pre>
+ * LoadReport report = new LoadDriver(flowableRule, "approval")
+ *         .withIterations(1000).withThreads(16)
+ *         .run(spec -&gt; spec.whenEventOccurs(...).thenProcessIsComplete());
+ * </pre>
+ *
+ * <p>
+ * Each run gets its own specification whose BDD phrases are recorded rather
+ * than written, giving the latency of every step. Runs share the rule's
+ * engine and deployments. On Java 21 or later
+ * <code>Executors.newVirtualThreadPerTaskExecutor()</code> may be supplied to
+ * {@link #withExecutor(ExecutorService)} to run each scenario on its own
+ * virtual thread.
+ *
+ * @author Tim Stephenson
+ */
+public class LoadDriver {
+
+    public static final int DEFAULT_ITERATIONS = 100;
+
+    private final FlowableRule flowableRule;
+
+    private final String name;
+
+    private int iterations = DEFAULT_ITERATIONS;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private ExecutorService executor;
+
+    public LoadDriver(FlowableRule flowableRule, String name) {
+        this.flowableRule = flowableRule;
+        this.name = name;
+    }
+
+    /**
+     * @param iterations
+     *            Number of times to run the scenario.
+     * @return The updated driver.
+     */
+    public LoadDriver withIterations(int iterations) {
+        this.iterations = iterations;
+        return this;
+    }
+
+    /**
+     * @param threads
+     *            Size of the worker pool, ignored if an executor is supplied.
+     * @return The updated driver.
+     */
+    public LoadDriver withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param executor
+     *            Runs the scenarios, it is not shut down by the driver.
+     * @return The updated driver.
+     */
+    public LoadDriver withExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Run the scenario the configured number of times, waiting for all runs
+     * to finish.
+     *
+     * @param scenario
+     * @return Throughput and latency of the runs.
+     */
+    public LoadReport run(final Scenario scenario) {
+        ExecutorService executor = this.executor;
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+        try {
+            List<Future<Run>> futures = new ArrayList<Future<Run>>(iterations);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                final String specName = name + "#" + i;
+                futures.add(executor.submit(new Callable<Run>() {
+                    public Run call() {
+                        return runOnce(scenario, specName);
+                    }
+                }));
+            }
+            List<Run> runs = new ArrayList<Run>(iterations);
+            for (Future<Run> future : futures) {
+                runs.add(future.get());
+            }
+            return summarise(runs, System.nanoTime() - start);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FlowableException("Interrupted running load test "
+                    + name, e);
+        } catch (ExecutionException e) {
+            throw new FlowableException("Unable to run load test " + name,
+                    e.getCause());
+        } finally {
+            if (this.executor == null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    protected Run runOnce(Scenario scenario, String specName) {
+        StepRecorder recorder = new StepRecorder();
+        Run run = new Run(recorder);
+        BpmSpec spec = null;
+        try {
+            spec = new BpmSpec(flowableRule, specName, recorder);
+            scenario.run(spec);
+        } catch (Throwable t) {
+            run.failure = t;
+        } finally {
+            if (spec != null) {
+                spec.finished();
+            }
+        }
+        run.endNanos = System.nanoTime();
+        run.stepNanos = recorder.getStepNanos();
+        return run;
+    }
+
+    private LoadReport summarise(List<Run> runs, long elapsedNanos) {
+        List<Throwable> failures = new ArrayList<Throwable>();
+        List<Run> succeeded = new ArrayList<Run>(runs.size());
+        int stepCount = 0;
+        for (Run run : runs) {
+            if (run.failure == null) {
+                succeeded.add(run);
+                stepCount = Math.max(stepCount, run.stepNanos.length);
+            } else {
+                failures.add(run.failure);
+            }
+        }
+
+        long[] scenarioNanos = new long[succeeded.size()];
+        for (int i = 0; i < scenarioNanos.length; i++) {
+            Run run = succeeded.get(i);
+            scenarioNanos[i] = run.endNanos - run.recorder.getStartNanos();
+        }
+
+        List<LoadReport.StepStats> steps = new ArrayList<LoadReport.StepStats>(
+                stepCount);
+        for (int step = 0; step < stepCount; step++) {
+            long[] values = new long[succeeded.size()];
+            int count = 0;
+            String label = null;
+            for (Run run : succeeded) {
+                if (step < run.stepNanos.length) {
+                    values[count++] = run.stepNanos[step];
+                    if (label == null) {
+                        label = run.recorder.getPhrases().get(step)
+                                .getDescription();
+                    }
+                }
+            }
+            long[] measured = new long[count];
+            System.arraycopy(values, 0, measured, 0, count);
+            steps.add(new LoadReport.StepStats(step, label, new Percentiles(
+                    measured)));
+        }
+        return new LoadReport(name, runs.size(), elapsedNanos,
+                new Percentiles(scenarioNanos), steps, failures);
+    }
+
+    /**
+     * Outcome of one run of the scenario.
+     */
+    protected static class Run {
+        private final StepRecorder recorder;
+
+        private long[] stepNanos;
+
+        private long endNanos;
+
+        private Throwable failure;
+
+        Run(StepRecorder recorder) {
+            this.recorder = recorder;
+        }
+    }
+}
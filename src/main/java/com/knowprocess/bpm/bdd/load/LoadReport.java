@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.load;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.knowprocess.bpm.bdd.metrics.Percentiles;
+
+/**
+ * Throughput and latency of a load test.
+ *
+ * <p>
+ * Latencies are held in nano-seconds and rendered in milli-seconds.
+ *
+ * @author Tim Stephenson
+ */
+public class LoadReport {
+
+    private final String name;
+
+    private final int iterations;
+
+    private final long elapsedNanos;
+
+    private final Percentiles iterationLatency;
+
+    private final List<StepStats> steps;
+
+    private final List<Throwable> failures;
+
+    public LoadReport(String name, int iterations, long elapsedNanos,
+            Percentiles iterationLatency, List<StepStats> steps,
+            List<Throwable> failures) {
+        this.name = name;
+        this.iterations = iterations;
+        this.elapsedNanos = elapsedNanos;
+        this.iterationLatency = iterationLatency;
+        this.steps = Collections.unmodifiableList(steps);
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Number of times the scenario was run, including failures.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return Scenarios completed successfully per second.
+     */
+    public double getThroughput() {
+        if (elapsedNanos == 0) {
+            return 0;
+        }
+        return (iterations - failures.size()) * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @return Latency of whole successful runs of the scenario.
+     */
+    public Percentiles getIterationLatency() {
+        return iterationLatency;
+    }
+
+    /**
+     * @return Latency of each step, in the order the scenario runs them.
+     */
+    public List<StepStats> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return Exception thrown by each failed run.
+     */
+    public List<Throwable> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Write the report as a table.
+     *
+     * @param out
+     */
+    public void print(PrintStream out) {
+        out.print(toString());
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ENGLISH,
+                "LOAD: %1$s, %2$d runs (%3$d failed) in %4$.1f ms, %5$.1f runs/s%n",
+                name, iterations, failures.size(), elapsedNanos / 1e6,
+                getThroughput()));
+        sb.append(String.format(Locale.ENGLISH,
+                "%1$4s %2$8s %3$10s %4$10s %5$10s %6$10s  %7$s%n", "#",
+                "count", "p50 ms", "p90 ms", "p99 ms", "max ms", "step"));
+        for (StepStats step : steps) {
+            appendRow(sb, String.valueOf(step.getIndex()),
+                    step.getLatency(), step.getLabel());
+        }
+        appendRow(sb, "", iterationLatency, "(scenario)");
+        return sb.toString();
+    }
+
+    private void appendRow(StringBuilder sb, String index, Percentiles p,
+            String label) {
+        sb.append(String.format(Locale.ENGLISH,
+                "%1$4s %2$8d %3$10.2f %4$10.2f %5$10.2f %6$10.2f  %7$s%n",
+                index, p.getCount(), p.getPercentile(50) / 1e6,
+                p.getPercentile(90) / 1e6, p.getPercentile(99) / 1e6,
+                p.getMax() / 1e6, label));
+    }
+
+    /**
+     * Latency of one step of the scenario across all successful runs.
+     */
+    public static class StepStats {
+
+        private final int index;
+
+        private final String label;
+
+        private final Percentiles latency;
+
+        public StepStats(int index, String label, Percentiles latency) {
+            this.index = index;
+            this.label = label;
+            this.latency = latency;
+        }
+
+        /**
+         * @return Position of the step in the scenario, from 0.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return Description of the step as reported by the first run.
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        public Percentiles getLatency() {
+            return latency;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.load;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+
+/**
+ * A scenario to run repeatedly under load, typically written as a lambda:
+ *
+ * <pre>
+ * spec -&gt; spec.whenEventOccurs(...).thenUserTask(...).thenProcessIsComplete()
+ * </pre>
+ *
+ * @author Tim Stephenson
+ */
+public interface Scenario {
+
+    /**
+     * @param spec
+     *            A fresh specification for this run of the scenario.
+     * @throws Exception
+     *             To fail this run, the load test continues.
+     */
+    void run(BpmSpec spec) throws Exception;
+}
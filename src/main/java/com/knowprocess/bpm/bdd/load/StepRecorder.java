@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.load;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.knowprocess.bpm.bdd.report.BddPhrase;
+import com.knowprocess.bpm.bdd.report.BddReporter;
+
+/**
+ * Records when each step of one run of a scenario completed.
+ *
+ * <p>
+ * Specifications report a step once it has completed, so the latency of a
+ * step is the time since the previous phrase (or the start of the run).
+ * Phrases that are not steps, such as collected variables, are ignored.
+ * Used by a single specification on a single thread so needs no locking.
+ *
+ * @author Tim Stephenson
+ */
+class StepRecorder implements BddReporter {
+
+    private final long startNanos = System.nanoTime();
+
+    private final List<BddPhrase> phrases = new ArrayList<BddPhrase>();
+
+    public boolean isEnabled() {
+        return true;
+    }
+
+    public void report(BddPhrase phrase) {
+        if (phrase.isStep()) {
+            phrases.add(phrase);
+        }
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    List<BddPhrase> getPhrases() {
+        return phrases;
+    }
+
+    /**
+     * @return Latency of each step in nano-seconds.
+     */
+    long[] getStepNanos() {
+        long[] latencies = new long[phrases.size()];
+        long previous = startNanos;
+        for (int i = 0; i < latencies.length; i++) {
+            long nanoTime = phrases.get(i).getNanoTime();
+            latencies[i] = nanoTime - previous;
+            previous = nanoTime;
+        }
+        return latencies;
+    }
+}
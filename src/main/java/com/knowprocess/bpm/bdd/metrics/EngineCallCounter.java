@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.metrics;
+
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.common.impl.cfg.CommandExecutorImpl;
+import org.flowable.engine.common.impl.interceptor.AbstractCommandInterceptor;
+import org.flowable.engine.common.impl.interceptor.Command;
+import org.flowable.engine.common.impl.interceptor.CommandConfig;
+import org.flowable.engine.common.impl.interceptor.CommandExecutor;
+import org.flowable.engine.impl.cfg.ProcessEngineConfigurationImpl;
+
+/**
+ * Counts the commands executed by a process engine, separately for each
+ * thread.
+ *
+ * <p>
+ * Installed as the first interceptor of the engine's command executor so it
+ * sees every command, including those executed from within another command.
+ * Commands executed while no other is in progress on the thread are counted
+ * as service calls, i.e. calls made through the engine's public API.
+ *
+ * @author Tim Stephenson
+ */
+public class EngineCallCounter extends AbstractCommandInterceptor {
+
+    private final ThreadLocal<Counts> counts = new ThreadLocal<Counts>() {
+        @Override
+        protected Counts initialValue() {
+            return new Counts();
+        }
+    };
+
+    /**
+     * Add a counter to the engine unless it already has one.
+     *
+     * @param processEngine
+     * @return The engine's counter.
+     */
+    public static synchronized EngineCallCounter install(
+            ProcessEngine processEngine) {
+        CommandExecutor executor = ((ProcessEngineConfigurationImpl) processEngine
+                .getProcessEngineConfiguration()).getCommandExecutor();
+        if (!(executor instanceof CommandExecutorImpl)) {
+            throw new FlowableException("Cannot count commands run by "
+                    + executor.getClass().getName());
+        }
+        CommandExecutorImpl executorImpl = (CommandExecutorImpl) executor;
+        if (executorImpl.getFirst() instanceof EngineCallCounter) {
+            return (EngineCallCounter) executorImpl.getFirst();
+        }
+        EngineCallCounter counter = new EngineCallCounter();
+        counter.setNext(executorImpl.getFirst());
+        executorImpl.setFirst(counter);
+        return counter;
+    }
+
+    /**
+     * Remove the engine's counter, if it has one.
+     *
+     * @param processEngine
+     */
+    public static synchronized void uninstall(ProcessEngine processEngine) {
+        CommandExecutor executor = ((ProcessEngineConfigurationImpl) processEngine
+                .getProcessEngineConfiguration()).getCommandExecutor();
+        if (executor instanceof CommandExecutorImpl) {
+            CommandExecutorImpl executorImpl = (CommandExecutorImpl) executor;
+            if (executorImpl.getFirst() instanceof EngineCallCounter) {
+                executorImpl.setFirst(executorImpl.getFirst().getNext());
+            }
+        }
+    }
+
+    public <T> T execute(CommandConfig config, Command<T> command) {
+        Counts current = counts.get();
+        if (current.depth == 0) {
+            current.serviceCalls++;
+        }
+        current.commands++;
+        current.depth++;
+        try {
+            return next.execute(config, command);
+        } finally {
+            current.depth--;
+        }
+    }
+
+    /**
+     * @return Service calls made by the current thread since it started.
+     */
+    public long getServiceCalls() {
+        return counts.get().serviceCalls;
+    }
+
+    /**
+     * @return Commands executed by the current thread since it started.
+     */
+    public long getCommands() {
+        return counts.get().commands;
+    }
+
+    private static class Counts {
+        private long serviceCalls;
+
+        private long commands;
+
+        private int depth;
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Order statistics over a fixed set of measurements.
+ *
+ * @author Tim Stephenson
+ */
+public class Percentiles {
+
+    private final long[] sorted;
+
+    /**
+     * @param values
+     *            Measurements, copied so the caller may re-use the array.
+     */
+    public Percentiles(long[] values) {
+        this.sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(this.sorted);
+    }
+
+    public int getCount() {
+        return sorted.length;
+    }
+
+    /**
+     * @param percentile
+     *            Between 0 and 100.
+     * @return The smallest value at least this percentage of measurements do
+     *         not exceed (nearest rank), 0 if there are no measurements.
+     */
+    public long getPercentile(double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[rank(percentile, sorted.length) - 1];
+    }
+
+    /**
+     * @param percentile
+     *            Between 0 and 100.
+     * @param count
+     *            Number of measurements, at least 1.
+     * @return Position, from 1, of the nearest rank percentile in the sorted
+     *         measurements.
+     */
+    public static int rank(double percentile, long count) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be 0-100 not "
+                    + percentile);
+        }
+        return (int) Math.max(Math.ceil(percentile / 100 * count), 1);
+    }
+
+    public long getMin() {
+        return sorted.length == 0 ? 0 : sorted[0];
+    }
+
+    public long getMax() {
+        return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+    }
+
+    public double getMean() {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        double total = 0;
+        for (long value : sorted) {
+            total += value;
+        }
+        return total / sorted.length;
+    }
+}
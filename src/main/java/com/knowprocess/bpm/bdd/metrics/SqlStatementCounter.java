@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.impl.cfg.ProcessEngineConfigurationImpl;
+
+/**
+ * Counts the SQL statements issued by a process engine, by MyBatis statement
+ * id and separately for each thread.
+ *
+ * <p>
+ * Installed as a MyBatis plugin on the engine's executors, so each select,
+ * insert, update and delete requested by the engine is counted. Sessions
+ * opened before installation are not counted.
+ *
+ * @author Tim Stephenson
+ */
+@Intercepts({
+        @Signature(type = Executor.class, method = "update", args = {
+                MappedStatement.class, Object.class }),
+        @Signature(type = Executor.class, method = "query", args = {
+                MappedStatement.class, Object.class, RowBounds.class,
+                ResultHandler.class }),
+        @Signature(type = Executor.class, method = "query", args = {
+                MappedStatement.class, Object.class, RowBounds.class,
+                ResultHandler.class, CacheKey.class, BoundSql.class }) })
+public class SqlStatementCounter implements Interceptor {
+
+    private static final Comparator<Entry<String, Long>> MOST_FIRST = new Comparator<Entry<String, Long>>() {
+        public int compare(Entry<String, Long> o1, Entry<String, Long> o2) {
+            return o2.getValue().compareTo(o1.getValue());
+        }
+    };
+
+    private volatile ThreadLocal<Map<String, long[]>> counts = newCounts();
+
+    private volatile boolean active = true;
+
+    /**
+     * Add a counter to the engine unless it already has one.
+     *
+     * @param processEngine
+     * @return The engine's counter.
+     */
+    public static synchronized SqlStatementCounter install(
+            ProcessEngine processEngine) {
+        Configuration configuration = ((ProcessEngineConfigurationImpl) processEngine
+                .getProcessEngineConfiguration()).getSqlSessionFactory()
+                .getConfiguration();
+        for (Interceptor interceptor : configuration.getInterceptors()) {
+            if (interceptor instanceof SqlStatementCounter) {
+                ((SqlStatementCounter) interceptor).active = true;
+                return (SqlStatementCounter) interceptor;
+            }
+        }
+        SqlStatementCounter counter = new SqlStatementCounter();
+        configuration.addInterceptor(counter);
+        return counter;
+    }
+
+    /**
+     * Stop counting the engine's statements and discard the counts. MyBatis
+     * cannot remove a plugin so the counter stays in place, idle, until
+     * installed again.
+     *
+     * @param processEngine
+     */
+    public static synchronized void uninstall(ProcessEngine processEngine) {
+        Configuration configuration = ((ProcessEngineConfigurationImpl) processEngine
+                .getProcessEngineConfiguration()).getSqlSessionFactory()
+                .getConfiguration();
+        for (Interceptor interceptor : configuration.getInterceptors()) {
+            if (interceptor instanceof SqlStatementCounter) {
+                SqlStatementCounter counter = (SqlStatementCounter) interceptor;
+                counter.active = false;
+                counter.counts = newCounts();
+            }
+        }
+    }
+
+    private static ThreadLocal<Map<String, long[]>> newCounts() {
+        return new ThreadLocal<Map<String, long[]>>() {
+            @Override
+            protected Map<String, long[]> initialValue() {
+                return new HashMap<String, long[]>();
+            }
+        };
+    }
+
+    public Object intercept(Invocation invocation) throws Throwable {
+        if (!active) {
+            return invocation.proceed();
+        }
+        String statementId = ((MappedStatement) invocation.getArgs()[0])
+                .getId();
+        Map<String, long[]> current = counts.get();
+        long[] count = current.get(statementId);
+        if (count == null) {
+            count = new long[1];
+            current.put(statementId, count);
+        }
+        count[0]++;
+        return invocation.proceed();
+    }
+
+    public Object plugin(Object target) {
+        if (target instanceof Executor) {
+            return Plugin.wrap(target, this);
+        }
+        return target;
+    }
+
+    public void setProperties(Properties properties) {
+    }
+
+    /**
+     * @return Statements issued by the current thread since it started, by
+     *         statement id.
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> snapshot = new HashMap<String, Long>();
+        for (Entry<String, long[]> entry : counts.get().entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue()[0]);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param before
+     *            Earlier counts.
+     * @param after
+     *            Later counts.
+     * @return Statements issued in between, by statement id, omitting those
+     *         not issued.
+     */
+    public static Map<String, Long> difference(Map<String, Long> before,
+            Map<String, Long> after) {
+        Map<String, Long> diff = new HashMap<String, Long>();
+        for (Entry<String, Long> entry : after.entrySet()) {
+            Long earlier = before.get(entry.getKey());
+            long count = entry.getValue()
+                    - (earlier == null ? 0 : earlier.longValue());
+            if (count > 0) {
+                diff.put(entry.getKey(), count);
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * @return Sum of the counts.
+     */
+    public static long total(Map<String, Long> counts) {
+        long total = 0;
+        for (Long count : counts.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return One line per statement id, most frequent first.
+     */
+    public static String breakdown(Map<String, Long> counts) {
+        List<Entry<String, Long>> entries = new ArrayList<Entry<String, Long>>(
+                counts.entrySet());
+        Collections.sort(entries, MOST_FIRST);
+        StringBuilder sb = new StringBuilder();
+        for (Entry<String, Long> entry : entries) {
+            sb.append(String.format("  %1$6d %2$s%n", entry.getValue(),
+                    entry.getKey()));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.metrics;
+
+import java.util.Locale;
+
+import com.knowprocess.bpm.bdd.report.BddPhrase;
+
+/**
+ * Measurements of one step of a specification.
+ *
+ * @author Tim Stephenson
+ */
+public class StepMetrics {
+
+    private final int index;
+
+    private final BddPhrase phrase;
+
+    private final long wallNanos;
+
+    private final long serviceCalls;
+
+    private final long commands;
+
+    /**
+     * @param index
+     *            Position of the step, from 0.
+     * @param phrase
+     *            Phrase written by the step, null for totals.
+     * @param wallNanos
+     *            Elapsed time of the step.
+     * @param serviceCalls
+     *            Calls made to the engine's services.
+     * @param commands
+     *            Commands executed, including those nested within others.
+     */
+    public StepMetrics(int index, BddPhrase phrase, long wallNanos,
+            long serviceCalls, long commands) {
+        this.index = index;
+        this.phrase = phrase;
+        this.wallNanos = wallNanos;
+        this.serviceCalls = serviceCalls;
+        this.commands = commands;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return Phrase written by the step, null for totals.
+     */
+    public BddPhrase getPhrase() {
+        return phrase;
+    }
+
+    /**
+     * @return One of the step types of {@link BddPhrase} or 'TOTAL'.
+     */
+    public String getStepType() {
+        return phrase == null ? "TOTAL" : phrase.getStepType();
+    }
+
+    public String getDescription() {
+        return phrase == null ? "" : phrase.getDescription();
+    }
+
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    public double getWallMillis() {
+        return wallNanos / 1e6;
+    }
+
+    public long getServiceCalls() {
+        return serviceCalls;
+    }
+
+    public long getCommands() {
+        return commands;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+                "%1$s %2$s: %3$.3f ms, %4$d service calls, %5$d commands",
+                getStepType(), getDescription(), getWallMillis(),
+                serviceCalls, commands);
+    }
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.knowprocess.bpm.bdd.report.BddPhrase;
+
+/**
+ * Records the wall time and engine calls of each step of a specification.
+ *
+ * <p>
+ * A step is taken to end when it writes its phrase, so each step is measured
+ * from the end of the one before. Engine calls are counted on the thread
+ * running the specification, work done by the async executor is not
+ * included.
+ *
+ * @author Tim Stephenson
+ */
+public class StepTimeline {
+
+    private final EngineCallCounter counter;
+
+    private final List<StepMetrics> steps = new ArrayList<StepMetrics>();
+
+    private long markNanos;
+
+    private long markServiceCalls;
+
+    private long markCommands;
+
+    public StepTimeline(EngineCallCounter counter) {
+        this.counter = counter;
+        mark();
+    }
+
+    /**
+     * Record the end of a step.
+     *
+     * @param phrase
+     *            Phrase written by the step.
+     * @return Measurements of the step.
+     */
+    public StepMetrics stepCompleted(BddPhrase phrase) {
+        long nanoTime = phrase.getNanoTime();
+        long serviceCalls = counter.getServiceCalls();
+        long commands = counter.getCommands();
+        StepMetrics step = new StepMetrics(steps.size(), phrase, nanoTime
+                - markNanos, serviceCalls - markServiceCalls, commands
+                - markCommands);
+        steps.add(step);
+        markNanos = nanoTime;
+        markServiceCalls = serviceCalls;
+        markCommands = commands;
+        return step;
+    }
+
+    /**
+     * @return Measurements of each step in the order they ran.
+     */
+    public List<StepMetrics> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * @return Sum of the measurements of all steps.
+     */
+    public StepMetrics getTotals() {
+        long wallNanos = 0;
+        long serviceCalls = 0;
+        long commands = 0;
+        for (StepMetrics step : steps) {
+            wallNanos += step.getWallNanos();
+            serviceCalls += step.getServiceCalls();
+            commands += step.getCommands();
+        }
+        return new StepMetrics(steps.size(), null, wallNanos, serviceCalls,
+                commands);
+    }
+
+    /**
+     * @return Lines of a table listing each step followed by the totals.
+     */
+    public List<String> toTable() {
+        List<String> lines = new ArrayList<String>(steps.size() + 2);
+        lines.add(String.format(Locale.ENGLISH,
+                "%1$4s %2$-5s %3$10s %4$8s %5$8s  %6$s", "#", "step", "wall ms", "calls", "commands", "description"));
+        for (StepMetrics step : steps) {
+            lines.add(toRow(String.valueOf(step.getIndex()), step));
+        }
+        lines.add(toRow("", getTotals()));
+        return lines;
+    }
+
+    private String toRow(String index, StepMetrics step) {
+        return String.format(Locale.ENGLISH,
+                "%1$4s %2$-5s %3$10.3f %4$8d %5$8d  %6$s", index, step.getStepType(), step.getWallMillis(),
+                step.getServiceCalls(), step.getCommands(),
+                step.getDescription());
+    }
+
+    private void mark() {
+        markNanos = System.nanoTime();
+        markServiceCalls = counter.getServiceCalls();
+        markCommands = counter.getCommands();
+    }
+}
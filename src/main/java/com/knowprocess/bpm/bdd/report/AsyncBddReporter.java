@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.report;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands phrases to a background thread to format and write, so specifications
+ * running concurrently do not contend for the output.
+ *
+ * <p>
+ * Phrases are queued on a blocking queue bounded to {@link #getCapacity()}
+ * entries. Should writers fall behind, specifications wait until there is
+ * space rather than phrases being lost. The writer thread blocks while there
+ * is nothing to write.
+ *
+ * @author Tim Stephenson
+ */
+public class AsyncBddReporter implements BddReporter {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Queued by {@link #close()} to stop the writer thread.
+     */
+    private static final BddPhrase END = new BddPhrase(null, "");
+
+    private final List<BddPhraseWriter> writers;
+
+    private final int capacity;
+
+    private final BlockingQueue<BddPhrase> queue;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final Object flushMonitor = new Object();
+
+    private long flushed;
+
+    private volatile boolean closed;
+
+    private final Thread writerThread;
+
+    public AsyncBddReporter(BddPhraseWriter... writers) {
+        this(DEFAULT_CAPACITY, writers);
+    }
+
+    public AsyncBddReporter(int capacity, BddPhraseWriter... writers) {
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<BddPhrase>(capacity);
+        this.writers = new ArrayList<BddPhraseWriter>(Arrays.asList(writers));
+        this.writerThread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "bdd-reporter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isEnabled() {
+        return !closed && !writers.isEmpty();
+    }
+
+    public void report(BddPhrase phrase) {
+        if (!isEnabled()) {
+            return;
+        }
+        submitted.incrementAndGet();
+        try {
+            queue.put(phrase);
+        } catch (InterruptedException e) {
+            submitted.decrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait until every phrase reported so far has been written and the
+     * writers flushed.
+     */
+    public void flush() {
+        long target = submitted.get();
+        synchronized (flushMonitor) {
+            while (flushed < target && writerThread.isAlive()) {
+                try {
+                    // bounded in case the writer thread dies meanwhile
+                    flushMonitor.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        try {
+            queue.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (BddPhraseWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                System.err.println("Unable to close BDD phrase writer: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private void drain() {
+        long written = 0;
+        try {
+            while (true) {
+                BddPhrase phrase = queue.poll();
+                if (phrase == null) {
+                    // caught up, flush before waiting for more
+                    flushWriters(written);
+                    phrase = queue.take();
+                }
+                if (phrase == END) {
+                    break;
+                }
+                for (BddPhraseWriter writer : writers) {
+                    try {
+                        writer.write(phrase);
+                    } catch (IOException e) {
+                        System.err.println("Unable to write BDD phrase: "
+                                + e.getMessage());
+                    }
+                }
+                written++;
+            }
+        } catch (InterruptedException e) {
+            // stop writing
+        }
+        flushWriters(written);
+    }
+
+    private void flushWriters(long written) {
+        synchronized (flushMonitor) {
+            if (flushed == written) {
+                return;
+            }
+        }
+        for (BddPhraseWriter writer : writers) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Unable to flush BDD phrase writer: "
+                        + e.getMessage());
+            }
+        }
+        synchronized (flushMonitor) {
+            flushed = written;
+            flushMonitor.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.report;
+
+/**
+ * A BDD phrase (Given, When or Then ...) written by a specification.
+ *
+ * <p>
+ * The phrase is formatted when created, on the thread of the specification,
+ * so arguments that change afterwards are reported as they were. Reporters
+ * may then write it on a background thread.
+ *
+ * @author Tim Stephenson
+ */
+public class BddPhrase {
+
+    public static final String GIVEN = "GIVEN";
+
+    public static final String WHEN = "WHEN";
+
+    public static final String THEN = "THEN";
+
+    /**
+     * Step type of the phrase reporting that a specification failed.
+     */
+    public static final String FAILED = "FAILED";
+
+    /**
+     * Step type of phrases that are not part of the scenario itself, such as
+     * the announcement of a new specification.
+     */
+    public static final String INFO = "INFO";
+
+    /**
+     * Step type of the value of a variable collected by a specification.
+     */
+    public static final String VARIABLE = "VARIABLE";
+
+    /**
+     * Step type of the lines of a table of step metrics.
+     */
+    public static final String METRICS = "METRICS";
+
+    /**
+     * Step type of the last phrase of a specification, reported once it has
+     * finished.
+     */
+    public static final String FINISHED = "FINISHED";
+
+    private final long specId;
+
+    private final String specName;
+
+    private final String text;
+
+    private final String stepType;
+
+    private final long timestamp;
+
+    private final long nanoTime;
+
+    private final String threadName;
+
+    /**
+     * @param specName
+     *            Name of the specification writing the phrase.
+     * @param format
+     *            Phrase format as for {@link String#format(String, Object...)}
+     *            .
+     * @param args
+     *            Substitution arguments for the format, null if the format is
+     *            the literal phrase.
+     */
+    public BddPhrase(String specName, String format, Object... args) {
+        this(0, specName, format, args);
+    }
+
+    /**
+     * @param specId
+     *            Identifies the specification writing the phrase amongst any
+     *            others of the same name, 0 if unknown.
+     * @param specName
+     *            Name of the specification writing the phrase.
+     * @param format
+     *            Phrase format as for {@link String#format(String, Object...)}
+     *            .
+     * @param args
+     *            Substitution arguments for the format, null if the format is
+     *            the literal phrase.
+     */
+    public BddPhrase(long specId, String specName, String format,
+            Object... args) {
+        this(specId, specName, null, format, args);
+    }
+
+    private BddPhrase(long specId, String specName, String stepType,
+            String format, Object[] args) {
+        this.specId = specId;
+        this.specName = specName;
+        this.text = args == null ? format : String.format(format, args);
+        this.stepType = stepType == null ? parseStepType(text) : stepType;
+        this.timestamp = System.currentTimeMillis();
+        this.nanoTime = System.nanoTime();
+        this.threadName = Thread.currentThread().getName();
+    }
+
+    /**
+     * @param specId
+     *            Identifies the specification that collected the variable.
+     * @param specName
+     *            Name of the specification that collected the variable.
+     * @param varName
+     * @param value
+     * @return Phrase reporting the value of a variable.
+     */
+    public static BddPhrase newVariable(long specId, String specName,
+            String varName, Object value) {
+        return new BddPhrase(specId, specName, VARIABLE, "%1$s: %2$s",
+                new Object[] { varName, value });
+    }
+
+    /**
+     * @param specId
+     *            Identifies the specification whose steps were measured.
+     * @param specName
+     *            Name of the specification whose steps were measured.
+     * @param line
+     *            One line of the table.
+     * @return Phrase reporting part of a table of step metrics.
+     */
+    public static BddPhrase newMetrics(long specId, String specName,
+            String line) {
+        return new BddPhrase(specId, specName, METRICS, line, null);
+    }
+
+    /**
+     * @param specId
+     *            Identifies the specification that finished.
+     * @param specName
+     *            Name of the specification that finished.
+     * @return Phrase reporting that the specification will write no more.
+     */
+    public static BddPhrase newFinished(long specId, String specName) {
+        return new BddPhrase(specId, specName, FINISHED, "Finished %1$s",
+                new Object[] { specName });
+    }
+
+    private static String parseStepType(String text) {
+        String trimmed = text.trim();
+        for (String type : new String[] { GIVEN, WHEN, THEN, FAILED }) {
+            if (trimmed.startsWith(type + ":")) {
+                return type;
+            }
+        }
+        return INFO;
+    }
+
+    /**
+     * @return Identifies the specification that wrote the phrase amongst any
+     *         others of the same name, 0 if unknown.
+     */
+    public long getSpecId() {
+        return specId;
+    }
+
+    public String getSpecName() {
+        return specName;
+    }
+
+    /**
+     * @return Wall clock time the phrase was written.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return Value of {@link System#nanoTime()} when the phrase was written,
+     *         for measuring the time between phrases.
+     */
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * @return The formatted phrase.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return One of {@link #GIVEN}, {@link #WHEN}, {@link #THEN},
+     *         {@link #FAILED}, {@link #INFO}, {@link #VARIABLE},
+     *         {@link #METRICS} or {@link #FINISHED}.
+     */
+    public String getStepType() {
+        return stepType;
+    }
+
+    /**
+     * @return false if the phrase reports details of the scenario, such as
+     *         {@link #VARIABLE} values or {@link #METRICS}, or that it has
+     *         {@link #FINISHED}, rather than the end of one of its steps.
+     */
+    public boolean isStep() {
+        return !VARIABLE.equals(stepType) && !METRICS.equals(stepType)
+                && !FINISHED.equals(stepType);
+    }
+
+    /**
+     * @return The phrase without any leading step type.
+     */
+    public String getDescription() {
+        String trimmed = text.trim();
+        if (INFO.equals(stepType) || !isStep()) {
+            return trimmed;
+        }
+        return trimmed.substring(stepType.length() + 1).trim();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.report;
+
+import java.io.IOException;
+
+/**
+ * Output format for BDD phrases.
+ *
+ * <p>
+ * Writers are only ever called by the one background thread of an
+ * {@link AsyncBddReporter} so need not be thread safe.
+ *
+ * @author Tim Stephenson
+ */
+public interface BddPhraseWriter {
+
+    void write(BddPhrase phrase) throws IOException;
+
+    void flush() throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.report;
+
+/**
+ * Receives the BDD phrases written by specifications.
+ *
+ * <p>
+ * Implementations must be safe to call from many specifications at once.
+ *
+ * @author Tim Stephenson
+ */
+public interface BddReporter {
+
+    /**
+     * @return false if phrases would be discarded, allowing specifications to
+     *         skip creating them.
+     */
+    boolean isEnabled();
+
+    /**
+     * @param phrase
+     *            The phrase to report.
+     */
+    void report(BddPhrase phrase);
+
+    /**
+     * Block until all phrases reported so far have been written.
+     */
+    void flush();
+
+    /**
+     * Write any outstanding phrases and release resources.
+     */
+    void close();
+}
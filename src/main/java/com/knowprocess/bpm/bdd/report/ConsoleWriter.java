@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.report;
+
+import java.io.PrintStream;
+
+/**
+ * Writes each phrase as a line of plain text, by default to System.out.
+ *
+ * @author Tim Stephenson
+ */
+public class ConsoleWriter implements BddPhraseWriter {
+
+    private final PrintStream out;
+
+    public ConsoleWriter() {
+        this(System.out);
+    }
+
+    public ConsoleWriter(PrintStream out) {
+        this.out = out;
+    }
+
+    public void write(BddPhrase phrase) {
+        if (!BddPhrase.FINISHED.equals(phrase.getStepType())) {
+            out.println(phrase.getText());
+        }
+    }
+
+    public void flush() {
+        out.flush();
+    }
+
+    public void close() {
+        out.flush();
+    }
+}
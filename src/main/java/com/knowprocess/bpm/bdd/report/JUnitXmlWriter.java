@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.report;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a JUnit style XML report, one test case per specification with its
+ * phrases as the test case output. A specification fails if it reported a
+ * {@link BddPhrase#FAILED} phrase, see
+ * {@link com.knowprocess.bpm.bdd.BpmSpec#reportFailure(Throwable)}.
+ *
+ * <p>
+ * Since phrases of concurrent specifications arrive interleaved they are
+ * grouped by specification, told apart by {@link BddPhrase#getSpecId()} or
+ * failing that their name. Each specification's test case is written to a
+ * temporary file once it reports it has {@link BddPhrase#FINISHED}, see
+ * {@link com.knowprocess.bpm.bdd.BpmSpec#finished()}, so only the phrases of
+ * running specifications are held in memory. The suite, whose element needs
+ * the totals, is assembled from the file on close.
+ *
+ * @author Tim Stephenson
+ */
+public class JUnitXmlWriter implements BddPhraseWriter {
+
+    private final OutputStream out;
+
+    private final String suiteName;
+
+    private final Map<Object, List<BddPhrase>> running = new LinkedHashMap<Object, List<BddPhrase>>();
+
+    private File testCasesFile;
+
+    private OutputStream testCasesOut;
+
+    private XMLStreamWriter testCases;
+
+    private int tests;
+
+    private int failures;
+
+    public JUnitXmlWriter(File file, String suiteName) throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(file)), suiteName);
+    }
+
+    public JUnitXmlWriter(OutputStream out, String suiteName) {
+        this.out = out;
+        this.suiteName = suiteName;
+    }
+
+    public void write(BddPhrase phrase) throws IOException {
+        Object spec = phrase.getSpecId() == 0 ? phrase.getSpecName() : Long
+                .valueOf(phrase.getSpecId());
+        if (BddPhrase.FINISHED.equals(phrase.getStepType())) {
+            List<BddPhrase> phrases = running.remove(spec);
+            if (phrases != null) {
+                try {
+                    writeTestCase(phrases, phrase);
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                }
+            }
+            return;
+        }
+        List<BddPhrase> phrases = running.get(spec);
+        if (phrases == null) {
+            phrases = new ArrayList<BddPhrase>();
+            running.put(spec, phrases);
+        }
+        phrases.add(phrase);
+    }
+
+    public void flush() throws IOException {
+        if (testCases != null) {
+            try {
+                testCases.flush();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            // specifications that never reported finishing
+            for (List<BddPhrase> phrases : running.values()) {
+                writeTestCase(phrases, null);
+            }
+            running.clear();
+            if (testCases != null) {
+                testCases.close();
+                testCasesOut.close();
+            }
+
+            XMLStreamWriter xml = XMLOutputFactory.newInstance()
+                    .createXMLStreamWriter(out, "UTF-8");
+            xml.writeStartDocument("UTF-8", "1.0");
+            xml.writeStartElement("testsuite");
+            xml.writeAttribute("name", suiteName);
+            xml.writeAttribute("tests", String.valueOf(tests));
+            xml.writeAttribute("failures", String.valueOf(failures));
+            xml.writeAttribute("errors", "0");
+            // completes the start tag so the test cases can follow it
+            xml.writeCharacters("\n");
+            xml.flush();
+            if (testCasesFile != null) {
+                copy(testCasesFile, out);
+            }
+            xml.writeEndElement();
+            xml.writeEndDocument();
+            xml.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            out.close();
+            if (testCasesFile != null) {
+                testCasesFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return The phrase reporting the specification failed, null if it did
+     *         not.
+     */
+    private static BddPhrase getFailure(List<BddPhrase> phrases) {
+        for (BddPhrase phrase : phrases) {
+            if (BddPhrase.FAILED.equals(phrase.getStepType())) {
+                return phrase;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param phrases
+     *            Phrases of the specification.
+     * @param finished
+     *            Phrase reporting the specification finished, null if it did
+     *            not.
+     */
+    private void writeTestCase(List<BddPhrase> phrases, BddPhrase finished)
+            throws IOException, XMLStreamException {
+        XMLStreamWriter xml = getTestCases();
+        BddPhrase first = phrases.get(0);
+        BddPhrase last = finished == null ? phrases.get(phrases.size() - 1)
+                : finished;
+        xml.writeStartElement("testcase");
+        xml.writeAttribute("classname", suiteName);
+        xml.writeAttribute("name",
+                first.getSpecName() == null ? "" : first.getSpecName());
+        xml.writeAttribute("time", String.format(Locale.ENGLISH, "%1$.3f",
+                (last.getTimestamp() - first.getTimestamp()) / 1000d));
+        BddPhrase failure = getFailure(phrases);
+        if (failure != null) {
+            xml.writeStartElement("failure");
+            xml.writeAttribute("message", failure.getDescription());
+            xml.writeEndElement();
+            failures++;
+        }
+        xml.writeStartElement("system-out");
+        StringBuilder sb = new StringBuilder();
+        for (BddPhrase phrase : phrases) {
+            sb.append(String.format("%1$tFT%1$tT.%1$tL %2$s %3$s%n",
+                    phrase.getTimestamp(), phrase.getStepType(),
+                    phrase.getDescription()));
+        }
+        xml.writeCharacters(sb.toString());
+        xml.writeEndElement();
+        xml.writeEndElement();
+        xml.writeCharacters("\n");
+        tests++;
+    }
+
+    private XMLStreamWriter getTestCases() throws IOException,
+            XMLStreamException {
+        if (testCases == null) {
+            testCasesFile = File.createTempFile("bdd-testcases", ".xml");
+            testCasesFile.deleteOnExit();
+            testCasesOut = new BufferedOutputStream(new FileOutputStream(
+                    testCasesFile));
+            testCases = XMLOutputFactory.newInstance().createXMLStreamWriter(
+                    testCasesOut, "UTF-8");
+        }
+        return testCases;
+    }
+
+    private static void copy(File file, OutputStream out) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
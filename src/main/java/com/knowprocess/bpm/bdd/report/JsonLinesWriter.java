@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.report;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes each phrase as a JSON object on a line of its own.
+ *
+ * @author Tim Stephenson
+ */
+public class JsonLinesWriter implements BddPhraseWriter {
+
+    private final Writer out;
+
+    private final JsonGenerator generator;
+
+    public JsonLinesWriter(File file) throws IOException {
+        this(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                file), "UTF-8")));
+    }
+
+    public JsonLinesWriter(Writer out) throws IOException {
+        this.out = out;
+        this.generator = new JsonFactory().createGenerator(out);
+        generator.setRootValueSeparator(null);
+    }
+
+    public void write(BddPhrase phrase) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("spec", phrase.getSpecName());
+        if (phrase.getSpecId() != 0) {
+            generator.writeNumberField("specId", phrase.getSpecId());
+        }
+        generator.writeStringField("type", phrase.getStepType());
+        generator.writeStringField("text", phrase.getDescription());
+        generator.writeNumberField("timestamp", phrase.getTimestamp());
+        generator.writeStringField("thread", phrase.getThreadName());
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+    }
+
+    public void flush() throws IOException {
+        generator.flush();
+    }
+
+    public void close() throws IOException {
+        generator.close();
+        out.close();
+    }
+}
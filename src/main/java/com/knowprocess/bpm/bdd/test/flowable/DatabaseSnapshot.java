@@ -0,0 +1,292 @@
+package com.knowprocess.bpm.bdd.test.flowable;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.flowable.job.service.impl.asyncexecutor.AsyncExecutor;
+
+/**
+ * The content of an H2 engine database captured as a script of inserts, that
+ * can be restored far faster than the engine can delete what a test created.
+ *
+ * <p>
+ * Restoring truncates every engine table and replays the inserts with
+ * referential integrity checks switched off, then clears the engine's
+ * deployment caches. The cost depends only on the size of the snapshot, not
+ * on what the test did. The property tables are left alone so that the id
+ * generator keeps counting up and ids are never re-used.
+ *
+ * <p>
+ * A baseline is captured once per engine, the first time it is asked for,
+ * and kept for the life of the JVM.
+ *
+ * <p>
+ * Restoring wipes the whole database, so it must not be shared with anything
+ * else. {@link #getDedicatedEngine(String)} provides an engine with a database
+ * of its own per configuration, whose baseline is captured as soon as it has
+ * booted, and {@link #acquire(ProcessEngine)} ensures only one test at a time
+ * uses it. Snapshots are therefore not suitable for tests run in parallel
+ * against the same configuration; they fail fast rather than wipe each
+ * other's data.
+ *
+ * @author Tim Stephenson
+ */
+public class DatabaseSnapshot {
+
+    private static final ConcurrentMap<ProcessEngine, DatabaseSnapshot> baselines = new ConcurrentHashMap<ProcessEngine, DatabaseSnapshot>();
+
+    private static final Map<String, ProcessEngine> dedicatedEngines = new HashMap<String, ProcessEngine>();
+
+    private static final Set<ProcessEngine> inUse = Collections
+            .newSetFromMap(new ConcurrentHashMap<ProcessEngine, Boolean>());
+
+    private final ProcessEngine processEngine;
+
+    private final Set<String> tables;
+
+    private final List<String> inserts;
+
+    protected DatabaseSnapshot(ProcessEngine processEngine, Set<String> tables,
+            List<String> inserts) {
+        this.processEngine = processEngine;
+        this.tables = tables;
+        this.inserts = inserts;
+    }
+
+    /**
+     * @param configurationResource
+     *            Classpath resource defining the engine configuration.
+     * @return An engine built from the configuration but with a database of
+     *         its own, booted and its baseline captured on first request.
+     */
+    public static synchronized ProcessEngine getDedicatedEngine(
+            String configurationResource) {
+        ProcessEngine engine = dedicatedEngines.get(configurationResource);
+        if (engine == null) {
+            engine = ProcessEnginePool.buildIsolatedEngine(
+                    configurationResource, "snapshot");
+            getBaseline(engine);
+            dedicatedEngines.put(configurationResource, engine);
+        }
+        return engine;
+    }
+
+    /**
+     * Claim the engine for a test that will restore its database.
+     *
+     * @param processEngine
+     *            Engine whose database will be restored.
+     * @throws FlowableException
+     *             If another test already has the engine.
+     */
+    public static void acquire(ProcessEngine processEngine) {
+        if (!inUse.add(processEngine)) {
+            throw new FlowableException(String.format(
+                    "Database of engine %1$s is already in use by a test restoring snapshots, such tests cannot run in parallel",
+                    processEngine.getName()));
+        }
+    }
+
+    /**
+     * @param processEngine
+     *            Engine previously claimed by {@link #acquire(ProcessEngine)}.
+     */
+    public static void release(ProcessEngine processEngine) {
+        inUse.remove(processEngine);
+    }
+
+    /**
+     * @param processEngine
+     *            Engine whose database to snapshot.
+     * @return The baseline snapshot of the engine's database, capturing it if
+     *         this is the first request.
+     */
+    public static DatabaseSnapshot getBaseline(ProcessEngine processEngine) {
+        DatabaseSnapshot baseline = baselines.get(processEngine);
+        if (baseline == null) {
+            baseline = capture(processEngine);
+            DatabaseSnapshot existing = baselines.putIfAbsent(processEngine,
+                    baseline);
+            if (existing != null) {
+                baseline = existing;
+            }
+        }
+        return baseline;
+    }
+
+    /**
+     * Discard the baseline of the engine, the next request will capture a new
+     * one.
+     *
+     * @param processEngine
+     *            Engine whose database was snapshot.
+     */
+    public static void discardBaseline(ProcessEngine processEngine) {
+        baselines.remove(processEngine);
+    }
+
+    /**
+     * Capture the current content of the engine's tables.
+     *
+     * @param processEngine
+     *            Engine whose database to snapshot.
+     * @return The snapshot.
+     * @throws FlowableException
+     *             If the database is not H2 or cannot be read.
+     */
+    public static DatabaseSnapshot capture(ProcessEngine processEngine) {
+        ProcessEngineConfigurationImpl configuration = getConfiguration(processEngine);
+        if (!"h2".equals(configuration.getDatabaseType())) {
+            throw new FlowableException(
+                    "Database snapshots are only supported on H2, not "
+                            + configuration.getDatabaseType());
+        }
+        Set<String> tables = new TreeSet<String>();
+        for (String table : processEngine.getManagementService()
+                .getTableCount().keySet()) {
+            if (!table.toUpperCase().endsWith("_PROPERTY")) {
+                tables.add(table.toUpperCase());
+            }
+        }
+
+        List<String> inserts = new ArrayList<String>();
+        Connection connection = null;
+        try {
+            connection = configuration.getDataSource().getConnection();
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet rs = statement
+                        .executeQuery("SCRIPT NOPASSWORDS NOSETTINGS NOVERSION TABLE "
+                                + join(tables));
+                while (rs.next()) {
+                    String sql = rs.getString(1);
+                    if (sql.startsWith("INSERT INTO")) {
+                        inserts.add(sql);
+                    }
+                }
+            } finally {
+                statement.close();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new FlowableException("Unable to capture database snapshot",
+                    e);
+        } finally {
+            close(connection);
+        }
+        return new DatabaseSnapshot(processEngine,
+                Collections.unmodifiableSet(tables),
+                Collections.unmodifiableList(inserts));
+    }
+
+    /**
+     * @return Number of insert statements making up the snapshot.
+     */
+    public int getStatementCount() {
+        return inserts.size();
+    }
+
+    /**
+     * Return the engine's tables to the state captured.
+     *
+     * <p>
+     * The async executor, if running, is paused for the duration so that no
+     * job sees the tables part way through.
+     *
+     * @throws FlowableException
+     *             If the database cannot be restored.
+     */
+    public void restore() {
+        ProcessEngineConfigurationImpl configuration = getConfiguration(processEngine);
+        AsyncExecutor asyncExecutor = configuration.getAsyncExecutor();
+        boolean wasActive = asyncExecutor != null && asyncExecutor.isActive();
+        if (wasActive) {
+            asyncExecutor.shutdown();
+        }
+        Connection connection = null;
+        try {
+            connection = configuration.getDataSource().getConnection();
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("SET REFERENTIAL_INTEGRITY FALSE");
+                try {
+                    for (String table : tables) {
+                        statement.addBatch("TRUNCATE TABLE " + table);
+                    }
+                    for (String insert : inserts) {
+                        statement.addBatch(insert);
+                    }
+                    statement.executeBatch();
+                } finally {
+                    statement.execute("SET REFERENTIAL_INTEGRITY TRUE");
+                }
+            } finally {
+                statement.close();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new FlowableException("Unable to restore database snapshot",
+                    e);
+        } finally {
+            close(connection);
+            clearCaches(configuration);
+            if (wasActive) {
+                asyncExecutor.start();
+            }
+        }
+    }
+
+    /**
+     * Forget process definitions held in memory since their deployments may
+     * no longer exist.
+     */
+    protected void clearCaches(ProcessEngineConfigurationImpl configuration) {
+        configuration.getProcessDefinitionCache().clear();
+        configuration.getDeploymentManager().getProcessDefinitionInfoCache()
+                .clear();
+        configuration.getKnowledgeBaseCache().clear();
+        configuration.getAppResourceCache().clear();
+        DeploymentCache.getInstance().clear();
+    }
+
+    private static ProcessEngineConfigurationImpl getConfiguration(
+            ProcessEngine processEngine) {
+        return (ProcessEngineConfigurationImpl) processEngine
+                .getProcessEngineConfiguration();
+    }
+
+    private static String join(Set<String> tables) {
+        StringBuilder sb = new StringBuilder();
+        for (String table : tables) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(table);
+        }
+        return sb.toString();
+    }
+
+    private static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                // nothing more to be done
+            }
+        }
+    }
+}
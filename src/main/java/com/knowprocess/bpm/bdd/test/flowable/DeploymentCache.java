@@ -0,0 +1,267 @@
+package com.knowprocess.bpm.bdd.test.flowable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.common.api.FlowableObjectNotFoundException;
+import org.flowable.engine.history.HistoricProcessInstance;
+import org.flowable.engine.common.impl.util.ReflectUtil;
+import org.flowable.engine.repository.Deployment;
+import org.flowable.engine.repository.DeploymentBuilder;
+import org.flowable.engine.repository.ProcessDefinition;
+import org.flowable.engine.repository.ProcessDefinitionQuery;
+import org.flowable.engine.runtime.ProcessInstance;
+
+/**
+ * Re-uses deployments of unchanged process resources.
+ *
+ * <p>
+ * Deployments are named after a hash of the content of their resources. When
+ * asked to deploy the same content again the existing deployment is returned
+ * provided its process definitions are still the latest versions, so the
+ * engine only parses and stores the BPMN when it has actually changed.
+ *
+ * <p>
+ * Cached deployments are intended to outlive individual tests so are not
+ * removed by {@link ExtendedRule} or the {@link ProcessEnginePool}. Nor,
+ * therefore, are the process instances started from them, which would then
+ * be counted by later tests, for example in duration percentiles. The cache
+ * should therefore be paired with a {@link DatabaseSnapshot} or with
+ * {@link #deleteProcessInstances(ProcessEngine, String)} after each test, as
+ * {@link ExtendedRule#withDeploymentCache()} does.
+ *
+ * <p>
+ * Engines are held weakly, so those discarded without being closed do not
+ * remain reachable through the cache.
+ *
+ * @author Tim Stephenson
+ */
+public class DeploymentCache {
+
+    public static final String NAME_PREFIX = "bpm-bdd-cache:";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final DeploymentCache instance = new DeploymentCache();
+
+    private final ConcurrentMap<String, String> hashes = new ConcurrentHashMap<String, String>();
+
+    private final Map<ProcessEngine, ConcurrentMap<String, String>> deploymentIds = Collections
+            .synchronizedMap(new WeakHashMap<ProcessEngine, ConcurrentMap<String, String>>());
+
+    /**
+     * @return The cache shared by all tests in this JVM.
+     */
+    public static DeploymentCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param deployment
+     * @return true if the deployment was made by a deployment cache.
+     */
+    public static boolean isCached(Deployment deployment) {
+        return deployment.getName() != null
+                && deployment.getName().startsWith(NAME_PREFIX);
+    }
+
+    /**
+     * Deploy the resources unless identical content is already deployed.
+     *
+     * @param engine
+     *            Engine to deploy to.
+     * @param tenantId
+     *            Tenant to deploy to, may be null.
+     * @param resources
+     *            Classpath resources making up the deployment.
+     * @return Id of the new or existing deployment.
+     */
+    public String deploy(ProcessEngine engine, String tenantId,
+            String... resources) {
+        String name = NAME_PREFIX + hash(resources)
+                + (tenantId == null ? "" : ":" + tenantId);
+
+        ConcurrentMap<String, String> ids = getDeploymentIds(engine);
+        String deploymentId = ids.get(name);
+        if (deploymentId == null) {
+            deploymentId = findDeployment(engine, name);
+        }
+        if (deploymentId != null && isCurrent(engine, deploymentId, tenantId)) {
+            ids.put(name, deploymentId);
+            return deploymentId;
+        }
+
+        DeploymentBuilder builder = engine.getRepositoryService()
+                .createDeployment().name(name);
+        for (String resource : resources) {
+            builder.addClasspathResource(resource);
+        }
+        if (tenantId != null && tenantId.length() > 0) {
+            builder.tenantId(tenantId);
+        }
+        deploymentId = builder.deploy().getId();
+        ids.put(name, deploymentId);
+        return deploymentId;
+    }
+
+    /**
+     * Forget all deployments, they will be looked up afresh on next use.
+     */
+    public void clear() {
+        deploymentIds.clear();
+    }
+
+    /**
+     * Forget the deployments made to an engine, for example because it is
+     * being closed.
+     *
+     * @param engine
+     */
+    public void clear(ProcessEngine engine) {
+        deploymentIds.remove(engine);
+    }
+
+    /**
+     * Delete the process instances started from a deployment, along with
+     * their history, leaving the deployment itself for re-use.
+     *
+     * @param engine
+     *            Engine the deployment was made to.
+     * @param deploymentId
+     *            Id of the deployment.
+     */
+    public void deleteProcessInstances(ProcessEngine engine,
+            String deploymentId) {
+        for (ProcessInstance instance : engine.getRuntimeService()
+                .createProcessInstanceQuery().deploymentId(deploymentId)
+                .excludeSubprocesses(true).list()) {
+            try {
+                engine.getRuntimeService().deleteProcessInstance(
+                        instance.getId(), "Test finished");
+            } catch (FlowableObjectNotFoundException e) {
+                // Already removed by the test, nothing to do
+            }
+        }
+        for (HistoricProcessInstance instance : engine.getHistoryService()
+                .createHistoricProcessInstanceQuery()
+                .deploymentId(deploymentId).list()) {
+            try {
+                engine.getHistoryService().deleteHistoricProcessInstance(
+                        instance.getId());
+            } catch (FlowableObjectNotFoundException e) {
+                // Removed along with its parent, nothing to do
+            }
+        }
+    }
+
+    /**
+     * @return true if the deployment exists and each of its process definitions
+     *         is the latest version of that process.
+     */
+    protected boolean isCurrent(ProcessEngine engine, String deploymentId,
+            String tenantId) {
+        List<ProcessDefinition> definitions = engine.getRepositoryService()
+                .createProcessDefinitionQuery().deploymentId(deploymentId)
+                .list();
+        if (definitions.isEmpty()) {
+            return false;
+        }
+        for (ProcessDefinition definition : definitions) {
+            ProcessDefinitionQuery query = engine.getRepositoryService()
+                    .createProcessDefinitionQuery()
+                    .processDefinitionKey(definition.getKey()).latestVersion();
+            if (tenantId != null && tenantId.length() > 0) {
+                query.processDefinitionTenantId(tenantId);
+            } else {
+                query.processDefinitionWithoutTenantId();
+            }
+            ProcessDefinition latest = query.singleResult();
+            if (latest == null || !latest.getId().equals(definition.getId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String findDeployment(ProcessEngine engine, String name) {
+        List<Deployment> deployments = engine.getRepositoryService()
+                .createDeploymentQuery().deploymentName(name)
+                .orderByDeploymenTime().desc().listPage(0, 1);
+        return deployments.isEmpty() ? null : deployments.get(0).getId();
+    }
+
+    private ConcurrentMap<String, String> getDeploymentIds(ProcessEngine engine) {
+        synchronized (deploymentIds) {
+            ConcurrentMap<String, String> ids = deploymentIds.get(engine);
+            if (ids == null) {
+                ids = new ConcurrentHashMap<String, String>();
+                deploymentIds.put(engine, ids);
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Resources are read from the classpath so do not change within one JVM,
+     * the hash of each set is therefore only computed once.
+     */
+    protected String hash(String... resources) {
+        String key = Arrays.toString(resources);
+        String hash = hashes.get(key);
+        if (hash == null) {
+            hash = computeHash(resources);
+            hashes.put(key, hash);
+        }
+        return hash;
+    }
+
+    private String computeHash(String... resources) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buf = new byte[8192];
+        for (String resource : resources) {
+            digest.update(resource.getBytes());
+            InputStream is = ReflectUtil.getResourceAsStream(resource);
+            if (is == null) {
+                throw new FlowableException("resource '" + resource
+                        + "' not found");
+            }
+            try {
+                int read;
+                while ((read = is.read(buf)) != -1) {
+                    digest.update(buf, 0, read);
+                }
+            } catch (IOException e) {
+                throw new FlowableException("Unable to read resource '"
+                        + resource + "'", e);
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+        byte[] bytes = digest.digest();
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        return sb.toString();
+    }
+}
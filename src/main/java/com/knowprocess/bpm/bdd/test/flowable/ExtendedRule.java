@@ -4,6 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -11,15 +14,24 @@ import java.util.List;
 import java.util.Map;
 
 import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.FlowableException;
 import org.flowable.engine.form.TaskFormData;
 import org.flowable.engine.history.HistoricActivityInstance;
 import org.flowable.engine.runtime.ProcessInstance;
-import org.flowable.engine.runtime.ProcessInstanceQuery;
+import org.flowable.engine.impl.test.TestHelper;
+import org.flowable.engine.test.Deployment;
 import org.flowable.engine.test.FlowableRule;
 import org.flowable.identitylink.api.IdentityLink;
 import org.flowable.job.api.Job;
 import org.flowable.task.api.Task;
 import org.flowable.variable.api.history.HistoricVariableInstance;
+import org.junit.runner.Description;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.assertions.BpmAssert;
+import com.knowprocess.bpm.bdd.ext.AuditTrailExporter;
+import com.knowprocess.bpm.bdd.ext.AuditTrailExporter.PageHandler;
+import com.knowprocess.bpm.bdd.history.InMemoryHistory;
 
 /**
  * Provides observation and assertion support for tasks created within process
@@ -32,12 +44,38 @@ public class ExtendedRule extends FlowableRule {
     public static final int DEFAULT_PRIORITY = 50;
     protected final Map<String, Object> emptyData = Collections.emptyMap();
 
+    protected final boolean pooled;
+
+    protected boolean deploymentCached;
+
+    protected boolean inMemoryHistory;
+
+    protected boolean databaseSnapshot;
+
+    private final List<BpmSpec> specifications = new ArrayList<BpmSpec>();
+
+    private volatile Thread testThread;
+
     public ExtendedRule(String alternateConfig) {
+        this(alternateConfig, false);
+    }
+
+    /**
+     * @param alternateConfig
+     *            Classpath resource defining the engine configuration.
+     * @param pooled
+     *            If true lease the engine from the shared
+     *            {@link ProcessEnginePool}, returning it once the test has
+     *            finished, rather than keeping it for the life of this rule.
+     */
+    public ExtendedRule(String alternateConfig, boolean pooled) {
         super(alternateConfig);
+        this.pooled = pooled;
     }
 
     public ExtendedRule(ProcessEngine pe) {
         super(pe);
+        pooled = false;
         formService = pe.getFormService();
         historyService = pe.getHistoryService();
         repositoryService = pe.getRepositoryService();
@@ -45,27 +83,237 @@ public class ExtendedRule extends FlowableRule {
         taskService = pe.getTaskService();
     }
 
-    public void dumpProcessState(String piid) {
-        ProcessInstanceQuery query = runtimeService
-                .createProcessInstanceQuery().processInstanceId(piid);
-        List<ProcessInstance> list = query.list();
-        if (list.size() == 1) {
-            ProcessInstance pi = list.get(0);
-            System.out.println("******* process instance: " + pi.getId()
-                    + " *******");
-            // TODO This is _always_ false as record will be gone if is ended
-            // System.out.println("... ended?: " + pi.isEnded());
-
-            dumpCurrentJobs(piid);
-            dumpCurrentTasks(piid);
-            dumpVariables(piid);
+    /**
+     * Deploy resources named by the test's <code>@Deployment</code> annotation
+     * through the {@link DeploymentCache}, so unchanged resources are deployed
+     * only once and kept between tests.
+     *
+     * <p>
+     * Unless {@link #withDatabaseSnapshot()} restores the database, the
+     * process instances started from the deployment and their history are
+     * deleted when each test finishes.
+     *
+     * @return This rule.
+     */
+    public ExtendedRule withDeploymentCache() {
+        this.deploymentCached = true;
+        return this;
+    }
+
+    /**
+     * Record the engine's history in memory for the duration of each test, see
+     * {@link InMemoryHistory}. Combined with an engine configured for history
+     * level 'none' this avoids writing and querying the history tables.
+     *
+     * @return This rule.
+     */
+    public ExtendedRule withInMemoryHistory() {
+        this.inMemoryHistory = true;
+        return this;
+    }
+
+    /**
+     * Return the database to a baseline after each test by restoring a
+     * {@link DatabaseSnapshot} rather than deleting the test's deployment.
+     *
+     * <p>
+     * The rule uses an engine with a database of its own, see
+     * {@link DatabaseSnapshot#getDedicatedEngine(String)}, since restoring
+     * wipes every table. Only H2 databases are supported and tests using the
+     * same configuration cannot run in parallel, a second test starting while
+     * another is running fails.
+     *
+     * @return This rule.
+     * @throws IllegalStateException
+     *             If the rule's engine is pooled or was supplied by the
+     *             caller, since either may share its database.
+     */
+    public ExtendedRule withDatabaseSnapshot() {
+        if (pooled || processEngine != null) {
+            throw new IllegalStateException(
+                    "Database snapshots need an engine of their own, not a pooled or supplied one");
+        }
+        this.databaseSnapshot = true;
+        return this;
+    }
+
+    @Override
+    protected void configureProcessEngine() {
+        super.configureProcessEngine();
+        if (databaseSnapshot) {
+            DatabaseSnapshot.acquire(processEngine);
+        }
+        if (inMemoryHistory) {
+            InMemoryHistory.install(processEngine);
+        }
+    }
+
+    @Override
+    protected void starting(Description description) {
+        testThread = Thread.currentThread();
+        if (!deploymentCached) {
+            super.starting(description);
+            return;
+        }
+
+        if (processEngine == null) {
+            initializeProcessEngine();
+        }
+        if (processEngineConfiguration == null) {
+            initializeServices();
+        }
+        if (mockSupport == null) {
+            initializeMockSupport();
+        }
+        configureProcessEngine();
+
+        Class<?> testClass;
+        try {
+            testClass = Class.forName(description.getClassName());
+        } catch (ClassNotFoundException e) {
+            throw new FlowableException(
+                    "Programmatic error: could not instantiate "
+                            + description.getClassName(), e);
+        }
+        TestHelper.annotationMockSupportSetup(testClass,
+                description.getMethodName(), mockSupport);
+        deploymentId = deployCached(testClass, description.getMethodName());
+    }
+
+    private String deployCached(Class<?> testClass, String methodName) {
+        Method method;
+        try {
+            method = testClass.getMethod(methodName, (Class<?>[]) null);
+        } catch (Exception e) {
+            // as TestHelper, e.g. when using @Parameters
+            return null;
+        }
+        Deployment annotation = method.getAnnotation(Deployment.class);
+        if (annotation == null) {
+            return null;
+        }
+        String[] resources = annotation.resources();
+        if (resources.length == 0) {
+            resources = new String[] { TestHelper
+                    .getBpmnProcessDefinitionResource(testClass, methodName) };
+        }
+        String tenantId = annotation.tenantId() == null
+                || annotation.tenantId().length() == 0 ? null : annotation
+                .tenantId();
+        return DeploymentCache.getInstance().deploy(processEngine, tenantId,
+                resources);
+    }
+
+    @Override
+    protected void initializeMockSupport() {
+        if (pooled) {
+            mockSupport = ProcessEnginePool.getInstance().getMockSupport(
+                    processEngine);
+        } else {
+            super.initializeMockSupport();
+        }
+    }
+
+    @Override
+    protected void initializeProcessEngine() {
+        if (databaseSnapshot) {
+            processEngine = DatabaseSnapshot
+                    .getDedicatedEngine(configurationResource);
+        } else if (pooled) {
+            processEngine = ProcessEnginePool.getInstance().lease(
+                    configurationResource);
         } else {
-            assertEquals(0, list.size());
-            System.out.println("found '" + list.size()
-                    + "' proc instances, assume ended");
+            super.initializeProcessEngine();
+        }
+    }
+
+    /**
+     * Called by each {@link BpmSpec} created with this rule, so a failure of
+     * the test can be reported with its phrases.
+     *
+     * <p>
+     * Only specifications created on the thread running the test are held,
+     * those of load and data driven runners, or created outside any test,
+     * are left for their creator to finish.
+     *
+     * @param spec
+     */
+    public synchronized void addSpecification(BpmSpec spec) {
+        if (Thread.currentThread() == testThread) {
+            specifications.add(spec);
+        }
+    }
+
+    /**
+     * Forget a specification that has finished before the test.
+     *
+     * @param spec
+     */
+    public synchronized void removeSpecification(BpmSpec spec) {
+        specifications.remove(spec);
+    }
+
+    @Override
+    protected void failed(Throwable e, Description description) {
+        super.failed(e, description);
+        for (BpmSpec spec : getSpecifications()) {
+            spec.reportFailure(e);
+        }
+    }
+
+    private synchronized List<BpmSpec> getSpecifications() {
+        return new ArrayList<BpmSpec>(specifications);
+    }
+
+    @Override
+    protected void finished(Description description) {
+        String cachedDeploymentId = deploymentCached ? deploymentId : null;
+        if (deploymentCached || databaseSnapshot) {
+            // keep the deployment for the next test to re-use or leave it to
+            // be removed by restoring the snapshot
+            deploymentId = null;
         }
+        try {
+            super.finished(description);
+        } finally {
+            if (databaseSnapshot && processEngine != null) {
+                try {
+                    DatabaseSnapshot.getBaseline(processEngine).restore();
+                } finally {
+                    DatabaseSnapshot.release(processEngine);
+                }
+            } else if (cachedDeploymentId != null && processEngine != null) {
+                DeploymentCache.getInstance().deleteProcessInstances(
+                        processEngine, cachedDeploymentId);
+            }
+            if (inMemoryHistory && processEngine != null) {
+                InMemoryHistory.uninstall(processEngine);
+            }
+            for (BpmSpec spec : getSpecifications()) {
+                spec.finished();
+            }
+            synchronized (this) {
+                specifications.clear();
+            }
+            testThread = null;
+            BpmAssert.clearProcessEngine();
+            if (pooled && processEngine != null) {
+                ProcessEnginePool.getInstance().release(processEngine);
+                processEngine = null;
+                processEngineConfiguration = null;
+                mockSupport = null;
+            }
+        }
+    }
 
-        dumpAuditTrail(piid);
+    /**
+     * Print the state of the process instance and of every process instance
+     * it called, fetched in a few batched queries.
+     *
+     * @see ProcessStateSnapshot
+     */
+    public void dumpProcessState(String piid) {
+        ProcessStateSnapshot.capture(processEngine, piid).print(System.out);
     }
 
     public void dumpCurrentJobs(String piid) {
@@ -102,7 +350,16 @@ public class ExtendedRule extends FlowableRule {
         System.out.println(String.format(
                 "************ Process variables for piid %1$s ************",
                 piid));
-        if (isComplete(piid)) {
+        InMemoryHistory memory = InMemoryHistory.get(processEngine);
+        if (memory != null && isComplete(piid)) {
+            Map<String, Object> variables = memory.getVariables(piid);
+            System.out.println(String.format("  (At end there were %1$s vars)",
+                    variables.size()));
+            for (Map.Entry<String, ?> entry : variables.entrySet()) {
+                System.out.println(String.format("%1$s: %2$s", entry.getKey(),
+                        entry.getValue()));
+            }
+        } else if (isComplete(piid)) {
             List<HistoricVariableInstance> list = getHistoryService()
                     .createHistoricVariableInstanceQuery()
                     .processInstanceId(piid).list();
@@ -127,10 +384,32 @@ public class ExtendedRule extends FlowableRule {
         System.out.println(String.format(
                 "************* Audit info for process: %1$s *************",
                 piid));
-        List<HistoricActivityInstance> activityHistory = historyService
-                .createHistoricActivityInstanceQuery().processInstanceId(piid)
-                .list();
-        for (HistoricActivityInstance ai : activityHistory) {
+        // page through so that long histories need not fit in memory
+        new AuditTrailExporter(processEngine).forEachActivity(piid,
+                new PageHandler<HistoricActivityInstance, RuntimeException>() {
+                    public void handle(List<HistoricActivityInstance> page) {
+                        dumpActivities(page);
+                    }
+                });
+    }
+
+    /**
+     * Export the audit trail of the process instance and any it called to a
+     * gzip compressed newline delimited JSON file, paging through history.
+     *
+     * @param piid
+     *            Process instance whose history to export.
+     * @param file
+     *            File to write.
+     * @return Number of records written.
+     * @see AuditTrailExporter
+     */
+    public long exportAuditTrail(String piid, File file) throws IOException {
+        return new AuditTrailExporter(processEngine).export(piid, file);
+    }
+
+    private void dumpActivities(List<HistoricActivityInstance> activities) {
+        for (HistoricActivityInstance ai : activities) {
             String msg = String.format(
                     "... %1$s (%2$s):%3$s complete?: %4$s",
                     ai.getActivityName(),
@@ -253,8 +532,8 @@ public class ExtendedRule extends FlowableRule {
     }
 
     protected boolean isComplete(String piid) {
-        return getHistoryService().createHistoricProcessInstanceQuery()
-                .processInstanceId(piid).singleResult().getEndTime() != null;
+        return InMemoryHistory.findProcessInstance(processEngine, piid)
+                .getEndTime() != null;
     }
 
     public void assertVariableValue(String piid, String name, Object val) {
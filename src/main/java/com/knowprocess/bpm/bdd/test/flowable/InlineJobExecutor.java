@@ -0,0 +1,330 @@
+package com.knowprocess.bpm.bdd.test.flowable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.flowable.engine.ManagementService;
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.common.api.FlowableObjectNotFoundException;
+import org.flowable.engine.common.runtime.Clock;
+import org.flowable.job.api.Job;
+import org.flowable.job.service.impl.asyncexecutor.AsyncExecutor;
+import org.flowable.job.service.impl.persistence.entity.TimerJobEntity;
+
+import com.knowprocess.bpm.bdd.ProcessInstanceTree;
+
+/**
+ * Runs due jobs on the calling thread instead of the async executor.
+ *
+ * <p>
+ * Executable jobs and timers that have fallen due are run one at a time in
+ * due date order, repeating until none remain. This removes the latency of
+ * job acquisition and makes the order jobs run in reproducible. Any exception
+ * thrown by a job is propagated to the caller.
+ *
+ * <p>
+ * Combined with the engine's clock this also supports travelling forward in
+ * time, firing each timer as the clock reaches its due date.
+ *
+ * <p>
+ * Given a {@link ProcessInstanceTree} only the jobs of the process instances
+ * in that tree are run, leaving those of other scenarios sharing the engine
+ * to them.
+ *
+ * @author Tim Stephenson
+ */
+public class InlineJobExecutor {
+
+    /**
+     * Limit on the number of jobs run by one call, guarding against processes
+     * that loop forever.
+     */
+    public static final int MAX_JOBS = 10000;
+
+    private static final Comparator<Job> DUE_DATE_ORDER = new Comparator<Job>() {
+        public int compare(Job job1, Job job2) {
+            if (job1.getDuedate() == null) {
+                return job2.getDuedate() == null ? 0 : -1;
+            } else if (job2.getDuedate() == null) {
+                return 1;
+            }
+            return job1.getDuedate().compareTo(job2.getDuedate());
+        }
+    };
+
+    /**
+     * Async executors disabled by at least one inline executor, shared by
+     * every specification using the engine.
+     */
+    private static final Map<AsyncExecutor, Suspension> suspensions = new IdentityHashMap<AsyncExecutor, Suspension>();
+
+    private final ProcessEngine processEngine;
+
+    private boolean disabled;
+
+    public InlineJobExecutor(ProcessEngine processEngine) {
+        this.processEngine = processEngine;
+    }
+
+    /**
+     * Shut down the async executor so that jobs run only when asked, until
+     * {@link #restoreAsyncExecutor()} is called.
+     *
+     * <p>
+     * Disabling is counted so that the executor stays down until every
+     * inline executor of the engine has restored it and is then restarted
+     * only if it was running to begin with.
+     */
+    public void disableAsyncExecutor() {
+        AsyncExecutor asyncExecutor = getAsyncExecutor();
+        if (asyncExecutor == null || disabled) {
+            return;
+        }
+        synchronized (suspensions) {
+            Suspension suspension = suspensions.get(asyncExecutor);
+            if (suspension == null) {
+                suspension = new Suspension(asyncExecutor.isActive());
+                suspensions.put(asyncExecutor, suspension);
+                if (suspension.wasActive) {
+                    asyncExecutor.shutdown();
+                }
+            }
+            suspension.users++;
+        }
+        disabled = true;
+    }
+
+    /**
+     * Undo {@link #disableAsyncExecutor()}, restarting the async executor
+     * once no other inline executor needs it stopped.
+     */
+    public void restoreAsyncExecutor() {
+        AsyncExecutor asyncExecutor = getAsyncExecutor();
+        if (asyncExecutor == null || !disabled) {
+            return;
+        }
+        disabled = false;
+        synchronized (suspensions) {
+            Suspension suspension = suspensions.get(asyncExecutor);
+            if (suspension != null && --suspension.users == 0) {
+                suspensions.remove(asyncExecutor);
+                if (suspension.wasActive && !asyncExecutor.isActive()) {
+                    asyncExecutor.start();
+                }
+            }
+        }
+    }
+
+    private AsyncExecutor getAsyncExecutor() {
+        return processEngine.getProcessEngineConfiguration()
+                .getAsyncExecutor();
+    }
+
+    /**
+     * Run all executable jobs and due timers of the engine, including any
+     * created by running them, until none remain.
+     *
+     * @return Number of jobs run.
+     */
+    public int executeDueJobs() {
+        return executeDueJobs(null);
+    }
+
+    /**
+     * Run the executable jobs and due timers of a tree of process instances,
+     * including any created by running them, until none remain.
+     *
+     * @param scope
+     *            Process instances whose jobs to run, null for every job of
+     *            the engine.
+     * @return Number of jobs run.
+     */
+    public int executeDueJobs(ProcessInstanceTree scope) {
+        int executed = 0;
+        List<Job> due = findDueJobs(scope);
+        while (!due.isEmpty()) {
+            for (Job job : due) {
+                if (execute(job)) {
+                    executed++;
+                }
+                if (executed > MAX_JOBS) {
+                    throw new FlowableException(String.format(
+                            "More than %1$d jobs run inline, is the process looping?",
+                            MAX_JOBS));
+                }
+            }
+            due = findDueJobs(scope);
+        }
+        return executed;
+    }
+
+    /**
+     * Move the engine's clock forward to the target time, stopping at the due
+     * date of each timer on the way to fire it and run any jobs that follow.
+     *
+     * <p>
+     * The async executor is paused for the duration so that it does not
+     * compete for the jobs, see {@link #disableAsyncExecutor()}.
+     *
+     * <p>
+     * The clock belongs to the engine, so time moves for every scenario
+     * using it. Travel in time only on an engine of the scenario's own, not
+     * one leased from {@link ProcessEnginePool} or otherwise shared by tests
+     * running in parallel.
+     *
+     * @param target
+     *            Time to travel to.
+     * @return Number of jobs run, including timers fired.
+     */
+    public int travelTo(Date target) {
+        return travelTo(target, null);
+    }
+
+    /**
+     * Move the engine's clock forward to the target time, firing the timers
+     * of a tree of process instances on the way, see
+     * {@link #travelTo(Date)}.
+     *
+     * @param target
+     *            Time to travel to.
+     * @param scope
+     *            Process instances whose jobs to run, null for every job of
+     *            the engine.
+     * @return Number of jobs run, including timers fired.
+     */
+    public int travelTo(Date target, ProcessInstanceTree scope) {
+        boolean alreadyDisabled = disabled;
+        disableAsyncExecutor();
+        try {
+            Clock clock = processEngine.getProcessEngineConfiguration()
+                    .getClock();
+            int executed = executeDueJobs(scope);
+            // timer query is exclusive of the limit, make it inclusive
+            Date limit = new Date(target.getTime() + 1);
+            Job next = findNextTimer(limit, scope);
+            while (next != null) {
+                Date due = next.getDuedate();
+                if (due.after(clock.getCurrentTime())) {
+                    clock.setCurrentTime(due);
+                }
+                int fired = executeDueJobs(scope);
+                if (fired == 0) {
+                    // timer is not executable, e.g. out of retries
+                    break;
+                }
+                executed += fired;
+                next = findNextTimer(limit, scope);
+            }
+            if (target.after(clock.getCurrentTime())) {
+                clock.setCurrentTime(target);
+            }
+            return executed + executeDueJobs(scope);
+        } finally {
+            if (!alreadyDisabled) {
+                restoreAsyncExecutor();
+            }
+        }
+    }
+
+    /**
+     * @return The first timer due before the limit, null if there is none.
+     */
+    private Job findNextTimer(Date limit, ProcessInstanceTree scope) {
+        List<Job> timers = new ArrayList<Job>();
+        if (scope == null) {
+            timers.addAll(getManagementService().createTimerJobQuery()
+                    .duedateLowerThan(limit).orderByJobDuedate().asc()
+                    .listPage(0, 1));
+        } else {
+            for (String id : getProcessInstanceIds(scope)) {
+                timers.addAll(getManagementService().createTimerJobQuery()
+                        .processInstanceId(id).duedateLowerThan(limit)
+                        .orderByJobDuedate().asc().listPage(0, 1));
+            }
+        }
+        Collections.sort(timers, DUE_DATE_ORDER);
+        return timers.isEmpty() ? null : timers.get(0);
+    }
+
+    /**
+     * @return Executable jobs and timers of the engine due by its clock, in
+     *         due date order.
+     */
+    protected List<Job> findDueJobs() {
+        return findDueJobs(null);
+    }
+
+    /**
+     * @param scope
+     *            Process instances whose jobs to find, null for the whole
+     *            engine.
+     * @return Executable jobs and timers due by the engine's clock, in due
+     *         date order.
+     */
+    protected List<Job> findDueJobs(ProcessInstanceTree scope) {
+        List<Job> due = new ArrayList<Job>();
+        if (scope == null) {
+            due.addAll(getManagementService().createJobQuery()
+                    .orderByJobDuedate().asc().list());
+            due.addAll(getManagementService().createTimerJobQuery()
+                    .executable().orderByJobDuedate().asc().list());
+        } else {
+            for (String id : getProcessInstanceIds(scope)) {
+                due.addAll(getManagementService().createJobQuery()
+                        .processInstanceId(id).list());
+                due.addAll(getManagementService().createTimerJobQuery()
+                        .processInstanceId(id).executable().list());
+            }
+        }
+        Collections.sort(due, DUE_DATE_ORDER);
+        return due;
+    }
+
+    /**
+     * @return Ids of the tree reloaded, since jobs run may have called
+     *         further sub-processes.
+     */
+    private static List<String> getProcessInstanceIds(ProcessInstanceTree scope) {
+        scope.invalidate();
+        return scope.getProcessInstanceIds();
+    }
+
+    /**
+     * @return false if the job no longer exists, e.g. a timer cancelled by an
+     *         earlier job.
+     */
+    protected boolean execute(Job job) {
+        try {
+            String jobId = job.getId();
+            if (job instanceof TimerJobEntity) {
+                jobId = getManagementService().moveTimerToExecutableJob(jobId)
+                        .getId();
+            }
+            getManagementService().executeJob(jobId);
+            return true;
+        } catch (FlowableObjectNotFoundException e) {
+            return false;
+        }
+    }
+
+    private ManagementService getManagementService() {
+        return processEngine.getManagementService();
+    }
+
+    private static class Suspension {
+
+        private final boolean wasActive;
+
+        private int users;
+
+        Suspension(boolean wasActive) {
+            this.wasActive = wasActive;
+        }
+    }
+}
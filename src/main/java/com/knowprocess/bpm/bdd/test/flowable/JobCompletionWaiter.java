@@ -0,0 +1,187 @@
+package com.knowprocess.bpm.bdd.test.flowable;
+
+import org.flowable.engine.ManagementService;
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.common.api.delegate.event.FlowableEngineEventType;
+import org.flowable.engine.common.api.delegate.event.FlowableEntityEvent;
+import org.flowable.engine.common.api.delegate.event.FlowableEvent;
+import org.flowable.engine.common.api.delegate.event.FlowableEventListener;
+import org.flowable.engine.common.impl.context.Context;
+import org.flowable.engine.common.impl.interceptor.CommandContext;
+import org.flowable.engine.common.impl.interceptor.CommandContextCloseListener;
+import org.flowable.job.service.impl.asyncexecutor.AsyncExecutor;
+import org.flowable.job.service.impl.persistence.entity.JobEntity;
+
+/**
+ * Waits for the async executor to run all executable jobs, driven by job
+ * events rather than polling the job table.
+ *
+ * <p>
+ * The number of outstanding jobs is counted up as jobs are created and down
+ * once the transaction that executed, failed or cancelled them has ended. The
+ * waiting thread is released as soon as the count reaches zero, confirmed by a
+ * single query in case any event was missed. Should no event arrive for
+ * {@link #RECONCILE_INTERVAL} milli-seconds the count is re-read from the
+ * database, and the overall timeout remains as a safety net.
+ *
+ * @author Tim Stephenson
+ */
+public class JobCompletionWaiter implements FlowableEventListener {
+
+    public static final long RECONCILE_INTERVAL = 1000;
+
+    private final ProcessEngine processEngine;
+
+    private int outstanding;
+
+    private long events;
+
+    public JobCompletionWaiter(ProcessEngine processEngine) {
+        this.processEngine = processEngine;
+    }
+
+    /**
+     * Run the async executor until no executable jobs remain.
+     *
+     * @param maxMillisToWait
+     *            Time limit.
+     * @throws FlowableException
+     *             If jobs remain when the time limit is reached.
+     */
+    public void waitForAllJobs(long maxMillisToWait) {
+        if (!waitForJobs(maxMillisToWait, false)) {
+            throw new FlowableException("time limit of " + maxMillisToWait
+                    + " was exceeded");
+        }
+    }
+
+    /**
+     * Run the async executor until no executable jobs remain or the time limit
+     * is reached.
+     *
+     * @param maxMillisToWait
+     *            Time limit.
+     * @param includeTimers
+     *            Also wait for timers whose due date has passed.
+     * @return true if all jobs completed within the time limit.
+     */
+    public boolean waitForJobs(long maxMillisToWait, boolean includeTimers) {
+        AsyncExecutor asyncExecutor = processEngine
+                .getProcessEngineConfiguration().getAsyncExecutor();
+        boolean started = false;
+        if (!asyncExecutor.isActive()) {
+            asyncExecutor.start();
+            started = true;
+        }
+        processEngine.getRuntimeService().addEventListener(this,
+                FlowableEngineEventType.ENTITY_CREATED,
+                FlowableEngineEventType.JOB_EXECUTION_SUCCESS,
+                FlowableEngineEventType.JOB_EXECUTION_FAILURE,
+                FlowableEngineEventType.JOB_CANCELED);
+        try {
+            return await(System.currentTimeMillis() + maxMillisToWait,
+                    includeTimers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            processEngine.getRuntimeService().removeEventListener(this);
+            if (started) {
+                asyncExecutor.shutdown();
+            }
+        }
+    }
+
+    private boolean await(long deadline, boolean includeTimers)
+            throws InterruptedException {
+        synchronized (this) {
+            outstanding = 0;
+        }
+        while (true) {
+            boolean verify;
+            synchronized (this) {
+                verify = outstanding <= 0;
+            }
+            if (verify) {
+                long jobs = countJobs();
+                if (jobs == 0 && (!includeTimers || countDueTimers() == 0)) {
+                    return true;
+                }
+                synchronized (this) {
+                    // due timers will show up as created jobs
+                    outstanding = (int) jobs;
+                }
+            }
+
+            synchronized (this) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                long seen = events;
+                wait(Math.min(remaining, RECONCILE_INTERVAL));
+                if (events == seen) {
+                    // quiet for a while, re-read the count
+                    outstanding = 0;
+                }
+            }
+        }
+    }
+
+    public void onEvent(FlowableEvent event) {
+        if (event.getType() == FlowableEngineEventType.ENTITY_CREATED) {
+            // the listener cannot be registered for job entities alone
+            if (((FlowableEntityEvent) event).getEntity() instanceof JobEntity) {
+                jobsChanged(1);
+            }
+        } else {
+            // job is only gone once its transaction ends
+            CommandContext commandContext = Context.getCommandContext();
+            if (commandContext == null) {
+                jobsChanged(-1);
+            } else {
+                commandContext.addCloseListener(new JobEndedListener());
+            }
+        }
+    }
+
+    private synchronized void jobsChanged(int delta) {
+        events++;
+        outstanding += delta;
+        notifyAll();
+    }
+
+    public boolean isFailOnException() {
+        return false;
+    }
+
+    private long countJobs() {
+        return getManagementService().createJobQuery().count();
+    }
+
+    private long countDueTimers() {
+        return getManagementService().createTimerJobQuery().executable()
+                .count();
+    }
+
+    private ManagementService getManagementService() {
+        return processEngine.getManagementService();
+    }
+
+    private class JobEndedListener implements CommandContextCloseListener {
+        public void closing(CommandContext commandContext) {
+        }
+
+        public void afterSessionsFlush(CommandContext commandContext) {
+        }
+
+        public void closed(CommandContext commandContext) {
+            jobsChanged(-1);
+        }
+
+        public void closeFailure(CommandContext commandContext) {
+            jobsChanged(-1);
+        }
+    }
+}
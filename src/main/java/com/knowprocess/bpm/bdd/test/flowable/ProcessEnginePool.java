@@ -0,0 +1,281 @@
+package com.knowprocess.bpm.bdd.test.flowable;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.ProcessEngineConfiguration;
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.common.api.FlowableObjectNotFoundException;
+import org.flowable.engine.repository.Deployment;
+import org.flowable.engine.test.FlowableRule;
+import org.flowable.engine.test.mock.FlowableMockSupport;
+
+import com.knowprocess.bpm.bdd.history.InMemoryHistory;
+import com.knowprocess.bpm.bdd.metrics.EngineCallCounter;
+import com.knowprocess.bpm.bdd.metrics.SqlStatementCounter;
+
+/**
+ * Keeps started process engines for re-use across test classes.
+ *
+ * <p>
+ * Engines are keyed by their configuration resource and leased exclusively to
+ * one test at a time. Released engines are cleaned up, by removing any
+ * deployments made during the lease and resetting the clock, mocks and any
+ * counters or in memory history added by specifications, before being made
+ * available to the next lease. In this way the cost of booting an engine
+ * and creating its schema is paid once per JVM rather than once per class,
+ * whilst tests running in parallel each still get an engine of their own.
+ *
+ * <p>
+ * Each engine the pool boots is given a database of its own by appending a
+ * suffix to the database name in the configured JDBC URL, and a name of its
+ * own so that it is not confused with the engine {@link FlowableRule} caches
+ * for the same configuration. Since nothing else uses that database, and the
+ * engine is leased to one test at a time, the deployments made during a lease
+ * are exactly those made through it.
+ *
+ * @author Tim Stephenson
+ */
+public class ProcessEnginePool {
+
+    private static final ProcessEnginePool instance = new ProcessEnginePool();
+
+    private final ConcurrentMap<String, Queue<ProcessEngine>> idleEngines = new ConcurrentHashMap<String, Queue<ProcessEngine>>();
+
+    private final Map<ProcessEngine, Lease> leases = new ConcurrentHashMap<ProcessEngine, Lease>();
+
+    private final Queue<ProcessEngine> allEngines = new ConcurrentLinkedQueue<ProcessEngine>();
+
+    private final AtomicInteger engineCount = new AtomicInteger();
+
+    private final Map<ProcessEngine, FlowableMockSupport> mockSupports = new HashMap<ProcessEngine, FlowableMockSupport>();
+
+    /**
+     * @return The pool shared by all tests in this JVM.
+     */
+    public static ProcessEnginePool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Lease an engine built from the specified configuration, booting a new
+     * one only if none is idle.
+     *
+     * @param configurationResource
+     *            Classpath resource defining the engine configuration.
+     * @return An engine for the exclusive use of the caller until released.
+     */
+    public ProcessEngine lease(String configurationResource) {
+        ProcessEngine engine = getIdleEngines(configurationResource).poll();
+        if (engine == null) {
+            engine = buildIsolatedEngine(configurationResource, "pool"
+                    + engineCount.incrementAndGet());
+            allEngines.add(engine);
+        }
+        leases.put(engine, new Lease(configurationResource,
+                getDeploymentIds(engine)));
+        return engine;
+    }
+
+    /**
+     * Build an engine from the configuration but with a database and engine
+     * name of its own.
+     *
+     * @param configurationResource
+     *            Classpath resource defining the engine configuration.
+     * @param suffix
+     *            Suffix unique to this engine, added to the database and
+     *            engine names.
+     * @return The new engine.
+     * @throws FlowableException
+     *             If the JDBC URL cannot be found or changed.
+     */
+    public static ProcessEngine buildIsolatedEngine(
+            String configurationResource, String suffix) {
+        ProcessEngineConfiguration configuration = ProcessEngineConfiguration
+                .createProcessEngineConfigurationFromResource(configurationResource);
+        isolate(configuration, suffix);
+        return configuration.buildProcessEngine();
+    }
+
+    private static void isolate(ProcessEngineConfiguration configuration,
+            String suffix) {
+        configuration.setEngineName(configuration.getEngineName() + "-"
+                + suffix);
+        DataSource dataSource = configuration.getDataSource();
+        if (dataSource == null) {
+            configuration.setJdbcUrl(isolate(configuration.getJdbcUrl(),
+                    suffix));
+            return;
+        }
+        // data source classes are not a dependency so use their bean property
+        try {
+            Method getUrl = dataSource.getClass().getMethod("getUrl");
+            Method setUrl = dataSource.getClass().getMethod("setUrl",
+                    String.class);
+            setUrl.invoke(dataSource,
+                    isolate((String) getUrl.invoke(dataSource), suffix));
+        } catch (Exception e) {
+            throw new FlowableException(
+                    "Cannot give pooled engine a database of its own, data source "
+                            + dataSource.getClass().getName()
+                            + " has no url property", e);
+        }
+    }
+
+    /**
+     * @return The URL with the suffix added to the database name, i.e.
+     *         before any settings.
+     */
+    private static String isolate(String jdbcUrl, String suffix) {
+        int settings = jdbcUrl.indexOf(';');
+        if (settings < 0) {
+            return jdbcUrl + "-" + suffix;
+        }
+        return jdbcUrl.substring(0, settings) + "-" + suffix
+                + jdbcUrl.substring(settings);
+    }
+
+    /**
+     * Clean up the engine and return it to the pool.
+     *
+     * @param engine
+     *            An engine previously obtained from {@link #lease(String)}.
+     */
+    public void release(ProcessEngine engine) {
+        Lease lease = leases.remove(engine);
+        if (lease == null) {
+            throw new IllegalStateException(
+                    "Process engine was not leased from this pool: "
+                            + engine.getName());
+        }
+        cleanUp(engine, lease);
+        getIdleEngines(lease.configurationResource).add(engine);
+    }
+
+    /**
+     * Mock support wraps the engine's activity behaviour factory, so is
+     * created once per engine rather than for each lease.
+     *
+     * @param engine
+     *            An engine started by this pool.
+     * @return Mock support for the engine, null if it cannot be mocked.
+     */
+    public synchronized FlowableMockSupport getMockSupport(ProcessEngine engine) {
+        FlowableMockSupport mockSupport = mockSupports.get(engine);
+        if (mockSupport == null
+                && FlowableMockSupport.isMockSupportPossible(engine)) {
+            mockSupport = new FlowableMockSupport(engine);
+            mockSupports.put(engine, mockSupport);
+        }
+        return mockSupport;
+    }
+
+    /**
+     * @return Number of engines this pool has started.
+     */
+    public int size() {
+        return allEngines.size();
+    }
+
+    /**
+     * Close all engines started by this pool.
+     */
+    public void close() {
+        ProcessEngine engine;
+        while ((engine = allEngines.poll()) != null) {
+            DeploymentCache.getInstance().clear(engine);
+            engine.close();
+        }
+        idleEngines.clear();
+        leases.clear();
+        synchronized (this) {
+            mockSupports.clear();
+        }
+    }
+
+    /**
+     * Remove state left by the last lease.
+     *
+     * <p>
+     * Deployments made through the lease, i.e. those absent when it began, are
+     * deleted along with their process instances and history, except those
+     * made via the {@link DeploymentCache} which are intended to outlive any
+     * one test. Mocks are reset and the instrumentation specifications may
+     * have added to the engine is removed.
+     *
+     * @param engine
+     * @param lease
+     */
+    protected void cleanUp(ProcessEngine engine, Lease lease) {
+        for (Deployment deployment : engine.getRepositoryService()
+                .createDeploymentQuery().list()) {
+            if (lease.deploymentIds.contains(deployment.getId())
+                    || DeploymentCache.isCached(deployment)) {
+                continue;
+            }
+            try {
+                engine.getRepositoryService().deleteDeployment(
+                        deployment.getId(), true);
+            } catch (FlowableObjectNotFoundException e) {
+                // Already removed by the test, nothing to do
+            }
+        }
+        engine.getProcessEngineConfiguration().getClock().reset();
+        FlowableMockSupport mockSupport;
+        synchronized (this) {
+            mockSupport = mockSupports.get(engine);
+        }
+        if (mockSupport != null) {
+            mockSupport.reset();
+        }
+        EngineCallCounter.uninstall(engine);
+        SqlStatementCounter.uninstall(engine);
+        InMemoryHistory.discard(engine);
+    }
+
+    private Queue<ProcessEngine> getIdleEngines(String configurationResource) {
+        Queue<ProcessEngine> queue = idleEngines.get(configurationResource);
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<ProcessEngine>();
+            Queue<ProcessEngine> existing = idleEngines.putIfAbsent(
+                    configurationResource, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        return queue;
+    }
+
+    private Set<String> getDeploymentIds(ProcessEngine engine) {
+        List<Deployment> deployments = engine.getRepositoryService()
+                .createDeploymentQuery().list();
+        Set<String> ids = new HashSet<String>();
+        for (Deployment deployment : deployments) {
+            ids.add(deployment.getId());
+        }
+        return ids;
+    }
+
+    protected static class Lease {
+        private final String configurationResource;
+        private final Set<String> deploymentIds;
+
+        protected Lease(String configurationResource, Set<String> deploymentIds) {
+            this.configurationResource = configurationResource;
+            this.deploymentIds = deploymentIds;
+        }
+    }
+}
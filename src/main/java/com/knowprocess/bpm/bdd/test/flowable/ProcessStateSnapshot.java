@@ -0,0 +1,294 @@
+package com.knowprocess.bpm.bdd.test.flowable;
+
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.common.impl.interceptor.Command;
+import org.flowable.engine.common.impl.interceptor.CommandContext;
+import org.flowable.engine.history.HistoricActivityInstance;
+import org.flowable.engine.impl.util.CommandContextUtil;
+import org.flowable.engine.runtime.ProcessInstance;
+import org.flowable.identitylink.api.IdentityLinkInfo;
+import org.flowable.job.api.Job;
+import org.flowable.job.service.impl.persistence.entity.JobEntityImpl;
+import org.flowable.task.api.Task;
+import org.flowable.variable.api.persistence.entity.VariableInstance;
+
+import com.knowprocess.bpm.bdd.ProcessInstanceTree;
+import com.knowprocess.bpm.bdd.ext.AuditTrailExporter;
+import com.knowprocess.bpm.bdd.ext.AuditTrailExporter.PageHandler;
+
+/**
+ * The state of a process instance and every process instance it called,
+ * fetched in a handful of queries and rendered like
+ * {@link ExtendedRule#dumpProcessState(String)} always has.
+ *
+ * <p>
+ * Rather than querying each process instance in turn, the tree is loaded a
+ * level at a time by {@link ProcessInstanceTree} and then the running
+ * instances, their jobs, tasks with their identity links and variables are
+ * each fetched for the whole tree at once, in batches of
+ * {@link ProcessInstanceTree#BATCH_SIZE}. Neither the job query nor a native
+ * query can select jobs by a list of process instances so they are read by a
+ * command of this class.
+ *
+ * <p>
+ * The activity history may be long so is not part of the snapshot, it is read
+ * a page at a time for each process instance as that is printed.
+ *
+ * @author Tim Stephenson
+ */
+public class ProcessStateSnapshot {
+
+    private final ProcessEngine processEngine;
+
+    private final String rootId;
+
+    private final Map<String, ProcessInstance> running = new HashMap<String, ProcessInstance>();
+
+    private final Map<String, List<Job>> jobs = new HashMap<String, List<Job>>();
+
+    private final Map<String, List<Task>> tasks = new HashMap<String, List<Task>>();
+
+    private final Map<String, Map<String, Object>> variables = new HashMap<String, Map<String, Object>>();
+
+    protected ProcessStateSnapshot(ProcessEngine processEngine, String rootId) {
+        this.processEngine = processEngine;
+        this.rootId = rootId;
+    }
+
+    /**
+     * @param processEngine
+     *            Engine running the process.
+     * @param processInstanceId
+     *            Id of the root of the tree.
+     * @return The state of the tree of process instances.
+     */
+    public static ProcessStateSnapshot capture(ProcessEngine processEngine,
+            String processInstanceId) {
+        ProcessStateSnapshot snapshot = new ProcessStateSnapshot(
+                processEngine, processInstanceId);
+        ProcessInstanceTree tree = new ProcessInstanceTree(processEngine,
+                processInstanceId);
+        List<String> ids = tree.getProcessInstanceIds();
+
+        for (int from = 0; from < ids.size(); from += ProcessInstanceTree.BATCH_SIZE) {
+            List<String> batch = ids.subList(from,
+                    Math.min(from + ProcessInstanceTree.BATCH_SIZE, ids.size()));
+            for (ProcessInstance pi : processEngine.getRuntimeService()
+                    .createProcessInstanceQuery()
+                    .processInstanceIds(new HashSet<String>(batch)).list()) {
+                snapshot.running.put(pi.getId(), pi);
+            }
+        }
+
+        if (!snapshot.running.isEmpty()) {
+            List<String> runningIds = new ArrayList<String>(
+                    snapshot.running.keySet());
+            String jobTable = processEngine.getManagementService()
+                    .getTableName(Job.class);
+            for (int from = 0; from < runningIds.size(); from += ProcessInstanceTree.BATCH_SIZE) {
+                // copied since MyBatis cannot iterate a sub-list reflectively
+                List<String> batch = new ArrayList<String>(runningIds.subList(
+                        from, Math.min(from + ProcessInstanceTree.BATCH_SIZE,
+                                runningIds.size())));
+                for (Job job : processEngine.getManagementService()
+                        .executeCommand(new FindJobsCmd(jobTable, batch))) {
+                    add(snapshot.jobs, job.getProcessInstanceId(), job);
+                }
+                for (Task task : processEngine.getTaskService()
+                        .createTaskQuery().processInstanceIdIn(batch)
+                        .includeIdentityLinks().list()) {
+                    add(snapshot.tasks, task.getProcessInstanceId(), task);
+                }
+                // the process instance's own execution holds its variables
+                for (VariableInstance var : processEngine.getRuntimeService()
+                        .getVariableInstancesByExecutionIds(
+                                new HashSet<String>(batch))) {
+                    Map<String, Object> vars = snapshot.variables.get(var
+                            .getExecutionId());
+                    if (vars == null) {
+                        vars = new LinkedHashMap<String, Object>();
+                        snapshot.variables.put(var.getExecutionId(), vars);
+                    }
+                    vars.put(var.getName(), var.getValue());
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    public String getRootId() {
+        return rootId;
+    }
+
+    /**
+     * @return Ids of the process instances in the tree still running.
+     */
+    public Set<String> getRunningProcessInstanceIds() {
+        return Collections.unmodifiableSet(running.keySet());
+    }
+
+    /**
+     * Write the state of the root, descending into each process instance
+     * called where its call activity appears in the audit trail.
+     */
+    public void print(PrintStream out) {
+        print(out, rootId, new HashSet<String>());
+    }
+
+    private void print(final PrintStream out, String piid,
+            final Set<String> printed) {
+        if (piid == null || !printed.add(piid)) {
+            return;
+        }
+        ProcessInstance pi = running.get(piid);
+        if (pi != null) {
+            out.println("******* process instance: " + pi.getId()
+                    + " *******");
+            for (Job job : get(jobs, piid)) {
+                out.println("job: " + job.getId() + ", "
+                        + job.getExceptionMessage());
+            }
+            for (Task task : get(tasks, piid)) {
+                out.print("...task: " + task.getName());
+                if (task.getAssignee() == null
+                        || task.getAssignee().trim().length() == 0) {
+                    out.print(", pails: ");
+                    for (IdentityLinkInfo identityLink : task
+                            .getIdentityLinks()) {
+                        out.print("group=" + identityLink.getGroupId()
+                                + ",user=" + identityLink.getUserId() + ";");
+                    }
+                    out.println();
+                } else {
+                    out.println(", assignee: " + task.getAssignee());
+                }
+            }
+            out.println(String.format(
+                    "************ Process variables for piid %1$s ************",
+                    piid));
+            Map<String, Object> vars = variables.get(piid);
+            if (vars != null) {
+                for (Map.Entry<String, ?> entry : vars.entrySet()) {
+                    out.println(entry.getKey()
+                            + " = "
+                            + (entry.getValue() == null ? "null " : entry
+                                    .getValue()));
+                }
+            }
+        } else {
+            out.println("found '0' proc instances, assume ended");
+        }
+
+        out.println(String.format(
+                "************* Audit info for process: %1$s *************",
+                piid));
+        new AuditTrailExporter(processEngine).forEachActivity(piid,
+                new PageHandler<HistoricActivityInstance, RuntimeException>() {
+                    public void handle(List<HistoricActivityInstance> page) {
+                        for (HistoricActivityInstance ai : page) {
+                            print(out, ai, printed);
+                        }
+                    }
+                });
+    }
+
+    private void print(PrintStream out, HistoricActivityInstance ai,
+            Set<String> printed) {
+        out.println(String.format(
+                "... %1$s (%2$s):%3$s complete?: %4$s",
+                ai.getActivityName(),
+                ai.getActivityType(),
+                (ai.getAssignee() == null ? "" : " assigned to: "
+                        + ai.getAssignee())
+                        + ",", (ai.getEndTime() == null ? "outstanding"
+                        : ai.getEndTime())));
+        if (ai.getActivityType().equals("callActivity")) {
+            print(out, ai.getCalledProcessInstanceId(), printed);
+        }
+    }
+
+    /**
+     * Reads the executable jobs of a batch of process instances with the
+     * columns the dump shows.
+     */
+    private static class FindJobsCmd implements Command<List<Job>> {
+
+        private final String jobTable;
+
+        private final List<String> processInstanceIds;
+
+        FindJobsCmd(String jobTable, List<String> processInstanceIds) {
+            this.jobTable = jobTable;
+            this.processInstanceIds = processInstanceIds;
+        }
+
+        public List<Job> execute(CommandContext commandContext) {
+            StringBuilder sql = new StringBuilder(String.format(
+                    "SELECT ID_, PROCESS_INSTANCE_ID_, EXECUTION_ID_, EXCEPTION_MSG_ FROM %1$s WHERE PROCESS_INSTANCE_ID_ IN (",
+                    jobTable));
+            for (int i = 0; i < processInstanceIds.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(") ORDER BY ID_");
+            List<Job> jobs = new ArrayList<Job>();
+            // the command's own connection, so uncommitted jobs are seen too
+            Connection connection = CommandContextUtil
+                    .getDbSqlSession(commandContext).getSqlSession()
+                    .getConnection();
+            try {
+                PreparedStatement stmt = connection.prepareStatement(sql
+                        .toString());
+                try {
+                    for (int i = 0; i < processInstanceIds.size(); i++) {
+                        stmt.setString(i + 1, processInstanceIds.get(i));
+                    }
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        JobEntityImpl job = new JobEntityImpl();
+                        job.setId(rs.getString(1));
+                        job.setProcessInstanceId(rs.getString(2));
+                        job.setExecutionId(rs.getString(3));
+                        job.setExceptionMessage(rs.getString(4));
+                        jobs.add(job);
+                    }
+                    rs.close();
+                } finally {
+                    stmt.close();
+                }
+            } catch (SQLException e) {
+                throw new FlowableException("Unable to read jobs of "
+                        + processInstanceIds, e);
+            }
+            return jobs;
+        }
+    }
+
+    private static <T> void add(Map<String, List<T>> map, String key, T value) {
+        List<T> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<T>();
+            map.put(key, list);
+        }
+        list.add(value);
+    }
+
+    private static <T> List<T> get(Map<String, List<T>> map, String key) {
+        List<T> list = map.get(key);
+        return list == null ? Collections.<T> emptyList() : list;
+    }
+}
@@ -0,0 +1,26 @@
+package com.knowprocess.bpm.bdd.test.mailserver;
+
+import java.util.List;
+
+import org.flowable.bpmn.model.FieldExtension;
+import org.flowable.engine.impl.bpmn.behavior.MailActivityBehavior;
+import org.flowable.engine.impl.bpmn.helper.ClassDelegate;
+import org.flowable.engine.impl.bpmn.parser.factory.DefaultActivityBehaviorFactory;
+
+/**
+ * Creates {@link CorrelatingMailActivityBehavior} for mail tasks, otherwise
+ * behaves as the default factory.
+ *
+ * @author Tim Stephenson
+ */
+public class CorrelatingActivityBehaviorFactory extends
+        DefaultActivityBehaviorFactory {
+
+    @Override
+    protected MailActivityBehavior createMailActivityBehavior(String taskId,
+            List<FieldExtension> fields) {
+        return (MailActivityBehavior) ClassDelegate.defaultInstantiateDelegate(
+                CorrelatingMailActivityBehavior.class,
+                createFieldDeclarations(fields));
+    }
+}
@@ -0,0 +1,44 @@
+package com.knowprocess.bpm.bdd.test.mailserver;
+
+import org.apache.commons.mail.Email;
+import org.flowable.engine.delegate.DelegateExecution;
+import org.flowable.engine.impl.bpmn.behavior.MailActivityBehavior;
+
+/**
+ * Mail task behaviour that stamps each message with the id of the process
+ * instance that sent it, so that a test mail server can tell which scenario
+ * each message belongs to.
+ *
+ * @author Tim Stephenson
+ */
+public class CorrelatingMailActivityBehavior extends MailActivityBehavior {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Header holding the id of the process instance that sent the message.
+     */
+    public static final String PROCESS_INSTANCE_HEADER = "X-Process-Instance-Id";
+
+    private static final ThreadLocal<String> processInstanceId = new ThreadLocal<String>();
+
+    @Override
+    public void execute(DelegateExecution execution) {
+        processInstanceId.set(execution.getProcessInstanceId());
+        try {
+            super.execute(execution);
+        } finally {
+            processInstanceId.remove();
+        }
+    }
+
+    @Override
+    protected Email createEmail(String text, String html,
+            boolean attachmentsExist) {
+        Email email = super.createEmail(text, html, attachmentsExist);
+        if (processInstanceId.get() != null) {
+            email.addHeader(PROCESS_INSTANCE_HEADER, processInstanceId.get());
+        }
+        return email;
+    }
+}
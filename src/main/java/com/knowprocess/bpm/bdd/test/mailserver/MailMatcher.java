@@ -0,0 +1,21 @@
+package com.knowprocess.bpm.bdd.test.mailserver;
+
+import javax.mail.MessagingException;
+
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Selects the messages a scenario is waiting for, see
+ * {@link TestMailServer#awaitMessages(int, MailMatcher, long)}.
+ *
+ * @author Tim Stephenson
+ */
+public interface MailMatcher {
+
+    /**
+     * @param message
+     *            A message received by the test mail server.
+     * @return true if the message is one of those wanted.
+     */
+    boolean matches(WiserMessage message) throws MessagingException;
+}
@@ -0,0 +1,225 @@
+package com.knowprocess.bpm.bdd.test.mailserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
+
+/**
+ * The text of a mail message, searched without loading the whole message.
+ *
+ * <p>
+ * The MIME structure is walked the first time it is needed, keeping only the
+ * text parts that are not attachments; other parts such as PDFs are never
+ * decoded. Text parts are decoded and searched a buffer at a time so that
+ * memory use is bounded by the buffer and the length of the text sought.
+ * Small parts are decoded once and kept for later searches.
+ *
+ * @author Tim Stephenson
+ */
+public class MessageContent {
+
+    /**
+     * Text parts of up to this many bytes are decoded once and kept, larger
+     * ones are streamed every time they are searched.
+     */
+    public static final int CACHE_LIMIT = 64 * 1024;
+
+    /**
+     * Longest preview of the message text, e.g. for log lines.
+     */
+    public static final int PREVIEW_LENGTH = 1024;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final MimeMessage mimeMessage;
+
+    private List<TextPart> textParts;
+
+    private String preview;
+
+    public MessageContent(MimeMessage mimeMessage) {
+        this.mimeMessage = mimeMessage;
+    }
+
+    public MimeMessage getMimeMessage() {
+        return mimeMessage;
+    }
+
+    /**
+     * @param text
+     *            Text to look for.
+     * @return true if any text part, once decoded, contains the text.
+     */
+    public boolean contains(String text) throws MessagingException,
+            IOException {
+        for (TextPart part : getTextParts()) {
+            if (part.contains(text)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The start of the message text, no longer than
+     *         {@link #PREVIEW_LENGTH}.
+     */
+    public synchronized String getPreview() throws MessagingException,
+            IOException {
+        if (preview == null) {
+            StringBuilder sb = new StringBuilder();
+            for (TextPart part : getTextParts()) {
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                }
+                if (!part.appendTo(sb, PREVIEW_LENGTH)) {
+                    break;
+                }
+            }
+            if (sb.length() > PREVIEW_LENGTH) {
+                sb.setLength(PREVIEW_LENGTH);
+                sb.append("...");
+            }
+            preview = sb.toString();
+        }
+        return preview;
+    }
+
+    private synchronized List<TextPart> getTextParts()
+            throws MessagingException, IOException {
+        if (textParts == null) {
+            List<TextPart> parts = new ArrayList<TextPart>();
+            collectTextParts(mimeMessage, parts);
+            textParts = parts;
+        }
+        return textParts;
+    }
+
+    private static void collectTextParts(Part part, List<TextPart> parts)
+            throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++) {
+                collectTextParts(multipart.getBodyPart(i), parts);
+            }
+        } else if (part.isMimeType("text/*")
+                && !Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())) {
+            parts.add(new TextPart(part));
+        }
+    }
+
+    /**
+     * Search a stream a buffer at a time, keeping just enough of the previous
+     * buffer to find text spanning the two.
+     */
+    static boolean contains(Reader reader, String text) throws IOException {
+        if (text.length() == 0) {
+            return true;
+        }
+        char[] buf = new char[Math.max(BUFFER_SIZE, text.length())];
+        StringBuilder window = new StringBuilder();
+        int read;
+        while ((read = reader.read(buf)) != -1) {
+            window.append(buf, 0, read);
+            if (window.indexOf(text) >= 0) {
+                return true;
+            }
+            int keep = Math.min(window.length(), text.length() - 1);
+            window.delete(0, window.length() - keep);
+        }
+        return false;
+    }
+
+    private static class TextPart {
+
+        private final Part part;
+
+        private String decoded;
+
+        TextPart(Part part) {
+            this.part = part;
+        }
+
+        synchronized boolean contains(String text) throws MessagingException,
+                IOException {
+            if (decoded == null && isCacheable()) {
+                StringBuilder sb = new StringBuilder();
+                appendTo(sb, Integer.MAX_VALUE);
+                decoded = sb.toString();
+            }
+            if (decoded != null) {
+                return decoded.contains(text);
+            }
+            Reader reader = openReader();
+            try {
+                return MessageContent.contains(reader, text);
+            } finally {
+                reader.close();
+            }
+        }
+
+        /**
+         * @return true if the whole part fitted within the limit.
+         */
+        synchronized boolean appendTo(StringBuilder sb, int limit)
+                throws MessagingException, IOException {
+            if (decoded != null) {
+                long room = Math.max(0L, (long) limit - sb.length() + 1);
+                sb.append(decoded, 0, (int) Math.min(decoded.length(), room));
+                return sb.length() <= limit;
+            }
+            Reader reader = openReader();
+            try {
+                char[] buf = new char[BUFFER_SIZE];
+                int read;
+                while (sb.length() <= limit && (read = reader.read(buf)) != -1) {
+                    sb.append(buf, 0, read);
+                }
+                return sb.length() <= limit;
+            } finally {
+                reader.close();
+            }
+        }
+
+        private boolean isCacheable() throws MessagingException {
+            int size = part.getSize();
+            return size >= 0 && size <= CACHE_LIMIT;
+        }
+
+        private Reader openReader() throws MessagingException, IOException {
+            InputStream in = part.getInputStream();
+            return new InputStreamReader(in, getCharset());
+        }
+
+        private Charset getCharset() throws MessagingException {
+            String charset = null;
+            try {
+                charset = new ContentType(part.getContentType())
+                        .getParameter("charset");
+            } catch (ParseException e) {
+                // fall back to the default below
+            }
+            if (charset == null) {
+                return Charset.forName("US-ASCII");
+            }
+            try {
+                return Charset.forName(MimeUtility.javaCharset(charset));
+            } catch (IllegalArgumentException e) {
+                // unknown charset, decode the bytes as they are
+                return Charset.forName("ISO-8859-1");
+            }
+        }
+    }
+}
@@ -1,38 +1,578 @@
 package com.knowprocess.bpm.bdd.test.mailserver;
 
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.activation.DataHandler;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
+import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.util.SharedByteArrayInputStream;
 
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.impl.bpmn.parser.factory.ActivityBehaviorFactory;
+import org.flowable.engine.impl.bpmn.parser.factory.DefaultActivityBehaviorFactory;
+import org.flowable.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.flowable.engine.test.TestActivityBehaviorFactory;
 import org.junit.rules.ExternalResource;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.server.SMTPServer;
 import org.subethamail.wiser.Wiser;
 import org.subethamail.wiser.WiserMessage;
 
+/**
+ * SMTP server receiving the mail sent by processes under test.
+ *
+ * <p>
+ * Each message received is indexed by recipient, subject and the process
+ * instance that sent it so that assertions find it directly, however many
+ * messages have been sent. Pass port 0 to listen on a free port, allowing
+ * suites to run in parallel, and {@link #configure(ProcessEngine)} the engine
+ * to send to it.
+ *
+ * <p>
+ * An engine sends to one server at a time. Since engines are typically cached
+ * for the life of the JVM the engine's previous mail settings are restored
+ * when the server stops, and tests sharing an engine cannot each have their
+ * own server at the same time.
+ *
+ * @author Tim Stephenson
+ */
 public class TestMailServer extends ExternalResource {
 	private static final List<String> EMPTY_LIST = Collections.emptyList();
-	protected Wiser wiser = new Wiser();
+
+    public static final int DEFAULT_PORT = 5025;
+
+    private static final Map<ProcessEngineConfigurationImpl, TestMailServer> configuredEngines = new IdentityHashMap<ProcessEngineConfigurationImpl, TestMailServer>();
+
+    private volatile int port;
+
+    private final ConcurrentMap<String, List<WiserMessage>> byRecipient = new ConcurrentHashMap<String, List<WiserMessage>>();
+
+    private final ConcurrentMap<String, List<WiserMessage>> bySubject = new ConcurrentHashMap<String, List<WiserMessage>>();
+
+    private final ConcurrentMap<String, List<WiserMessage>> byRecipientAndSubject = new ConcurrentHashMap<String, List<WiserMessage>>();
+
+    private final ConcurrentMap<String, List<WiserMessage>> byProcessInstance = new ConcurrentHashMap<String, List<WiserMessage>>();
+
+	protected Wiser wiser = new IndexingWiser();
+
+    private final ConcurrentMap<WiserMessage, MessageContent> contents = new ConcurrentHashMap<WiserMessage, MessageContent>();
+
+    private final Session session = Session.getInstance(new Properties());
+
+    private final Object deliveryMonitor = new Object();
+
+    private long deliveries;
+
+    private ProcessEngineConfigurationImpl configuration;
+
+    private String previousHost;
+
+    private int previousPort;
+
+    private TestActivityBehaviorFactory wrappingFactory;
+
+    private ActivityBehaviorFactory previousFactory;
+
+    public TestMailServer() {
+        this(DEFAULT_PORT);
+    }
+
+    /**
+     * @param port
+     *            Port to listen on, 0 to have the system pick a free one
+     *            when the server starts.
+     */
+    public TestMailServer(int port) {
+        this.port = port;
+    }
 
     @Override
     protected void before() throws Throwable {
         super.before();
-        wiser.setPort(5025); // Default is 25
+        wiser.setPort(port); // Default is 25
         wiser.start();
+        if (port == 0) {
+            port = getBoundPort();
+        }
+    }
+
+    /**
+     * @return Port the server listens on, 0 if it is yet to pick a free one.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Direct the engine's mail tasks to this server and have them identify
+     * the process instance sending each message, see
+     * {@link CorrelatingMailActivityBehavior}.
+     *
+     * <p>
+     * Process definitions already parsed are dropped from the engine's cache
+     * so that they pick up the new mail task behaviour when next used. The
+     * engine's previous settings are restored when this server stops.
+     *
+     * @param processEngine
+     *            Engine under test.
+     * @throws IllegalStateException
+     *             If this server has not started or the engine is sending to
+     *             another server.
+     */
+    public void configure(ProcessEngine processEngine) {
+        if (port == 0) {
+            throw new IllegalStateException(
+                    "Mail server must be started before configuring an engine to use it");
+        }
+        ProcessEngineConfigurationImpl configuration = (ProcessEngineConfigurationImpl) processEngine
+                .getProcessEngineConfiguration();
+        synchronized (configuredEngines) {
+            TestMailServer current = configuredEngines.get(configuration);
+            if (current == this) {
+                return;
+            } else if (current != null) {
+                throw new IllegalStateException(String.format(
+                        "Engine %1$s already sends mail to port %2$d",
+                        processEngine.getName(), current.getPort()));
+            }
+            restoreEngine();
+            configuredEngines.put(configuration, this);
+        }
+        this.configuration = configuration;
+        previousHost = configuration.getMailServerHost();
+        previousPort = configuration.getMailServerPort();
+        configuration.setMailServerHost("localhost");
+        configuration.setMailServerPort(port);
+        ActivityBehaviorFactory factory = configuration
+                .getActivityBehaviorFactory();
+        if (factory instanceof TestActivityBehaviorFactory) {
+            // wrapped, perhaps many times over, by the mock support of
+            // FlowableRule
+            TestActivityBehaviorFactory testFactory = (TestActivityBehaviorFactory) factory;
+            while (testFactory.getWrappedActivityBehaviorFactory() instanceof TestActivityBehaviorFactory) {
+                testFactory = (TestActivityBehaviorFactory) testFactory
+                        .getWrappedActivityBehaviorFactory();
+            }
+            if (isDefault(testFactory.getWrappedActivityBehaviorFactory())) {
+                wrappingFactory = testFactory;
+                previousFactory = testFactory
+                        .getWrappedActivityBehaviorFactory();
+                testFactory
+                        .setWrappedActivityBehaviorFactory(createCorrelatingFactory(configuration));
+                configuration.getProcessDefinitionCache().clear();
+            }
+        } else if (isDefault(factory)) {
+            previousFactory = factory;
+            factory = createCorrelatingFactory(configuration);
+            configuration.setActivityBehaviorFactory(factory);
+            configuration.getBpmnParser().setActivityBehaviorFactory(factory);
+            configuration.getProcessDefinitionCache().clear();
+        }
+    }
+
+    /**
+     * Put back the mail settings and behaviour factory of the engine
+     * configured, if any.
+     */
+    private void restoreEngine() {
+        if (configuration == null) {
+            return;
+        }
+        configuration.setMailServerHost(previousHost);
+        configuration.setMailServerPort(previousPort);
+        if (wrappingFactory != null) {
+            wrappingFactory.setWrappedActivityBehaviorFactory(previousFactory);
+            configuration.getProcessDefinitionCache().clear();
+        } else if (previousFactory != null) {
+            configuration.setActivityBehaviorFactory(previousFactory);
+            configuration.getBpmnParser().setActivityBehaviorFactory(
+                    previousFactory);
+            configuration.getProcessDefinitionCache().clear();
+        }
+        synchronized (configuredEngines) {
+            configuredEngines.remove(configuration);
+        }
+        configuration = null;
+        wrappingFactory = null;
+        previousFactory = null;
+    }
+
+    private static boolean isDefault(ActivityBehaviorFactory factory) {
+        return factory != null
+                && factory.getClass() == DefaultActivityBehaviorFactory.class;
+    }
+
+    private static ActivityBehaviorFactory createCorrelatingFactory(
+            ProcessEngineConfigurationImpl configuration) {
+        CorrelatingActivityBehaviorFactory factory = new CorrelatingActivityBehaviorFactory();
+        factory.setExpressionManager(configuration.getExpressionManager());
+        return factory;
+    }
+
+    /**
+     * @return Number of messages received, one per recipient.
+     */
+    public int getMessageCount() {
+        return wiser.getMessages().size();
+    }
+
+    /**
+     * @param recipient
+     *            Envelope recipient address.
+     * @return Messages to the recipient in the order received.
+     */
+    public List<WiserMessage> getMessagesTo(String recipient) {
+        return lookup(byRecipient, normalize(recipient));
+    }
+
+    /**
+     * @param subject
+     *            Exact subject.
+     * @return Messages with the subject in the order received.
+     */
+    public List<WiserMessage> getMessagesWithSubject(String subject) {
+        return lookup(bySubject, subject);
+    }
+
+    /**
+     * @param recipient
+     *            Envelope recipient address.
+     * @param subject
+     *            Exact subject.
+     * @return Messages with the subject to the recipient in the order
+     *         received.
+     */
+    public List<WiserMessage> getMessagesTo(String recipient, String subject) {
+        return lookup(byRecipientAndSubject, normalize(recipient) + '\n'
+                + subject);
+    }
+
+    /**
+     * @param processInstanceId
+     *            Id of the process instance that sent the messages.
+     * @return Messages sent by the process instance in the order received.
+     */
+    public List<WiserMessage> getMessagesFor(String processInstanceId) {
+        return lookup(byProcessInstance, processInstanceId);
+    }
+
+    /**
+     * Wait for messages to arrive, returning as soon as enough have.
+     *
+     * <p>
+     * Waiting threads are woken by each delivery, so there is no polling
+     * interval. Messages received before the call count towards the total.
+     * The matchers provided by this class read the index the server keeps
+     * so no message is scanned or parsed while waiting, other matchers are
+     * applied once to each message as it arrives.
+     *
+     * @param count
+     *            Number of matching messages to wait for.
+     * @param matcher
+     *            Selects the messages wanted, null to accept any.
+     * @param timeoutMillis
+     *            Longest time to wait.
+     * @return The matching messages in the order received, at least
+     *         <code>count</code> of them.
+     * @throws AssertionError
+     *             If too few matching messages arrive in time.
+     */
+    public List<WiserMessage> awaitMessages(int count, MailMatcher matcher,
+            long timeoutMillis) throws MessagingException,
+            InterruptedException {
+        if (matcher instanceof IndexMatcher) {
+            return awaitIndexed(count, (IndexMatcher) matcher, timeoutMillis);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<WiserMessage> matched = new ArrayList<WiserMessage>();
+        int scanned = 0;
+        while (true) {
+            long seen;
+            synchronized (deliveryMonitor) {
+                seen = deliveries;
+            }
+            List<WiserMessage> fresh;
+            synchronized (wiser) {
+                List<WiserMessage> messages = wiser.getMessages();
+                if (messages.size() < scanned) {
+                    // cleared meanwhile, start again
+                    scanned = 0;
+                    matched.clear();
+                }
+                fresh = new ArrayList<WiserMessage>(messages.subList(scanned,
+                        messages.size()));
+                scanned = messages.size();
+            }
+            for (WiserMessage message : fresh) {
+                if (matcher == null || matcher.matches(message)) {
+                    matched.add(message);
+                }
+            }
+            if (matched.size() >= count) {
+                return matched;
+            }
+            synchronized (deliveryMonitor) {
+                long remaining = deadline - System.currentTimeMillis();
+                while (deliveries == seen && remaining > 0) {
+                    deliveryMonitor.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                if (deliveries == seen) {
+                    failAwait(count, matcher, timeoutMillis, matched.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * Messages are indexed before the delivery count is incremented, so
+     * checking the index while holding the delivery monitor cannot miss the
+     * notification of a message indexed after the check.
+     */
+    private List<WiserMessage> awaitIndexed(int count, IndexMatcher matcher,
+            long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (deliveryMonitor) {
+            while (true) {
+                List<WiserMessage> matched = matcher.lookup(this);
+                if (matched.size() >= count) {
+                    return matched;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    failAwait(count, matcher, timeoutMillis, matched.size());
+                }
+                deliveryMonitor.wait(remaining);
+            }
+        }
+    }
+
+    private static void failAwait(int count, MailMatcher matcher,
+            long timeoutMillis, int received) {
+        fail(String.format(
+                "Expected %1$d messages matching %2$s within %3$d ms but received %4$d",
+                count, matcher == null ? "any" : matcher, timeoutMillis,
+                received));
+    }
+
+    /**
+     * @param recipient
+     *            Envelope recipient address.
+     * @return Matcher selecting messages to the recipient.
+     */
+    public static MailMatcher recipient(final String recipient) {
+        return new IndexMatcher() {
+            public boolean matches(WiserMessage message) {
+                return normalize(recipient).equals(
+                        normalize(message.getEnvelopeReceiver()));
+            }
+
+            List<WiserMessage> lookup(TestMailServer server) {
+                return server.getMessagesTo(recipient);
+            }
+
+            @Override
+            public String toString() {
+                return "recipient " + recipient;
+            }
+        };
+    }
+
+    /**
+     * @param subject
+     *            Exact subject.
+     * @return Matcher selecting messages with the subject.
+     */
+    public static MailMatcher subject(final String subject) {
+        return new IndexMatcher() {
+            public boolean matches(WiserMessage message)
+                    throws MessagingException {
+                return subject.equals(message.getMimeMessage().getSubject());
+            }
+
+            List<WiserMessage> lookup(TestMailServer server) {
+                return server.getMessagesWithSubject(subject);
+            }
+
+            @Override
+            public String toString() {
+                return "subject '" + subject + "'";
+            }
+        };
+    }
+
+    /**
+     * @param processInstanceId
+     *            Id of the process instance sending the messages.
+     * @return Matcher selecting messages sent by the process instance, see
+     *         {@link #configure(ProcessEngine)}.
+     */
+    public static MailMatcher sentBy(final String processInstanceId) {
+        return new IndexMatcher() {
+            public boolean matches(WiserMessage message)
+                    throws MessagingException {
+                return processInstanceId.equals(message.getMimeMessage()
+                        .getHeader(
+                                CorrelatingMailActivityBehavior.PROCESS_INSTANCE_HEADER,
+                                null));
+            }
+
+            List<WiserMessage> lookup(TestMailServer server) {
+                return server.getMessagesFor(processInstanceId);
+            }
+
+            @Override
+            public String toString() {
+                return "sent by process instance " + processInstanceId;
+            }
+        };
+    }
+
+    /**
+     * A matcher whose messages the server has already indexed.
+     */
+    private abstract static class IndexMatcher implements MailMatcher {
+
+        /**
+         * @return Matching messages in the order received.
+         */
+        abstract List<WiserMessage> lookup(TestMailServer server);
+    }
+
+    /**
+     * Forget all messages received so far.
+     */
+    public void clear() {
+        synchronized (wiser) {
+            wiser.getMessages().clear();
+            contents.clear();
+            byRecipient.clear();
+            bySubject.clear();
+            byRecipientAndSubject.clear();
+            byProcessInstance.clear();
+        }
+    }
+
+    /**
+     * Called once each message has been received.
+     */
+    protected void messageDelivered(WiserMessage message)
+            throws MessagingException {
+        MimeMessage mimeMessage = message.getMimeMessage();
+        String recipient = normalize(message.getEnvelopeReceiver());
+        String subject = mimeMessage.getSubject();
+        index(byRecipient, recipient, message);
+        if (subject != null) {
+            index(bySubject, subject, message);
+            index(byRecipientAndSubject, recipient + '\n' + subject, message);
+        }
+        String processInstanceId = mimeMessage.getHeader(
+                CorrelatingMailActivityBehavior.PROCESS_INSTANCE_HEADER, null);
+        if (processInstanceId != null) {
+            index(byProcessInstance, processInstanceId, message);
+        }
+    }
+
+    private static void index(ConcurrentMap<String, List<WiserMessage>> map,
+            String key, WiserMessage message) {
+        List<WiserMessage> list = map.get(key);
+        if (list == null) {
+            list = Collections.synchronizedList(new ArrayList<WiserMessage>());
+            List<WiserMessage> existing = map.putIfAbsent(key, list);
+            if (existing != null) {
+                list = existing;
+            }
+        }
+        list.add(message);
+    }
+
+    private static List<WiserMessage> lookup(
+            ConcurrentMap<String, List<WiserMessage>> map, String key) {
+        List<WiserMessage> list = map.get(key);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        synchronized (list) {
+            return new ArrayList<WiserMessage>(list);
+        }
+    }
+
+    private static String normalize(String address) {
+        return address == null ? null : address.trim().toLowerCase(
+                Locale.ENGLISH);
+    }
+
+    /**
+     * @return The port the SMTP server bound to, which it does not expose.
+     */
+    private int getBoundPort() {
+        try {
+            Field field = SMTPServer.class.getDeclaredField("serverSocket");
+            field.setAccessible(true);
+            return ((ServerSocket) field.get(wiser.getServer())).getLocalPort();
+        } catch (NoSuchFieldException e) {
+            throw new FlowableException(
+                    "Unable to find the port the mail server listens on", e);
+        } catch (IllegalAccessException e) {
+            throw new FlowableException(
+                    "Unable to find the port the mail server listens on", e);
+        }
+    }
+
+    /**
+     * Indexes each message as it is delivered.
+     */
+    private class IndexingWiser extends Wiser {
+        @Override
+        public void deliver(String from, String recipient, InputStream data)
+                throws TooMuchDataException, IOException {
+            try {
+                synchronized (this) {
+                    super.deliver(from, recipient, data);
+                    List<WiserMessage> messages = getMessages();
+                    messageDelivered(messages.get(messages.size() - 1));
+                }
+            } catch (MessagingException e) {
+                throw new IOException("Unable to index message: "
+                        + e.getMessage(), e);
+            } finally {
+                synchronized (deliveryMonitor) {
+                    deliveries++;
+                    deliveryMonitor.notifyAll();
+                }
+            }
+        }
     }
 
     @Override
     protected void after() {
         super.after();
-        wiser.stop();
+        try {
+            restoreEngine();
+        } finally {
+            wiser.stop();
+        }
     }
 
     public Wiser getWiser() {
@@ -71,10 +611,32 @@ public class TestMailServer extends ExternalResource {
 		}
 	}
 
+    /**
+     * The message's text, parsed once and kept for later assertions.
+     *
+     * @param message
+     *            Message received.
+     * @return The content of the message.
+     */
+    public MessageContent getContent(WiserMessage message)
+            throws MessagingException {
+        MessageContent content = contents.get(message);
+        if (content == null) {
+            // shares the received bytes rather than copying them
+            content = new MessageContent(new MimeMessage(session,
+                    new SharedByteArrayInputStream(message.getData())));
+            MessageContent existing = contents.putIfAbsent(message, content);
+            if (existing != null) {
+                content = existing;
+            }
+        }
+        return content;
+    }
+
 	public void assertEmailSend(int idx, boolean htmlMail, String subject,
 			String txtMessage, String from, String to, String cc)
 			throws IOException, MessagingException {
-		assertEmailSend(wiser.getMessages().get(idx).getMimeMessage(),
+		assertEmailSend(getContent(wiser.getMessages().get(idx)),
 				htmlMail, subject, txtMessage, from,
 				Arrays.asList(new String[] { to }),
 				cc == null ? null : Arrays.asList(new String[] { cc }));
@@ -83,7 +645,7 @@ public class TestMailServer extends ExternalResource {
 	public void assertEmailSend(int idx, boolean htmlMail, String subject,
 			String txtMessage, String from, List<String> to, List<String> cc)
 			throws IOException, MessagingException {
-		assertEmailSend(wiser.getMessages().get(idx).getMimeMessage(),
+		assertEmailSend(getContent(wiser.getMessages().get(idx)),
 				htmlMail, subject, txtMessage, from, to, cc);
 	}
 
@@ -94,9 +656,57 @@ public class TestMailServer extends ExternalResource {
 				EMPTY_LIST);
 	}
 
+    /**
+     * Assert the latest message with the subject sent to the recipient, found
+     * without scanning the messages received.
+     */
+    public void assertEmailSendTo(String to, boolean htmlMail,
+            String subject, String txtMessage, String from)
+            throws IOException, MessagingException {
+        List<WiserMessage> messages = getMessagesTo(to, subject);
+        assertTrue(String.format(
+                "No message to %1$s with subject '%2$s' among %3$d received",
+                to, subject, getMessageCount()), messages.size() > 0);
+        assertEmailSend(getContent(messages.get(messages.size() - 1)),
+                htmlMail, subject, txtMessage, from,
+                Arrays.asList(new String[] { to }), null);
+    }
+
+    /**
+     * Assert the latest message with the subject sent by a process instance.
+     * The engine must have been configured by {@link #configure(ProcessEngine)}.
+     */
+    public void assertEmailSendFor(String processInstanceId,
+            boolean htmlMail, String subject, String txtMessage, String from,
+            List<String> to) throws IOException, MessagingException {
+        WiserMessage found = null;
+        for (WiserMessage message : getMessagesFor(processInstanceId)) {
+            if (subject.equals(message.getMimeMessage().getSubject())) {
+                found = message;
+            }
+        }
+        assertTrue(String.format(
+                "Process instance %1$s sent no message with subject '%2$s'",
+                processInstanceId, subject), found != null);
+        assertEmailSend(getContent(found), htmlMail, subject,
+                txtMessage, from, to, null);
+    }
+
 	protected void assertEmailSend(MimeMessage mimeMessage, boolean htmlMail,
             String subject, String txtMessage, String from, List<String> to,
 			List<String> cc) throws IOException, MessagingException {
+        assertEmailSend(new MessageContent(mimeMessage), htmlMail, subject,
+                txtMessage, from, to, cc);
+    }
+
+    /**
+     * Assert the message's headers and that one of its text parts contains
+     * the text, searched without decoding attachments or copying the body.
+     */
+    protected void assertEmailSend(MessageContent content, boolean htmlMail,
+            String subject, String txtMessage, String from, List<String> to,
+            List<String> cc) throws IOException, MessagingException {
+        MimeMessage mimeMessage = content.getMimeMessage();
 		if (htmlMail) {
 			assertTrue(mimeMessage.getContentType().contains("multipart/alternative"));
 		} else {
@@ -116,12 +726,12 @@ public class TestMailServer extends ExternalResource {
                         from, mimeMessage.getHeader("From", null)),
 				longFrom.equals(mimeMessage.getHeader("From", null))
 				|| from.equals(mimeMessage.getHeader("From", null)));
-		System.out.println("Msg body: " + getMessage(mimeMessage));
-        assertTrue(
-                String.format(
-                        "Message does not contain expected content: %1$s, received: %2$s",
-                        txtMessage, getMessage(mimeMessage)),
-                getMessage(mimeMessage).contains(txtMessage));
+		System.out.println("Msg body: " + content.getPreview());
+        if (!content.contains(txtMessage)) {
+            fail(String.format(
+                    "Message does not contain expected content: %1$s, received: %2$s",
+                    txtMessage, content.getPreview()));
+        }
 
         if (to == null) {
             System.out.println("No assertion on addressees");
@@ -142,6 +752,11 @@ public class TestMailServer extends ExternalResource {
         }
     }
 
+    /**
+     * @return The raw body of the message, including every attachment.
+     * @deprecated Copies the whole body, use {@link MessageContent} instead.
+     */
+    @Deprecated
     protected String getMessage(MimeMessage mimeMessage)
             throws MessagingException, IOException {
         DataHandler dataHandler = mimeMessage.getDataHandler();
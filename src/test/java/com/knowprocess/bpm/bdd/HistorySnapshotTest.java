@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.test.FlowableRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.knowprocess.bpm.bdd.metrics.SqlStatementCounter;
+
+/**
+ * @author Tim Stephenson
+ */
+public class HistorySnapshotTest {
+
+    @Rule
+    public FlowableRule flowableRule = new FlowableRule("test-flowable.cfg.xml");
+
+    private SqlStatementCounter counter;
+
+    private Map<String, Long> mark;
+
+    @Before
+    public void setUp() {
+        counter = SqlStatementCounter.install(flowableRule.getProcessEngine());
+    }
+
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testOneQueryUntilInvalidatedOrMissed() {
+        ProcessEngine engine = flowableRule.getProcessEngine();
+        String piid = engine.getRuntimeService()
+                .startProcessInstanceByKey("Example1").getId();
+        HistorySnapshot snapshot = new HistorySnapshot(engine, piid);
+        mark = counter.getCounts();
+
+        assertEquals(1, snapshot.getByActivityId("startEvent").size());
+        assertEquals(1, snapshot.getByActivityId("doSomething").size());
+        assertEquals(1, snapshot.getByActivityType("userTask").size());
+        assertEquals(2, snapshot.getActivities().size());
+        assertEquals(1, activityQueries());
+
+        // not reached yet, reloads once before giving up
+        assertTrue(snapshot.getByActivityId("endEvent").isEmpty());
+        assertEquals(1, activityQueries());
+
+        // reached meanwhile, found by the reload on a miss
+        engine.getTaskService().complete(
+                engine.getTaskService().createTaskQuery()
+                        .processInstanceId(piid).singleResult().getId());
+        assertEquals(1, snapshot.getByActivityId("endEvent").size());
+        assertEquals(1, activityQueries());
+        assertEquals(1, snapshot.getByActivityId("startEvent").size());
+        assertEquals(0, activityQueries());
+
+        snapshot.invalidate();
+        assertEquals(3, snapshot.getActivities().size());
+        assertEquals(1, activityQueries());
+    }
+
+    /**
+     * @return Queries of activity history since last called.
+     */
+    private long activityQueries() {
+        Map<String, Long> counts = counter.getCounts();
+        long queries = 0;
+        for (Map.Entry<String, Long> entry : SqlStatementCounter.difference(
+                mark, counts).entrySet()) {
+            if (entry.getKey().contains("selectHistoricActivityInstance")) {
+                queries += entry.getValue();
+            }
+        }
+        mark = counts;
+        return queries;
+    }
+}
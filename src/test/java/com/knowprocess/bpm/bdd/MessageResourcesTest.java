@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Tim Stephenson
+ */
+public class MessageResourcesTest {
+
+    private static final String RESOURCE1 = "/processes/Example1.bpmn";
+
+    private static final String RESOURCE2 = "/processes/Example2.bpmn";
+
+    @Test
+    public void testResourceDecodedOnce() {
+        MessageResources resources = new MessageResources(
+                MessageResources.DEFAULT_MAX_CHARS);
+
+        String first = resources.getResource(getClass(), RESOURCE1);
+        assertTrue(first.contains("Example1"));
+        assertSame(first, resources.getResource(getClass(), RESOURCE1));
+        assertEquals(1, resources.getMisses());
+        assertEquals(1, resources.getHits());
+
+        assertNull(resources.getResource(getClass(), "{\"not\":\"a resource\"}"));
+        assertFalse(resources.exists(getClass(), "/no/such/resource.json"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        MessageResources unbounded = new MessageResources(Long.MAX_VALUE);
+        long size1 = unbounded.getResource(getClass(), RESOURCE1).length();
+        long size2 = unbounded.getResource(getClass(), RESOURCE2).length();
+
+        MessageResources resources = new MessageResources(Math.max(size1,
+                size2));
+        resources.getResource(getClass(), RESOURCE1);
+        resources.getResource(getClass(), RESOURCE2);
+        assertEquals(size2, resources.getChars());
+
+        resources.getResource(getClass(), RESOURCE1);
+        assertEquals(3, resources.getMisses());
+    }
+}
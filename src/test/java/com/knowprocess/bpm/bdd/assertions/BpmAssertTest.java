@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.assertions;
+
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.flowable.engine.ProcessEngine;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.knowprocess.bpm.bdd.test.flowable.ProcessEnginePool;
+
+/**
+ * @author Tim Stephenson
+ */
+public class BpmAssertTest {
+
+    private static ProcessEngine engine1;
+
+    private static ProcessEngine engine2;
+
+    @BeforeClass
+    public static void setUpClass() {
+        engine1 = ProcessEnginePool.buildIsolatedEngine(
+                "test-flowable.cfg.xml", "assert1");
+        engine2 = ProcessEnginePool.buildIsolatedEngine(
+                "test-flowable.cfg.xml", "assert2");
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        engine1.close();
+        engine2.close();
+    }
+
+    @Before
+    public void setUp() {
+        // specifications of earlier tests using a plain FlowableRule may have
+        // left their engine bound to this thread
+        BpmAssert.clearProcessEngine();
+    }
+
+    @Test
+    public void testEnginePerThread() throws Exception {
+        final CyclicBarrier bound = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<ProcessEngine> used1 = executor
+                    .submit(new BindAndUse(engine1, bound));
+            Future<ProcessEngine> used2 = executor
+                    .submit(new BindAndUse(engine2, bound));
+
+            assertSame(engine1, used1.get(30, TimeUnit.SECONDS));
+            assertSame(engine2, used2.get(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testFallBackToStaticEngine() {
+        BpmAssert.processEngine = engine1;
+        try {
+            assertSame(engine1, BpmAssert.getProcessEngine());
+
+            BpmAssert.setProcessEngine(engine2);
+            assertSame(engine2, BpmAssert.getProcessEngine());
+
+            // another engine's binding is left alone
+            BpmAssert.clearProcessEngine(engine1);
+            assertSame(engine2, BpmAssert.getProcessEngine());
+
+            BpmAssert.clearProcessEngine(engine2);
+            assertSame(engine1, BpmAssert.getProcessEngine());
+        } finally {
+            BpmAssert.clearProcessEngine();
+            BpmAssert.processEngine = null;
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoEngine() {
+        BpmAssert.getProcessEngine();
+    }
+
+    private static class BindAndUse implements Callable<ProcessEngine> {
+        private final ProcessEngine engine;
+        private final CyclicBarrier bound;
+
+        BindAndUse(ProcessEngine engine, CyclicBarrier bound) {
+            this.engine = engine;
+            this.bound = bound;
+        }
+
+        @Override
+        public ProcessEngine call() throws Exception {
+            BpmAssert.setProcessEngine(engine);
+            try {
+                // both threads have bound their engine before either uses it
+                bound.await(30, TimeUnit.SECONDS);
+                return BpmAssert.getProcessEngine();
+            } finally {
+                BpmAssert.clearProcessEngine();
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Map;
+
+import org.flowable.engine.test.FlowableRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.data.CsvRowSource;
+import com.knowprocess.bpm.bdd.data.DataDrivenResult;
+import com.knowprocess.bpm.bdd.data.DataDrivenRunner;
+import com.knowprocess.bpm.bdd.data.NdjsonRowSource;
+import com.knowprocess.bpm.bdd.data.RowScenario;
+
+/**
+ * Example of running one specification for every row of an input table.
+ *
+ * @author Tim Stephenson
+ */
+public class Example1DataDrivenTest {
+
+    private static final String EXAMPLE1_KEY = "Example1";
+
+    @Rule
+    public FlowableRule flowableRule = new FlowableRule("test-flowable.cfg.xml");
+
+    private final RowScenario scenario = new RowScenario() {
+        @SuppressWarnings("unchecked")
+        public void run(BpmSpec spec, Map<String, Object> row)
+                throws Exception {
+            spec.whenEventOccurs("The Example1 process is started for "
+                    + row.get("orderId"), EXAMPLE1_KEY,
+                    BpmSpec.buildSet(), row, null)
+                    .thenUserTask("doSomething", BpmSpec.buildSet("customer"),
+                            BpmSpec.buildMap())
+                    .thenProcessIsComplete();
+            assertEquals(row.get("customer"), spec.getVar("customer"));
+        }
+    };
+
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testCsvRows() throws Exception {
+        File csv = new File(getClass().getResource("/data/orders.csv")
+                .toURI());
+        DataDrivenResult result = new DataDrivenRunner(flowableRule,
+                "testCsvRows").withThreads(4).run(new CsvRowSource(csv),
+                scenario);
+
+        assertEquals(result.toString(), 0, result.getFailed());
+        assertEquals(20, result.getRows());
+    }
+
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testNdjsonRows() throws Exception {
+        String ndjson = "{\"orderId\":\"PO-1\",\"customer\":\"Acme\",\"qty\":3}\n"
+                + "\n"
+                + "{\"orderId\":\"PO-2\",\"customer\":\"Bloggs\",\"qty\":1}\n";
+        DataDrivenResult result = new DataDrivenRunner(flowableRule,
+                "testNdjsonRows").withThreads(2).withMaxInFlight(1)
+                .run(new NdjsonRowSource(new StringReader(ndjson)), scenario);
+
+        assertEquals(result.toString(), 0, result.getFailed());
+        assertEquals(2, result.getRows());
+    }
+
+}
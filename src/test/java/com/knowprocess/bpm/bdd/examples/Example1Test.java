@@ -17,7 +17,16 @@
  *******************************************************************************/
 package com.knowprocess.bpm.bdd.examples;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.metrics.StepMetrics;
+import com.knowprocess.bpm.bdd.report.BddPhrase;
 import org.flowable.engine.test.FlowableRule;
 import org.junit.Rule;
 import org.junit.Test;
@@ -49,4 +58,103 @@ public class Example1Test {
 
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testExample1StepMetrics() throws Exception {
+        BpmSpec spec = new BpmSpec(flowableRule, "testExample1StepMetrics")
+                .withStepMetrics()
+                .given("No particular pre-conditions")
+                .whenEventOccurs("The Example1 process is started",
+                        EXAMPLE1_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(), null)
+                .thenUserTask("doSomething", BpmSpec.buildSet(),
+                        BpmSpec.buildMap())
+                .thenProcessIsComplete()
+                .reportStepMetrics();
+
+        List<StepMetrics> timeline = spec.getStepTimeline();
+        assertEquals(4, timeline.size());
+        assertEquals(0, timeline.get(0).getServiceCalls());
+        assertTrue(timeline.get(1).getServiceCalls() > 0);
+        assertTrue(timeline.get(2).getCommands() >= timeline.get(2)
+                .getServiceCalls());
+        assertEquals(BddPhrase.THEN, timeline.get(3).getStepType());
+        assertTrue(spec.getStepTotals().getWallNanos() > 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testExample1StepMetricsWithPhraseHook() throws Exception {
+        final List<String> written = new ArrayList<String>();
+        BpmSpec spec = new BpmSpec(flowableRule,
+                "testExample1StepMetricsWithPhraseHook") {
+            @Override
+            protected void writeBddPhrase(String phrase) {
+                written.add(phrase);
+            }
+        }.withStepMetrics()
+                .given("No particular pre-conditions")
+                .whenEventOccurs("The Example1 process is started",
+                        EXAMPLE1_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(), null)
+                .thenUserTask("doSomething", BpmSpec.buildSet(),
+                        BpmSpec.buildMap())
+                .thenProcessIsComplete();
+
+        // the hook only redirects output, the steps are still measured
+        assertEquals(4, spec.getStepTimeline().size());
+        assertEquals("THEN: The process is complete",
+                written.get(written.size() - 1));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testExample1QueryBudget() throws Exception {
+        BpmSpec spec = new BpmSpec(flowableRule, "testExample1QueryBudget")
+                .withQueryCounting()
+                .given("No particular pre-conditions")
+                .thenQueryCountAtMost(0)
+                .whenEventOccurs("The Example1 process is started",
+                        EXAMPLE1_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(), null)
+                .thenQueryCountAtMost(50);
+        try {
+            spec.thenUserTask("doSomething", BpmSpec.buildSet(),
+                    BpmSpec.buildMap()).thenQueryCountAtMost(1);
+            fail("Completing the task should take more than one statement");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("selectTask"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testExample1CollectVars() throws Exception {
+        BpmSpec spec = new BpmSpec(flowableRule, "testExample1CollectVars")
+                .given("No particular pre-conditions")
+                .whenEventOccurs("The Example1 process is started",
+                        EXAMPLE1_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(BpmSpec.newPair("customer", "ACME"),
+                                BpmSpec.newPair("amount", 42)), null)
+                .thenUserTask("doSomething",
+                        BpmSpec.buildSet("customer", "amount"),
+                        BpmSpec.buildMap())
+                .thenProcessIsComplete();
+        assertEquals("ACME", spec.getVar("customer"));
+
+        // once ended the variables come from history
+        spec.collectVars(BpmSpec.buildSet("customer", "amount"));
+        assertEquals(42, spec.getVar("amount"));
+        try {
+            spec.collectVars(BpmSpec.buildSet("customer", "missing"));
+            fail("Collecting a variable that was never set should fail");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("missing"));
+        }
+    }
+
 }
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.flowable.engine.test.FlowableRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.load.LoadDriver;
+import com.knowprocess.bpm.bdd.load.LoadReport;
+import com.knowprocess.bpm.bdd.load.Scenario;
+
+/**
+ * Example of running a specification under load.
+ *
+ * @author Tim Stephenson
+ */
+public class Example2LoadTest {
+
+    private static final String EXAMPLE2_KEY = "Example2";
+
+    @Rule
+    public FlowableRule flowableRule = new FlowableRule("test-flowable.cfg.xml");
+
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example2.bpmn" })
+    public void testExample2UnderLoad() throws Exception {
+        LoadReport report = new LoadDriver(flowableRule, "testExample2UnderLoad")
+                .withIterations(20).withThreads(4).run(new Scenario() {
+                    @SuppressWarnings("unchecked")
+                    public void run(BpmSpec spec) throws Exception {
+                        spec.whenEventOccurs("The Example2 process is started",
+                                EXAMPLE2_KEY, BpmSpec.buildSet(),
+                                BpmSpec.buildMap(BpmSpec.newPair("a", 1)),
+                                null)
+                                .thenSubProcessCalled("Example2Child", 3)
+                                .thenServiceTask("childTask")
+                                .thenProcessIsComplete()
+                                .collectVars(BpmSpec.buildSet("a"));
+                    }
+                });
+        report.print(System.out);
+
+        assertEquals(report.getFailures().toString(), 0, report.getFailures()
+                .size());
+        assertEquals(20, report.getIterations());
+        // instantiation and four steps, collected variables are not steps
+        assertEquals(5, report.getSteps().size());
+        assertEquals(20, report.getSteps().get(1).getLatency().getCount());
+        assertTrue(report.getThroughput() > 0);
+    }
+
+}
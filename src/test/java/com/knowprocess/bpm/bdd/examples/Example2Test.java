@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.examples;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import org.flowable.engine.test.FlowableRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Example specification of a process calling a sub-process many times.
+ *
+ * @author Tim Stephenson
+ */
+public class Example2Test {
+
+    private static final String EXAMPLE2_KEY = "Example2";
+
+    @Rule
+    public FlowableRule flowableRule = new FlowableRule("test-flowable.cfg.xml");
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example2.bpmn" })
+    public void testExample2() throws Exception {
+        new BpmSpec(flowableRule, "testExample2")
+                .given("No particular pre-conditions")
+                .whenEventOccurs("The Example2 process is started",
+                        EXAMPLE2_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(), null)
+                .thenSubProcessCalled("Example2Child", 3)
+                .thenSubProcessCalledAtDepth("Example2Child", 1)
+                // the parent's key is a prefix of the child's but not called
+                .thenSubProcessCalled(EXAMPLE2_KEY, 0)
+                .thenServiceTask("childTask")
+                .thenProcessIsComplete();
+
+    }
+
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.test.flowable.ExtendedRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Example specification of a process continuing asynchronously.
+ *
+ * @author Tim Stephenson
+ */
+public class Example3Test {
+
+    private static final String EXAMPLE3_KEY = "Example3";
+
+    @Rule
+    public ExtendedRule flowableRule = new ExtendedRule("test-flowable.cfg.xml");
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example3.bpmn" })
+    public void testEventDrivenJobs() throws Exception {
+        new BpmSpec(flowableRule, "testEventDrivenJobs")
+                .withEventDrivenJobs()
+                .given("No particular pre-conditions")
+                .whenEventOccurs("The Example3 process is started",
+                        EXAMPLE3_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(), null)
+                .whenExecuteAllJobs(10000)
+                .thenServiceTask("asyncTask")
+                .thenProcessIsComplete();
+
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example3.bpmn" })
+    public void testInlineJobs() throws Exception {
+        BpmSpec spec = new BpmSpec(flowableRule, "testInlineJobs")
+                .withInlineJobExecution();
+        // another scenario's job, which must be left alone
+        String other = flowableRule.getRuntimeService()
+                .startProcessInstanceByKey(EXAMPLE3_KEY).getId();
+
+        spec.given("No particular pre-conditions")
+                .whenEventOccurs("The Example3 process is started",
+                        EXAMPLE3_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(), null)
+                .thenServiceTask("asyncTask")
+                .thenProcessIsComplete();
+
+        assertEquals(1, flowableRule.getManagementService().createJobQuery()
+                .processInstanceId(other).count());
+        flowableRule.getRuntimeService().deleteProcessInstance(other, "test");
+    }
+
+}
@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.examples;
+
+import java.util.Calendar;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import org.flowable.engine.test.FlowableRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Example specification of a process escalating over a period of weeks.
+ *
+ * @author Tim Stephenson
+ */
+public class Example4Test {
+
+    private static final String EXAMPLE4_KEY = "Example4";
+
+    private static final long MINUTE_MILLIS = 60 * 1000L;
+
+    private static final long DAY_MILLIS = 24 * 60 * MINUTE_MILLIS;
+
+    @Rule
+    public FlowableRule flowableRule = new FlowableRule("test-flowable.cfg.xml");
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example4.bpmn" })
+    public void testTimeTravel() throws Exception {
+        new BpmSpec(flowableRule, "testTimeTravel")
+                .given("No particular pre-conditions")
+                .whenEventOccurs("The Example4 process is started",
+                        EXAMPLE4_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(), null)
+                .whenProcessTimeTravelled(Calendar.DATE, 31)
+                .thenTimerExpired("firstReminder")
+                .thenServiceTask("sendReminder")
+                .thenTimerExpired("escalation")
+                .thenServiceTask("escalate")
+                .thenProcessIsComplete();
+
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example4.bpmn" })
+    public void testDurations() throws Exception {
+        new BpmSpec(flowableRule, "testDurations")
+                .given("No particular pre-conditions")
+                .whenEventOccurs("The Example4 process is started",
+                        EXAMPLE4_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(), null)
+                .whenProcessTimeTravelled(Calendar.DATE, 31)
+                .thenActivityCompletedWithin("firstReminder",
+                        10 * DAY_MILLIS + MINUTE_MILLIS)
+                .thenActivityCompletedWithin("sendReminder", MINUTE_MILLIS)
+                .thenProcessCompletedWithin(31 * DAY_MILLIS)
+                .thenProcessDurationPercentileWithin(95, 31 * DAY_MILLIS)
+                .thenActivityDurationPercentileWithin("escalation", 50,
+                        20 * DAY_MILLIS + MINUTE_MILLIS);
+
+    }
+
+}
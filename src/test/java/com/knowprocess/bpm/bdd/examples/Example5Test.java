@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.examples;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import org.flowable.engine.test.FlowableRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Example specifications sharing one engine, each completing several user
+ * tasks in one step.
+ *
+ * @author Tim Stephenson
+ */
+public class Example5Test {
+
+    private static final String EXAMPLE5_KEY = "Example5";
+
+    @Rule
+    public FlowableRule flowableRule = new FlowableRule("test-flowable.cfg.xml");
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example5.bpmn" })
+    public void testConcurrentInstances() throws Exception {
+        BpmSpec first = new BpmSpec(flowableRule, "testConcurrentInstances-1")
+                .given("Another instance of the process is running")
+                .whenEventOccurs("The first Example5 process is started",
+                        EXAMPLE5_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(), null);
+        BpmSpec second = new BpmSpec(flowableRule, "testConcurrentInstances-2")
+                .given("Another instance of the process is running")
+                .whenEventOccurs("The second Example5 process is started",
+                        EXAMPLE5_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(), null);
+
+        first.thenUserTasks("review", 3, BpmSpec.buildSet(),
+                BpmSpec.buildMap())
+                .thenUserTask("approve", BpmSpec.buildSet(),
+                        BpmSpec.buildMap())
+                .thenProcessIsComplete();
+        second.thenUserTasks("review", 3, BpmSpec.buildSet(),
+                BpmSpec.buildMap())
+                .thenUserTask("approve", BpmSpec.buildSet(),
+                        BpmSpec.buildMap())
+                .thenProcessIsComplete();
+
+    }
+
+}
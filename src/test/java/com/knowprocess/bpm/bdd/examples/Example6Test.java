@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.test.flowable.ExtendedRule;
+import com.knowprocess.bpm.bdd.test.mailserver.TestMailServer;
+import org.flowable.engine.impl.test.JobTestHelper;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.subethamail.wiser.WiserMessage;
+
+/**
+ * Example specification of a process sending mail.
+ *
+ * @author Tim Stephenson
+ */
+public class Example6Test {
+
+    private static final String EXAMPLE6_KEY = "Example6";
+
+    private static final String FROM = "orders@example.com";
+
+    @Rule
+    public ExtendedRule flowableRule = new ExtendedRule("test-flowable.cfg.xml");
+
+    @Rule
+    public TestMailServer mailServer = new TestMailServer(0);
+
+    @Before
+    public void setUp() {
+        mailServer.configure(flowableRule.getProcessEngine());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example6.bpmn" })
+    public void testMailIndexedByRecipientAndProcess() throws Exception {
+        assertNotEquals(TestMailServer.DEFAULT_PORT, mailServer.getPort());
+
+        BpmSpec first = startOrder("testMailFirstOrder", "1001",
+                "alice@example.com");
+        BpmSpec second = startOrder("testMailSecondOrder", "1002",
+                "bob@example.com");
+
+        assertEquals(2, mailServer.getMessageCount());
+        mailServer.assertEmailSendTo("alice@example.com", false,
+                "Order 1001 confirmed", "your order 1001", FROM);
+        mailServer.assertEmailSendFor(second.getProcessInstance().getId(),
+                false, "Order 1002 confirmed", "your order 1002", FROM,
+                Arrays.asList("bob@example.com"));
+        assertEquals(1, mailServer.getMessagesFor(
+                first.getProcessInstance().getId()).size());
+        assertEquals(1, mailServer.getMessagesWithSubject(
+                "Order 1002 confirmed").size());
+        assertEquals(0, mailServer.getMessagesTo("alice@example.com",
+                "Order 1002 confirmed").size());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example6.bpmn" })
+    public void testAwaitMailFromAsyncExecutor() throws Exception {
+        long start = System.currentTimeMillis();
+        BpmSpec spec = new BpmSpec(flowableRule, "testAwaitMailFromAsyncExecutor")
+                .given("A customer places an order")
+                .whenEventOccurs("The Example6 process is started",
+                        EXAMPLE6_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(BpmSpec.newPair("orderId", "1003"),
+                                BpmSpec.newPair("customerEmail",
+                                        "carol@example.com")), null)
+                .thenMailSent(mailServer, 1, 30000);
+
+        List<WiserMessage> messages = mailServer.awaitMessages(1,
+                TestMailServer.recipient("Carol@Example.com"), 0);
+        assertEquals(1, messages.size());
+        assertEquals("Order 1003 confirmed", messages.get(0).getMimeMessage()
+                .getSubject());
+        assertEquals(1, mailServer.awaitMessages(1,
+                TestMailServer.sentBy(spec.getProcessInstance().getId()), 0)
+                .size());
+        assertTrue("Waited for the whole timeout",
+                System.currentTimeMillis() - start < 30000);
+
+        // mail is out before the job commits, let it finish before tear down
+        JobTestHelper.waitForJobExecutorToProcessAllJobs(flowableRule, 5000,
+                100);
+        spec.thenProcessIsComplete();
+    }
+
+    @Test
+    public void testAwaitMailTimesOut() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            mailServer.awaitMessages(1,
+                    TestMailServer.subject("Never sent"), 200);
+            fail("Expected no mail to arrive");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Never sent"));
+        }
+        assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+
+    @SuppressWarnings("unchecked")
+    private BpmSpec startOrder(String name, String orderId,
+            String customerEmail) throws Exception {
+        return new BpmSpec(flowableRule, name)
+                .withInlineJobExecution()
+                .given("A customer places an order")
+                .whenEventOccurs("The Example6 process is started",
+                        EXAMPLE6_KEY, BpmSpec.buildSet(),
+                        BpmSpec.buildMap(BpmSpec.newPair("orderId", orderId),
+                                BpmSpec.newPair("customerEmail",
+                                        customerEmail)), null)
+                .thenServiceTask("sendConfirmation")
+                .thenProcessIsComplete();
+    }
+
+}
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+import com.knowprocess.bpm.bdd.history.InMemoryHistory;
+import com.knowprocess.bpm.bdd.test.flowable.ExtendedRule;
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.history.HistoricActivityInstance;
+import org.flowable.engine.history.HistoricProcessInstance;
+import org.flowable.task.api.Task;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Example specifications run against an engine that writes no history to the
+ * database, the history assertions reading from memory instead.
+ *
+ * @author Tim Stephenson
+ */
+public class ExampleInMemoryHistoryTest {
+
+    @Rule
+    public ExtendedRule flowableRule = new ExtendedRule(
+            "test-flowable-nohistory.cfg.xml").withInMemoryHistory();
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testUserTask() throws Exception {
+        BpmSpec spec = new BpmSpec(flowableRule, "testUserTask")
+                .given("No particular pre-conditions")
+                .whenEventOccurs("The Example1 process is started",
+                        "Example1", BpmSpec.buildSet(),
+                        BpmSpec.buildMap(BpmSpec.newPair("outcome", "done")),
+                        null)
+                .thenUserTask("doSomething", BpmSpec.buildSet(),
+                        BpmSpec.buildMap())
+                .thenProcessIsComplete()
+                .thenProcessEndedAndInExclusiveEndEvent("endEvent")
+                .collectVar("outcome");
+
+        String piid = spec.getProcessInstance().getId();
+        assertEquals(0, flowableRule.getHistoryService()
+                .createHistoricProcessInstanceQuery().processInstanceId(piid)
+                .count());
+        HistoricProcessInstance hpi = InMemoryHistory.get(
+                flowableRule.getProcessEngine()).getProcessInstance(piid);
+        assertEquals("Example1", hpi.getProcessDefinitionKey());
+        assertEquals("startEvent", hpi.getStartActivityId());
+        HistoricActivityInstance task = spec.getHistory()
+                .getByActivityId("doSomething").get(0);
+        assertEquals("userTask", task.getActivityType());
+        flowableRule.dumpAuditTrail(piid);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example2.bpmn" })
+    public void testSubProcesses() throws Exception {
+        BpmSpec spec = new BpmSpec(flowableRule, "testSubProcesses")
+                .given("No particular pre-conditions")
+                .whenEventOccurs("The Example2 process is started",
+                        "Example2", BpmSpec.buildSet(), BpmSpec.buildMap(),
+                        null)
+                .thenSubProcessCalled("Example2Child", 3)
+                .thenSubProcessCalledAtDepth("Example2Child", 1)
+                .thenServiceTask("childTask")
+                .thenProcessIsComplete();
+
+        int calls = 0;
+        for (HistoricActivityInstance hai : spec.getHistory()
+                .getByActivityType("callActivity")) {
+            if (hai.getCalledProcessInstanceId() != null) {
+                calls++;
+            }
+        }
+        assertEquals(3, calls);
+    }
+
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testProcessVariablePreferredToLocal() throws Exception {
+        String piid = flowableRule.getRuntimeService()
+                .startProcessInstanceByKey("Example1",
+                        BpmSpec.buildMap(BpmSpec.newPair("outcome", "done")))
+                .getId();
+        Task task = flowableRule.getTaskService().createTaskQuery()
+                .processInstanceId(piid).singleResult();
+        flowableRule.getTaskService().setVariableLocal(task.getId(),
+                "outcome", "local");
+        flowableRule.getTaskService().complete(task.getId());
+
+        assertEquals("done", InMemoryHistory
+                .get(flowableRule.getProcessEngine()).getVariables(piid)
+                .get("outcome"));
+    }
+
+    @Test
+    public void testInstallsCounted() {
+        ProcessEngine engine = flowableRule.getProcessEngine();
+        InMemoryHistory history = InMemoryHistory.get(engine);
+        assertSame(history, InMemoryHistory.install(engine));
+        InMemoryHistory.uninstall(engine);
+        // still installed by the rule
+        assertSame(history, InMemoryHistory.get(engine));
+    }
+}
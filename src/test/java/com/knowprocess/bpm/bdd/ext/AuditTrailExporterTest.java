@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.flowable.engine.test.FlowableRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.knowprocess.bpm.bdd.BpmSpec;
+
+/**
+ * @author Tim Stephenson
+ */
+public class AuditTrailExporterTest {
+
+    @Rule
+    public FlowableRule flowableRule = new FlowableRule("test-flowable.cfg.xml");
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.flowable.engine.test.Deployment(resources = { "processes/Example2.bpmn" })
+    public void testExportIncludesCalledProcesses() throws Exception {
+        File file = tmp.newFile("audit.ndjson.gz");
+        BpmSpec spec = new BpmSpec(flowableRule,
+                "testExportIncludesCalledProcesses")
+                .given("No particular pre-conditions")
+                .whenEventOccurs("The Example2 process is started",
+                        "Example2", BpmSpec.buildSet(), BpmSpec.buildMap(
+                                ImmutablePair.<String, Object> of("a", 1),
+                                ImmutablePair.<String, Object> of("b", 2),
+                                ImmutablePair.<String, Object> of("c", 3)),
+                        null)
+                .thenProcessIsComplete()
+                .thenExtension(new ExportAuditTrail(flowableRule, file));
+        String piid = spec.getProcessInstance().getId();
+
+        Set<String> processInstances = new HashSet<String>();
+        Set<String> recordIds = new HashSet<String>();
+        long lines = 0;
+        long variableUpdates = 0;
+        ObjectMapper mapper = new ObjectMapper();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonNode record = mapper.readTree(line);
+                if ("activity".equals(record.get("type").asText())) {
+                    processInstances.add(record.get("processInstanceId")
+                            .asText());
+                } else if ("variableUpdate".equals(record.get("type")
+                        .asText())) {
+                    variableUpdates++;
+                }
+                assertTrue(line, recordIds.add(record.get("id").asText()));
+                lines++;
+            }
+        } finally {
+            reader.close();
+        }
+        assertTrue(processInstances.contains(piid));
+        assertEquals("parent and 3 children", 4, processInstances.size());
+        assertTrue("variables set together", variableUpdates >= 3);
+
+        // a tiny page size must give exactly the same records, even though
+        // the variables were set at the same time
+        File paged = tmp.newFile("paged.ndjson.gz");
+        long count = new AuditTrailExporter(flowableRule.getProcessEngine())
+                .withPageSize(2).export(piid, paged);
+        assertEquals(lines, count);
+        assertEquals(recordIds, readIds(paged));
+    }
+
+    private static Set<String> readIds(File file) throws Exception {
+        Set<String> ids = new HashSet<String>();
+        ObjectMapper mapper = new ObjectMapper();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ids.add(mapper.readTree(line).get("id").asText());
+            }
+        } finally {
+            reader.close();
+        }
+        return ids;
+    }
+}
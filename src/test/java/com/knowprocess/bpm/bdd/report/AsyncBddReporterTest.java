@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * @author Tim Stephenson
+ */
+public class AsyncBddReporterTest {
+
+    @Test
+    public void testPhrasesWrittenInOrderAsJsonLines() throws Exception {
+        StringWriter out = new StringWriter();
+        AsyncBddReporter reporter = new AsyncBddReporter(4,
+                new JsonLinesWriter(out));
+        for (int i = 0; i < 100; i++) {
+            reporter.report(new BddPhrase("spec", "WHEN: step %1$d", i));
+        }
+        reporter.flush();
+
+        String[] lines = out.toString().split("\n");
+        assertEquals(100, lines.length);
+        assertTrue(lines[0], lines[0].contains("\"type\":\"WHEN\""));
+        assertTrue(lines[99], lines[99].contains("\"text\":\"step 99\""));
+
+        reporter.close();
+        assertTrue(!reporter.isEnabled());
+    }
+
+    @Test
+    public void testFailedSpecsCountedInJUnitXml() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncBddReporter reporter = new AsyncBddReporter(new JUnitXmlWriter(
+                out, "suite"));
+        reporter.report(new BddPhrase("passes", "THEN: ok", (Object[]) null));
+        reporter.report(new BddPhrase("fails", "THEN: ok", (Object[]) null));
+        reporter.report(new BddPhrase("fails", BddPhrase.FAILED + ": %1$s",
+                new AssertionError("expected 1")));
+        reporter.close();
+
+        String xml = out.toString("UTF-8");
+        assertTrue(xml, xml.contains("tests=\"2\" failures=\"1\""));
+        assertTrue(xml, xml.contains(
+                "<failure message=\"java.lang.AssertionError: expected 1\""));
+    }
+
+    @Test
+    public void testSpecsOfSameNameReportedSeparately() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncBddReporter reporter = new AsyncBddReporter(new JUnitXmlWriter(
+                out, "suite"));
+        reporter.report(new BddPhrase(1, "same", "THEN: ok", (Object[]) null));
+        reporter.report(new BddPhrase(2, "same", BddPhrase.FAILED
+                + ": %1$s", new AssertionError("expected 1")));
+        reporter.report(BddPhrase.newFinished(1, "same"));
+        reporter.report(BddPhrase.newFinished(2, "same"));
+        reporter.close();
+
+        String xml = out.toString("UTF-8");
+        assertTrue(xml, xml.contains("tests=\"2\" failures=\"1\""));
+        Document doc = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder()
+                .parse(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(xml, 2, doc.getElementsByTagName("testcase").getLength());
+        assertEquals(xml, 1, doc.getElementsByTagName("failure").getLength());
+    }
+
+    @Test
+    public void testArgumentsFormattedWhenPhraseCreated() {
+        StringBuilder arg = new StringBuilder("before");
+        BddPhrase phrase = new BddPhrase("spec", "WHEN: %1$s", arg);
+        arg.replace(0, arg.length(), "after");
+
+        assertEquals("WHEN: before", phrase.getText());
+    }
+}
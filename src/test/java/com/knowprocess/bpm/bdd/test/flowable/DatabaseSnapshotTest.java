@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.test.flowable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.flowable.engine.RepositoryService;
+import org.flowable.engine.RuntimeService;
+import org.flowable.engine.common.api.FlowableException;
+import org.flowable.engine.impl.test.TestHelper;
+import org.flowable.engine.runtime.ProcessInstance;
+import org.flowable.engine.test.Deployment;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.knowprocess.bpm.bdd.BpmSpec;
+
+/**
+ * @author Tim Stephenson
+ */
+public class DatabaseSnapshotTest {
+
+    @Rule
+    public ExtendedRule flowableRule = new ExtendedRule(
+            "test-flowable.cfg.xml").withDatabaseSnapshot();
+
+    @Test
+    @Deployment(resources = { "processes/Example1.bpmn" })
+    public void testRestoreRemovesTestData() {
+        RuntimeService runtimeService = flowableRule.getRuntimeService();
+        RepositoryService repositoryService = flowableRule
+                .getRepositoryService();
+        DatabaseSnapshot baseline = DatabaseSnapshot
+                .getBaseline(flowableRule.getProcessEngine());
+        long instances = runtimeService.createProcessInstanceQuery().count();
+        long deployments = repositoryService.createDeploymentQuery().count();
+
+        ProcessInstance pi = runtimeService
+                .startProcessInstanceByKey("Example1");
+        assertEquals(instances + 1, runtimeService
+                .createProcessInstanceQuery().count());
+
+        baseline.restore();
+
+        assertEquals(0, runtimeService.createProcessInstanceQuery()
+                .processInstanceId(pi.getId()).count());
+        assertEquals(instances, runtimeService.createProcessInstanceQuery()
+                .count());
+        // the test's own deployment was made after the baseline
+        assertEquals(deployments - 1, repositoryService
+                .createDeploymentQuery().count());
+
+        // ids continue from where they were, not from the baseline
+        String id = repositoryService.createDeployment()
+                .addClasspathResource("processes/Example1.bpmn").deploy()
+                .getId();
+        assertTrue(Long.parseLong(id) > Long.parseLong(pi.getId()));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @Deployment(resources = { "processes/Example1.bpmn" })
+    public void testScenarioAfterRestore() throws Exception {
+        new BpmSpec(flowableRule, "testScenarioAfterRestore")
+                .given("The database was restored after any previous test")
+                .whenEventOccurs("The Example1 process is started",
+                        "Example1", BpmSpec.buildSet(), BpmSpec.buildMap(),
+                        null)
+                .thenUserTask("doSomething", BpmSpec.buildSet(),
+                        BpmSpec.buildMap())
+                .thenProcessIsComplete();
+    }
+
+    @Test
+    public void testDedicatedDatabaseRefusesSharing() {
+        assertNotSame(flowableRule.getProcessEngine(),
+                TestHelper.getProcessEngine("test-flowable.cfg.xml"));
+        try {
+            DatabaseSnapshot.acquire(flowableRule.getProcessEngine());
+            fail("Engine should already be in use by this test");
+        } catch (FlowableException e) {
+            // expected
+        }
+        try {
+            new ExtendedRule("test-flowable.cfg.xml", true)
+                    .withDatabaseSnapshot();
+            fail("Pooled engines should not restore snapshots");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
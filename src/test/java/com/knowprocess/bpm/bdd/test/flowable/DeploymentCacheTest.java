@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.test.flowable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.flowable.engine.ProcessEngine;
+import org.junit.Test;
+
+/**
+ * @author Tim Stephenson
+ */
+public class DeploymentCacheTest {
+
+    private static final String CONFIG = "test-flowable.cfg.xml";
+
+    private static final String RESOURCE = "processes/Example1.bpmn";
+
+    @Test
+    public void testUnchangedResourceDeployedOnce() {
+        ProcessEngine engine = ProcessEnginePool.getInstance().lease(CONFIG);
+        try {
+            DeploymentCache cache = DeploymentCache.getInstance();
+            String deploymentId = cache.deploy(engine, null, RESOURCE);
+            long count = engine.getRepositoryService().createDeploymentQuery()
+                    .count();
+
+            assertEquals(deploymentId, cache.deploy(engine, null, RESOURCE));
+            assertEquals(count, engine.getRepositoryService()
+                    .createDeploymentQuery().count());
+
+            // a newer version of the process invalidates the cached one
+            String otherId = engine.getRepositoryService().createDeployment()
+                    .addClasspathResource(RESOURCE).deploy().getId();
+            String redeployedId = cache.deploy(engine, null, RESOURCE);
+            assertNotEquals(deploymentId, redeployedId);
+            assertEquals(redeployedId, cache.deploy(engine, null, RESOURCE));
+
+            engine.getRepositoryService().deleteDeployment(otherId, true);
+        } finally {
+            ProcessEnginePool.getInstance().release(engine);
+        }
+    }
+
+    @Test
+    public void testProcessInstancesDeletedDeploymentKept() {
+        ProcessEngine engine = ProcessEnginePool.getInstance().lease(CONFIG);
+        try {
+            DeploymentCache cache = DeploymentCache.getInstance();
+            String deploymentId = cache.deploy(engine, null, RESOURCE);
+            engine.getRuntimeService().startProcessInstanceByKey("Example1");
+            assertEquals(1, engine.getRuntimeService()
+                    .createProcessInstanceQuery().deploymentId(deploymentId)
+                    .count());
+
+            cache.deleteProcessInstances(engine, deploymentId);
+
+            assertEquals(0, engine.getRuntimeService()
+                    .createProcessInstanceQuery().deploymentId(deploymentId)
+                    .count());
+            assertEquals(0, engine.getHistoryService()
+                    .createHistoricProcessInstanceQuery()
+                    .deploymentId(deploymentId).count());
+            assertEquals(deploymentId, cache.deploy(engine, null, RESOURCE));
+        } finally {
+            ProcessEnginePool.getInstance().release(engine);
+        }
+    }
+}
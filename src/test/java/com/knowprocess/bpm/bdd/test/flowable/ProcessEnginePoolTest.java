@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.test.flowable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.flowable.engine.ProcessEngine;
+import org.flowable.engine.common.impl.cfg.CommandExecutorImpl;
+import org.flowable.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.flowable.engine.test.mock.FlowableMockSupport;
+import org.junit.Test;
+
+import com.knowprocess.bpm.bdd.history.InMemoryHistory;
+import com.knowprocess.bpm.bdd.metrics.EngineCallCounter;
+import com.knowprocess.bpm.bdd.metrics.SqlStatementCounter;
+
+/**
+ * @author Tim Stephenson
+ */
+public class ProcessEnginePoolTest {
+
+    private static final String CONFIG = "test-flowable.cfg.xml";
+
+    @Test
+    public void testEngineReusedAndCleanedBetweenLeases() {
+        ProcessEnginePool pool = ProcessEnginePool.getInstance();
+
+        ProcessEngine engine = pool.lease(CONFIG);
+        long before = engine.getRepositoryService().createDeploymentQuery()
+                .count();
+        engine.getRepositoryService().createDeployment()
+                .addClasspathResource("processes/Example1.bpmn").deploy();
+        assertEquals(before + 1, engine.getRepositoryService()
+                .createDeploymentQuery().count());
+        pool.release(engine);
+
+        ProcessEngine engine2 = pool.lease(CONFIG);
+        try {
+            assertSame(engine, engine2);
+            assertEquals(before, engine2.getRepositoryService()
+                    .createDeploymentQuery().count());
+        } finally {
+            pool.release(engine2);
+        }
+    }
+
+    @Test
+    public void testEnginesDoNotShareDatabase() {
+        ProcessEnginePool pool = ProcessEnginePool.getInstance();
+        ProcessEngine engine1 = pool.lease(CONFIG);
+        ProcessEngine engine2 = pool.lease(CONFIG);
+        try {
+            assertNotSame(engine1, engine2);
+            long before = engine2.getRepositoryService()
+                    .createDeploymentQuery().count();
+            engine1.getRepositoryService().createDeployment()
+                    .addClasspathResource("processes/Example1.bpmn").deploy();
+            assertEquals(before, engine2.getRepositoryService()
+                    .createDeploymentQuery().count());
+        } finally {
+            pool.release(engine1);
+            pool.release(engine2);
+        }
+    }
+
+    @Test
+    public void testInstrumentationRemovedOnRelease() {
+        ProcessEnginePool pool = ProcessEnginePool.getInstance();
+        ProcessEngine engine = pool.lease(CONFIG);
+        FlowableMockSupport mockSupport = pool.getMockSupport(engine);
+        EngineCallCounter.install(engine);
+        SqlStatementCounter.install(engine);
+        InMemoryHistory.install(engine);
+        InMemoryHistory.install(engine);
+        engine.getRepositoryService().createDeploymentQuery().count();
+        pool.release(engine);
+
+        ProcessEngine engine2 = pool.lease(CONFIG);
+        try {
+            assertSame(engine, engine2);
+            CommandExecutorImpl executor = (CommandExecutorImpl) ((ProcessEngineConfigurationImpl) engine2
+                    .getProcessEngineConfiguration()).getCommandExecutor();
+            assertFalse(executor.getFirst() instanceof EngineCallCounter);
+            assertTrue(SqlStatementCounter.install(engine2).getCounts()
+                    .isEmpty());
+            assertNull(InMemoryHistory.get(engine2));
+            // re-used rather than wrapping the engine again
+            assertSame(mockSupport, pool.getMockSupport(engine2));
+        } finally {
+            pool.release(engine2);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.test.flowable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+
+import org.flowable.engine.runtime.ProcessInstance;
+import org.flowable.engine.test.Deployment;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.knowprocess.bpm.bdd.metrics.EngineCallCounter;
+
+/**
+ * @author Tim Stephenson
+ */
+public class ProcessStateSnapshotTest {
+
+    @Rule
+    public ExtendedRule flowableRule = new ExtendedRule(
+            "test-flowable.cfg.xml");
+
+    @Test
+    @Deployment(resources = { "processes/Example2.bpmn" })
+    public void testTreeFetchedInFewQueries() {
+        ProcessInstance pi = flowableRule.getRuntimeService()
+                .startProcessInstanceByKey("Example2");
+        EngineCallCounter counter = EngineCallCounter.install(flowableRule
+                .getProcessEngine());
+
+        long before = counter.getServiceCalls();
+        ProcessStateSnapshot snapshot = ProcessStateSnapshot.capture(
+                flowableRule.getProcessEngine(), pi.getId());
+        long calls = counter.getServiceCalls() - before;
+        String out = print(snapshot);
+
+        // table name, 2 tree levels and the running instances, where dumping
+        // each instance in turn took dozens; activities are read as printed
+        assertTrue("Made " + calls + " calls", calls <= 5);
+        assertEquals(4, count(out, "Audit info for process"));
+        assertEquals(4, count(out, "assume ended"));
+        assertEquals(3, count(out, "Do something automatically (serviceTask)"));
+    }
+
+    @Test
+    @Deployment(resources = { "processes/Example5.bpmn" })
+    public void testRunningInstance() {
+        ProcessInstance pi = flowableRule.getRuntimeService()
+                .startProcessInstanceByKey("Example5",
+                        Collections.<String, Object> singletonMap(
+                                "reviewer", "alice"));
+        String out = print(ProcessStateSnapshot.capture(
+                flowableRule.getProcessEngine(), pi.getId()));
+
+        assertTrue(out, out.contains("******* process instance: "
+                + pi.getId()));
+        assertEquals(3, count(out, "...task: Review, pails: "));
+        assertTrue(out, out.contains("reviewer = alice"));
+        assertTrue(out, out.contains("... Review (userTask):, complete?: outstanding"));
+    }
+
+    private static String print(ProcessStateSnapshot snapshot) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        snapshot.print(new PrintStream(bytes));
+        return bytes.toString();
+    }
+
+    private static int count(String text, String phrase) {
+        int count = 0;
+        for (int i = text.indexOf(phrase); i >= 0; i = text.indexOf(phrase,
+                i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * BPM Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package com.knowprocess.bpm.bdd.test.mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.activation.DataHandler;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.junit.Test;
+
+/**
+ * @author Tim Stephenson
+ */
+public class MessageContentTest {
+
+    private static final String NEEDLE = "Invoice 4711 is attached";
+
+    @Test
+    public void testFindsTextInLargeMessage() throws Exception {
+        MessageContent content = new MessageContent(createInvoiceMail());
+
+        assertTrue(content.contains("Dear customer, café receipt"));
+        assertTrue(content.contains("<b>" + NEEDLE + "</b>"));
+        // spans a buffer boundary of the streamed part
+        assertTrue(content.contains(NEEDLE));
+        assertFalse(content.contains("PDF-SECRET"));
+
+        String preview = content.getPreview();
+        assertTrue(preview, preview.startsWith("Dear customer"));
+        assertTrue(preview.length() <= MessageContent.PREVIEW_LENGTH + 3);
+    }
+
+    @Test
+    public void testSearchAcrossBuffers() throws Exception {
+        char[] filler = new char[8 * 1024 - 5];
+        Arrays.fill(filler, 'x');
+        String text = new String(filler) + NEEDLE + new String(filler);
+
+        assertTrue(MessageContent.contains(new StringReader(text), NEEDLE));
+        assertFalse(MessageContent.contains(new StringReader(text),
+                NEEDLE + "!"));
+        assertTrue(MessageContent.contains(new StringReader(""), ""));
+    }
+
+    private MimeMessage createInvoiceMail() throws Exception {
+        Session session = Session.getInstance(new Properties());
+        MimeMessage message = new MimeMessage(session);
+        message.setSubject("Your invoice");
+
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("Dear customer, café receipt enclosed.", "UTF-8");
+        MimeBodyPart html = new MimeBodyPart();
+        html.setContent("<p><b>" + NEEDLE + "</b></p>", "text/html; charset=UTF-8");
+
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 4 * MessageContent.CACHE_LIMIT) {
+            large.append("Line item ").append(large.length()).append('\n');
+        }
+        large.insert(8 * 1024 - 5, NEEDLE);
+        MimeBodyPart detail = new MimeBodyPart();
+        detail.setText(large.toString(), "UTF-8");
+
+        byte[] pdf = new byte[2 * 1024 * 1024];
+        byte[] secret = "PDF-SECRET".getBytes("US-ASCII");
+        System.arraycopy(secret, 0, pdf, 1024, secret.length);
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(pdf,
+                "application/pdf")));
+        attachment.setDisposition(Part.ATTACHMENT);
+        attachment.setFileName("invoice.pdf");
+
+        MimeMultipart alternative = new MimeMultipart("alternative");
+        alternative.addBodyPart(text);
+        alternative.addBodyPart(html);
+        MimeBodyPart body = new MimeBodyPart();
+        body.setContent(alternative);
+
+        MimeMultipart mixed = new MimeMultipart();
+        mixed.addBodyPart(body);
+        mixed.addBodyPart(detail);
+        mixed.addBodyPart(attachment);
+        message.setContent(mixed);
+        message.saveChanges();
+
+        // parse it back as the mail server would receive it
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        MimeMessage received = new MimeMessage(session,
+                new SharedByteArrayInputStream(out.toByteArray()));
+        assertEquals("Your invoice", received.getSubject());
+        return received;
+    }
+}